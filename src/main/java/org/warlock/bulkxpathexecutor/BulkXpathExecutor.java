@@ -15,14 +15,21 @@
  */
 package org.warlock.bulkxpathexecutor;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringReader;
-import java.text.SimpleDateFormat;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDate;
@@ -30,21 +37,28 @@ import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.TreeMap;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathFactory;
 import org.w3c.dom.DOMStringList;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -58,14 +72,32 @@ import uk.nhs.digital.mait.commonutils.util.CfHNamespaceContext;
 /**
  * Usage: java -jar BulkXpathExecutor.jar -p pathsfile [ -r datafile ]* [ -m ] [
  * -M ] [ -f ] [ -t ] [ -o outputfile ] [ -e errorfile ] [ -x extension ] [ -X
- * extension ] [ documentfile+ | - ]
+ * extension ] [ --columns csv|tsv [ --multivalue first|last|join ] [
+ * --columnar-file file ] ] [ --aggregate [ --top n ] ] [ --patch ] [ --engine
+ * dom|xslt ] [ --split path ] [ --threads n ] [ --memory-budget size ] [ --workers n [
+ * --worker-heap size ] ] [ --profiles file ] [ --error-summary [
+ * --error-samples n ] ] [ --progress seconds ] [ --status-file file ] [
+ * --startup-report ] [ --index dir ] [ --parser default|offline [ --doctype
+ * reject|ignore ] [ --max-depth n ] [ --max-entity-expansions n ] [
+ * --max-document-size size ] ] [ documentfile+ | - | --framed length|nul |
+ * --watch dir [ --done dir ] [ --failed dir ] [ --settle ms ] ]
+ *
+ * or: java -jar BulkXpathExecutor.jar --snapshot snapshotfile [ options as
+ * above ] in place of -p and -r
+ *
+ * or: java -jar BulkXpathExecutor.jar -p pathsfile [ -r datafile ]* --compile
+ * snapshotfile
+ *
+ * or: java -jar BulkXpathExecutor.jar --index dir --query label value [ -o
+ * outputfile ]
  *
  * Takes well formed xml input files and bulk modifies and outputs them as well
  * formed modified xml files according to data in paths and data files.
  *
  * @param -p &lt;paths file&gt; tab separated file containing pairs of
  * identifiers and xpaths. Comments start with #. Associates an identifier with
- * an xpath
+ * an xpath. An optional third column is an extraction hint: first, exists or
+ * max N
  * @param -r &lt;data file&gt; optional (0..n) tab separated file containing
  * pairs of identifiers and data values to be assigned to those identifiers.
  * Comments start with #. Associates an identifier with a value to be applied in
@@ -84,22 +116,159 @@ import uk.nhs.digital.mait.commonutils.util.CfHNamespaceContext;
  * files.
  * @param -X &lt;extension&gt; optional file extension to be appended to error
  * files
+ * @param --columns csv|tsv optional extraction output as one row per document
+ * and one column per label, in paths file order
+ * @param --multivalue first|last|join optional columnar handling of labels
+ * matching more than one node, join (the default) separates values with |
+ * @param --columnar-file &lt;file&gt; optional dictionary encoded binary
+ * columnar copy of the extraction output
+ * @param --aggregate optional extraction output as one summary line per label
+ * for the whole run: documents and matches counted exactly, an estimated
+ * distinct count, the top values and the minimum and maximum value
+ * @param --top &lt;n&gt; optional number of top values in each aggregate,
+ * default 20
+ * @param --patch optional when the data files only set attribute and text
+ * values, splice them into the original document bytes rather than
+ * re-serialising a DOM
+ * @param --engine dom|xslt optional how substitutions are made: dom (the
+ * default) or xslt, which compiles them into one stylesheet and transforms
+ * each document in a single streaming pass
+ * @param --split &lt;path&gt; optional stream each document and process each
+ * element at the absolute path (eg /fhir:Bundle/fhir:entry) as a document of
+ * its own, with expressions evaluated relative to the record
+ * @param --threads &lt;n&gt; optional evaluate the expressions for each
+ * document across n threads
+ * @param --memory-budget &lt;size&gt; optional process documents concurrently
+ * while their estimated heap use stays within size (eg 2g), running any
+ * document estimated to need more on its own
+ * @param --workers &lt;n&gt; optional split the documents across n local
+ * worker processes and merge their results in document order
+ * @param --worker-heap &lt;size&gt; optional maximum heap for each worker, as
+ * for -Xmx
+ * @param --profiles &lt;file&gt; optional further paths/data/output profiles
+ * to apply to the same documents, one per line with tab separated paths file,
+ * comma separated data files and output file. Each document is parsed once
+ * for all of them. -p is then optional
+ * @param --error-summary optional instead of writing each error, count them
+ * by kind and by distinct warning and write a summary, with the details of
+ * the most recent, at the end of the run. Not with --watch or --workers
+ * @param --error-samples &lt;n&gt; optional number of recent errors in the
+ * summary, default 100
+ * @param --compile &lt;file&gt; optional instead of processing documents,
+ * validate the paths and data files and write them to file as a profile
+ * snapshot
+ * @param --snapshot &lt;file&gt; optional read the paths and data from a
+ * snapshot written by --compile, in place of -p and -r
+ * @param --progress &lt;seconds&gt; optional report documents done and
+ * remaining, throughput and ETA on stderr every so many seconds, and latency
+ * percentiles at the end of the run
+ * @param --status-file &lt;file&gt; optional rewrite file with the progress
+ * and latencies every interval, default 5 seconds, instead of using stderr
+ * @param --startup-report optional write the time to first output, broken
+ * down by phase with the classes loaded in each, to stderr at the end of the
+ * run
+ * @param --index &lt;dir&gt; optional add the extraction output to the
+ * inverted value index in dir, creating it if need be. With --query, the
+ * index to query
+ * @param --query &lt;label&gt; &lt;value&gt; instead of processing documents,
+ * output the names of the indexed documents with value for label
+ * @param --parser default|offline optional how documents are parsed: with
+ * the JAXP defaults, or never resolving anything external, with DOCTYPEs
+ * rejected and entity expansion, element depth and document size limited. A
+ * document the offline profile rejects is reported as an error and the run
+ * goes on to the next
+ * @param --doctype reject|ignore optional with the offline parser, reject
+ * documents with a DOCTYPE (the default) or skip any external DTD and honour
+ * the internal subset
+ * @param --max-depth &lt;n&gt; optional with the offline parser, deepest
+ * element nesting allowed, default 500
+ * @param --max-entity-expansions &lt;n&gt; optional with the offline parser,
+ * most entity expansions allowed in a document, default 10000
+ * @param --max-document-size &lt;size&gt; optional with the offline parser,
+ * largest document allowed, eg 64m, checked before it is read
  * @param &lt;document file&gt; 1 or more paths to well formed xml input files
  * or stdin
+ * @param --framed length|nul instead of document files, read any number of
+ * documents from stdin as frames, each its length on a line followed by its
+ * bytes, or each followed by a NUL byte, and write each document's output to
+ * stdout as a frame of the same kind as soon as it is processed
+ * @param --watch &lt;dir&gt; instead of document files, keep running and
+ * process each file written into dir, which needs -x. Outputs are written to
+ * the done directory, and the input moved there, or to the failed directory
+ * if it could not be processed
+ * @param --done &lt;dir&gt; optional done directory, default dir/done
+ * @param --failed &lt;dir&gt; optional failed directory, default dir/failed
+ * @param --settle &lt;ms&gt; optional time a file's size must be unchanged
+ * before it is processed, default 100
+ *
+ * With --loadtest as the first argument the rest of the command line is run
+ * as a load test, see LoadTest.
  *
  * @author Damian Murphy
  */
 public class BulkXpathExecutor {
 
-    private static final String USAGE = "Usage: java -jar BulkXpathExecutor.jar -p pathsfile [ -r datafile ]* [ -m ] [ -M ] [ -f ] [ -t ] [ -o outputfile ] [ -e errorfile ] [ -x extension ] [ -X extension ] [ documentfile | - ]";
-    private HashMap<String, DescribedXPath> expressions = new HashMap<>();
+    private static final String USAGE = "Usage: java -jar BulkXpathExecutor.jar -p pathsfile [ -r datafile ]* [ -m ] [ -M ] [ -f ] [ -t ] [ -o outputfile ] [ -e errorfile ] [ -x extension ] [ -X extension ] [ --columns csv|tsv [ --multivalue first|last|join ] [ --columnar-file file ] ] [ --aggregate [ --top n ] ] [ --patch ] [ --engine dom|xslt ] [ --split path ] [ --threads n ] [ --memory-budget size ] [ --workers n [ --worker-heap size ] ] [ --profiles file ] [ --error-summary [ --error-samples n ] ] [ --progress seconds ] [ --status-file file ] [ --startup-report ] [ --index dir ] [ --parser default|offline [ --doctype reject|ignore ] [ --max-depth n ] [ --max-entity-expansions n ] [ --max-document-size size ] ] [ documentfile | - | --framed length|nul | --watch dir [ --done dir ] [ --failed dir ] [ --settle ms ] ]\n       java -jar BulkXpathExecutor.jar --snapshot snapshotfile [ options as above, without -p and -r ]\n       java -jar BulkXpathExecutor.jar -p pathsfile [ -r datafile ]* --compile snapshotfile\n       java -jar BulkXpathExecutor.jar --index dir --query label value [ -o outputfile ]";
+    private LinkedHashMap<String, DescribedXPath> expressions = new LinkedHashMap<>();
+    // extraction hints from the paths file: most matches reported, by label,
+    // and labels reported as true or false
+    private HashMap<String, Integer> limits = new HashMap<>();
+    private HashSet<String> existsLabels = new HashSet<>();
+    // parsed xmlfragment: values, which are imported into each document
+    private HashMap<String, Element> fragments = new HashMap<>();
+    // true if the paths come from a snapshot, where they have been validated
+    private boolean validated = false;
     private HashMap<String, ArrayList<String>> substitutions = null;
+    // labels, in paths file order, that substitution mode evaluates
+    private ArrayList<String> plan = null;
+    // true if the plan only ever changes attribute or text values
+    private boolean valueOnly = false;
+    private boolean patchMode = false;
+    // substitutions compiled into a stylesheet, null to use the DOM
+    private boolean xsltMode = false;
+    private XsltEngine xsltEngine = null;
+    // why substitutions are made with the DOM engine instead, until reported
+    private String xsltFallback = null;
     private NamespaceContext nhsdNS = CfHNamespaceContext.getXMLNamespaceContext();
-    private static final SimpleDateFormat ISO8601TIME = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-    private static final SimpleDateFormat ISO8601DATE = new SimpleDateFormat("yyyy-MM-dd");
+    // DateTimeFormatter, unlike SimpleDateFormat, is thread safe
+    private static final DateTimeFormatter ISO8601TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+    private static final DateTimeFormatter ISO8601DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd");
 
     private OutputManager outputManager = null;
 
+    // Columnar extraction output, 0 for one line per label
+    private char columnFormat = 0;
+    private int multiValue = ColumnarWriter.JOIN;
+    private String columnarFile = null;
+    private ColumnarWriter columnarWriter = null;
+
+    // Evaluates expressions within a document in parallel, null for serial
+    private ForkJoinPool pool = null;
+
+    // Corpus level summaries by label for aggregate mode, null otherwise
+    private LinkedHashMap<String, LabelAggregate> aggregates = null;
+    private int aggregateTop = 0;
+
+    // Heap budget for processing documents concurrently, 0 for one at a time
+    private long memoryBudget = 0;
+
+    // Streams documents a record at a time, null to process whole documents
+    private RecordSplitter splitter = null;
+    private int recordCount = 0;
+
+    // Live progress and latencies
+    private ProgressReporter progress = null;
+
+    // Time to first output by phase, null unless --startup-report
+    private StartupReport startup = null;
+
+    // How documents are parsed
+    private ParserProfile parser = ParserProfile.DEFAULT;
+
+    // Inverted index built from the extraction output, null unless --index
+    private ValueIndex index = null;
+    private int indexDocument = 0;
+
     // Reserved words
     private static final String RESERVED_WORD_UUID = "$UUID";
     private static final String RESERVED_WORD_TODAY = "$TODAY";
@@ -112,24 +281,75 @@ public class BulkXpathExecutor {
      * @param args the command line arguments
      */
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].contentEquals("--loadtest")) {
+            int status = 1;
+            try {
+                status = new LoadTest(Arrays.copyOfRange(args, 1, args.length)).run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            System.exit(status);
+        }
+        StartupReport startup = Arrays.asList(args).contains("--startup-report") ? new StartupReport() : null;
         String paths = null;
         ArrayList<String> datafiles = new ArrayList<>();
         ArrayList<String> doc = new ArrayList<>();
         OutputManager om = new OutputManager();
+        char columns = 0;
+        int multiValue = ColumnarWriter.JOIN;
+        String columnarFile = null;
+        int workers = 0;
+        int threads = 1;
+        boolean patch = false;
+        boolean xslt = false;
+        String split = null;
+        long memoryBudget = 0;
+        boolean aggregate = false;
+        int top = 20;
+        String watch = null;
+        String doneDir = null;
+        String failedDir = null;
+        long settle = 100;
+        boolean multiFile = false;
+        String profiles = null;
+        boolean errorSummary = false;
+        int errorSamples = ErrorCollector.DEFAULT_SAMPLES;
+        String compileTo = null;
+        String snapshotFile = null;
+        double progressInterval = 0;
+        String statusFile = null;
+        String indexDir = null;
+        String queryLabel = null;
+        String queryValue = null;
+        int framed = 0;
+        boolean offline = false;
+        boolean parserLimits = false;
+        ParserProfile parser = new ParserProfile(true);
+        boolean outputGiven = false;
+        String workerHeap = null;
+        String workerQueue = null;
+        int workerId = 0;
+        // arguments that workers need to process documents the same way
+        ArrayList<String> workerArgs = new ArrayList<>();
         try {
             for (int i = 0; i < args.length; i++) {
                 if (args[i].contentEquals("-p")) {
                     ++i;
                     paths = args[i];
+                    workerArgs.add("-p");
+                    workerArgs.add(args[i]);
                     continue;
                 }
                 if (args[i].contentEquals("-r")) {
                     ++i;
                     datafiles.add(args[i]);
+                    workerArgs.add("-r");
+                    workerArgs.add(args[i]);
                     continue;
                 }
                 if (args[i].contentEquals("-o")) {
                     ++i;
+                    outputGiven = true;
                     om.setOutputFile(args[i]);
                     continue;
                 }
@@ -140,6 +360,8 @@ public class BulkXpathExecutor {
                 }
                 if (args[i].contentEquals("-x")) {
                     ++i;
+                    multiFile = true;
+                    outputGiven = true;
                     om.setOutputExtension(args[i]);
                     continue;
                 }
@@ -149,6 +371,7 @@ public class BulkXpathExecutor {
                     continue;
                 }
                 if (args[i].contentEquals("-m")) {
+                    outputGiven = true;
                     om.setInMemoryOutput();
                     continue;
                 }
@@ -164,32 +387,476 @@ public class BulkXpathExecutor {
                     om.setTimestampError(true);
                     continue;
                 }
+                if (args[i].contentEquals("--columns")) {
+                    ++i;
+                    if (args[i].contentEquals("csv")) {
+                        columns = ColumnarWriter.CSV;
+                    } else if (args[i].contentEquals("tsv")) {
+                        columns = ColumnarWriter.TSV;
+                    } else {
+                        throw new Exception("Unknown column format " + args[i] + ": expected csv or tsv");
+                    }
+                    continue;
+                }
+                if (args[i].contentEquals("--multivalue")) {
+                    ++i;
+                    multiValue = ColumnarWriter.getMultiValue(args[i]);
+                    continue;
+                }
+                if (args[i].contentEquals("--columnar-file")) {
+                    ++i;
+                    columnarFile = args[i];
+                    continue;
+                }
+                if (args[i].contentEquals("--patch")) {
+                    patch = true;
+                    workerArgs.add("--patch");
+                    continue;
+                }
+                if (args[i].contentEquals("--engine")) {
+                    ++i;
+                    if (args[i].contentEquals("xslt")) {
+                        xslt = true;
+                    } else if (!args[i].contentEquals("dom")) {
+                        throw new Exception("Unknown engine " + args[i] + ": expected dom or xslt");
+                    }
+                    workerArgs.add("--engine");
+                    workerArgs.add(args[i]);
+                    continue;
+                }
+                if (args[i].contentEquals("--threads")) {
+                    ++i;
+                    threads = Integer.parseInt(args[i]);
+                    workerArgs.add("--threads");
+                    workerArgs.add(args[i]);
+                    continue;
+                }
+                if (args[i].contentEquals("--split")) {
+                    ++i;
+                    split = args[i];
+                    workerArgs.add("--split");
+                    workerArgs.add(args[i]);
+                    continue;
+                }
+                if (args[i].contentEquals("--aggregate")) {
+                    aggregate = true;
+                    continue;
+                }
+                if (args[i].contentEquals("--top")) {
+                    ++i;
+                    top = Integer.parseInt(args[i]);
+                    continue;
+                }
+                if (args[i].contentEquals("--error-summary")) {
+                    errorSummary = true;
+                    continue;
+                }
+                if (args[i].contentEquals("--error-samples")) {
+                    ++i;
+                    errorSamples = Integer.parseInt(args[i]);
+                    continue;
+                }
+                if (args[i].contentEquals("--compile")) {
+                    ++i;
+                    compileTo = args[i];
+                    continue;
+                }
+                if (args[i].contentEquals("--snapshot")) {
+                    ++i;
+                    snapshotFile = args[i];
+                    workerArgs.add("--snapshot");
+                    workerArgs.add(args[i]);
+                    continue;
+                }
+                if (args[i].contentEquals("--startup-report")) {
+                    continue;
+                }
+                if (args[i].contentEquals("--progress")) {
+                    ++i;
+                    progressInterval = Double.parseDouble(args[i]);
+                    continue;
+                }
+                if (args[i].contentEquals("--status-file")) {
+                    ++i;
+                    statusFile = args[i];
+                    continue;
+                }
+                if (args[i].contentEquals("--index")) {
+                    ++i;
+                    indexDir = args[i];
+                    continue;
+                }
+                if (args[i].contentEquals("--query")) {
+                    queryLabel = args[++i];
+                    queryValue = args[++i];
+                    continue;
+                }
+                if (args[i].contentEquals("--profiles")) {
+                    ++i;
+                    profiles = args[i];
+                    continue;
+                }
+                if (args[i].contentEquals("--parser")) {
+                    ++i;
+                    if (args[i].contentEquals("offline")) {
+                        offline = true;
+                    } else if (!args[i].contentEquals("default")) {
+                        throw new Exception("Unknown parser profile " + args[i] + ": expected default or offline");
+                    }
+                    workerArgs.add("--parser");
+                    workerArgs.add(args[i]);
+                    continue;
+                }
+                if (args[i].contentEquals("--doctype")) {
+                    ++i;
+                    parser.setDoctype(ParserProfile.getDoctype(args[i]));
+                    parserLimits = true;
+                    workerArgs.add("--doctype");
+                    workerArgs.add(args[i]);
+                    continue;
+                }
+                if (args[i].contentEquals("--max-depth")) {
+                    ++i;
+                    parser.setMaxDepth(Integer.parseInt(args[i]));
+                    parserLimits = true;
+                    workerArgs.add("--max-depth");
+                    workerArgs.add(args[i]);
+                    continue;
+                }
+                if (args[i].contentEquals("--max-entity-expansions")) {
+                    ++i;
+                    parser.setMaxEntityExpansions(Integer.parseInt(args[i]));
+                    parserLimits = true;
+                    workerArgs.add("--max-entity-expansions");
+                    workerArgs.add(args[i]);
+                    continue;
+                }
+                if (args[i].contentEquals("--max-document-size")) {
+                    ++i;
+                    parser.setMaxDocumentSize(DocumentScheduler.parseSize(args[i]));
+                    parserLimits = true;
+                    workerArgs.add("--max-document-size");
+                    workerArgs.add(args[i]);
+                    continue;
+                }
+                if (args[i].contentEquals("--framed")) {
+                    ++i;
+                    framed = FramedStream.getFormat(args[i]);
+                    continue;
+                }
+                if (args[i].contentEquals("--watch")) {
+                    ++i;
+                    watch = args[i];
+                    continue;
+                }
+                if (args[i].contentEquals("--done")) {
+                    ++i;
+                    doneDir = args[i];
+                    continue;
+                }
+                if (args[i].contentEquals("--failed")) {
+                    ++i;
+                    failedDir = args[i];
+                    continue;
+                }
+                if (args[i].contentEquals("--settle")) {
+                    ++i;
+                    settle = Long.parseLong(args[i]);
+                    continue;
+                }
+                if (args[i].contentEquals("--memory-budget")) {
+                    ++i;
+                    memoryBudget = DocumentScheduler.parseSize(args[i]);
+                    continue;
+                }
+                if (args[i].contentEquals("--workers")) {
+                    ++i;
+                    workers = Integer.parseInt(args[i]);
+                    continue;
+                }
+                if (args[i].contentEquals("--worker-heap")) {
+                    ++i;
+                    workerHeap = args[i];
+                    continue;
+                }
+                if (args[i].contentEquals("--worker-queue")) {
+                    ++i;
+                    workerQueue = args[i];
+                    continue;
+                }
+                if (args[i].contentEquals("--worker-id")) {
+                    ++i;
+                    workerId = Integer.parseInt(args[i]);
+                    continue;
+                }
                 doc.add(args[i]);
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
-        if (paths == null) {
+        if (startup != null) {
+            if (workers > 0 || watch != null || compileTo != null) {
+                System.err.println("--startup-report measures a run in this process and cannot be combined with --workers, --watch or --compile");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            startup.mark("read arguments");
+        }
+        if (offline) {
+            try {
+                parser.check();
+            } catch (Exception e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        } else if (parserLimits) {
+            System.err.println("--doctype and the --max- parser limits need --parser offline");
+            System.err.println(USAGE);
+            System.exit(1);
+        } else {
+            parser = ParserProfile.DEFAULT;
+        }
+        if (compileTo != null) {
+            if (paths == null || paths.contentEquals("-") || snapshotFile != null || datafiles.contains("-")) {
+                System.err.println("--compile needs a paths file, and any data files, to compile");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            try {
+                ProfileSnapshot ps = compileSnapshot(paths, datafiles);
+                ps.write(compileTo);
+                System.out.println("Compiled " + ps.getEntries().size() + " paths from " + String.join(",", ps.getSources()) + " into " + compileTo);
+            } catch (Exception e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        if (queryLabel != null) {
+            if (indexDir == null || !doc.isEmpty()) {
+                System.err.println("--query needs --index, and reads no documents");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            try {
+                for (String d : ValueIndex.query(Paths.get(indexDir), queryLabel, queryValue)) {
+                    om.output(d);
+                }
+                om.close();
+            } catch (Exception e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+        ProfileSnapshot snapshot = null;
+        if (snapshotFile != null) {
+            if (paths != null || !datafiles.isEmpty()) {
+                System.err.println("--snapshot takes the place of -p and -r");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            try {
+                snapshot = ProfileSnapshot.read(snapshotFile);
+                snapshot.checkSources();
+            } catch (Exception e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+        if (errorSummary) {
+            // worker errors come back as text, which would lose their kinds
+            if (watch != null || workers > 0) {
+                System.err.println("--error-summary reports at the end of a run from structured errors and cannot be combined with --watch or --workers");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            om.setErrorCollector(new ErrorCollector(errorSamples));
+        }
+        ProgressReporter progress = null;
+        if (progressInterval > 0 || statusFile != null) {
+            if (workers > 0) {
+                System.err.println("--progress and --status-file time documents in this process and cannot be combined with --workers");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            long total = 0;
+            for (String d : doc) {
+                total += documentSize(d);
+            }
+            progress = new ProgressReporter(doc.size(), total, Math.round(1000 * ((progressInterval > 0) ? progressInterval : 5)));
+            progress.setStatusFile(statusFile);
+        }
+        if (xslt && split != null) {
+            System.err.println("--engine xslt cannot be combined with --split");
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        if (indexDir != null && (workers > 0 || watch != null || profiles != null)) {
+            System.err.println("--index is built in this process and cannot be combined with --workers, --watch or --profiles");
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        if (profiles != null) {
+            if (workers > 0 || watch != null || split != null || memoryBudget > 0 || doc.isEmpty()) {
+                System.err.println("--profiles needs document files and cannot be combined with --workers, --watch, --split or --memory-budget");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            try {
+                ArrayList<BulkXpathExecutor> executors = new ArrayList<>();
+                if (paths != null || snapshot != null) {
+                    // the command line is a profile too
+                    BulkXpathExecutor bxe = newExecutor(paths, snapshot, datafiles, threads, patch, null, xslt, parser);
+                    bxe.setOutputManager(om);
+                    bxe.setColumnarOutput(columns, multiValue, columnarFile);
+                    if (aggregate) {
+                        bxe.setAggregate(top);
+                    }
+                    executors.add(bxe);
+                }
+                readProfiles(profiles, executors, threads, patch, xslt, parser);
+                for (BulkXpathExecutor bxe : executors) {
+                    bxe.outputManager.setErrorCollector(om.getErrorCollector());
+                    bxe.setStartupReport(startup);
+                }
+                if (progress != null) {
+                    progress.start();
+                }
+                processProfiles(executors, doc, progress);
+                if (progress != null) {
+                    progress.stop();
+                }
+                om.writeErrorSummary();
+                for (BulkXpathExecutor bxe : executors) {
+                    bxe.outputManager.close();
+                }
+                if (startup != null) {
+                    startup.write(System.err);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        if (paths == null && snapshot == null) {
             System.err.println("Paths file not given");
             System.err.println(USAGE);
             System.exit(1);
         }
+        if (workerQueue != null) {
+            // started by a Coordinator: documents come from the queue
+            try {
+                BulkXpathExecutor bxe = newExecutor(paths, snapshot, datafiles, threads, patch, split, xslt, parser);
+                bxe.processQueue(new ShardQueue(workerQueue), workerId);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+        if (framed != 0) {
+            if (!doc.isEmpty() || watch != null || workers > 0 || outputGiven || split != null || memoryBudget > 0
+                    || aggregate || columns != 0 || columnarFile != null || indexDir != null) {
+                System.err.println("--framed reads its documents from stdin and writes each output to stdout as it goes, so cannot be combined with document files, output files, --watch, --workers, --split, --memory-budget, --aggregate, columnar output or --index");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            try {
+                BulkXpathExecutor bxe = newExecutor(paths, snapshot, datafiles, threads, patch, null, xslt, parser);
+                bxe.setOutputManager(om);
+                bxe.setProgress(progress);
+                bxe.setStartupReport(startup);
+                bxe.processFramed(new FramedStream(framed, new BufferedInputStream(System.in), System.out));
+                om.writeErrorSummary();
+                if (startup != null) {
+                    startup.write(System.err);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+        if (watch != null) {
+            if (!multiFile || !doc.isEmpty() || workers > 0 || aggregate || columns != 0 || columnarFile != null) {
+                System.err.println("--watch needs -x for an output file per document, and takes its documents from the watched directory");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            try {
+                BulkXpathExecutor bxe = newExecutor(paths, snapshot, datafiles, threads, patch, split, xslt, parser);
+                bxe.setOutputManager(om);
+                bxe.setProgress(progress);
+                System.out.println("Watching " + watch);
+                bxe.processWatch(watch, doneDir, failedDir, settle);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
         if (doc.isEmpty()) {
             System.err.println("Document source not given");
             System.err.println(USAGE);
             System.exit(1);
         }
-        if (datafiles == null || datafiles.isEmpty()) {
+        if (workers > 0 && (columns != 0 || columnarFile != null)) {
+            System.err.println("Columnar output cannot be combined with --workers");
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        boolean substituting = !datafiles.isEmpty() || (snapshot != null && snapshot.getData() != null);
+        if (aggregate && (workers > 0 || columns != 0 || columnarFile != null || substituting)) {
+            System.err.println("--aggregate is for extraction runs and cannot be combined with --workers or columnar output");
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        if (memoryBudget > 0 && (workers > 0 || columns != 0 || columnarFile != null)) {
+            System.err.println("--memory-budget cannot be combined with --workers or columnar output");
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        if (indexDir != null && substituting) {
+            System.err.println("--index is for extraction runs");
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        if (snapshot != null) {
+            System.out.println((substituting ? "Substituting with " : "Extracting with ") + snapshotFile + " in " + doc);
+        } else if (datafiles == null || datafiles.isEmpty()) {
             System.out.println("Using " + paths + " to extract content from " + doc);
         } else {
             System.out.println("Substituting locations " + paths + " in " + doc + " with " + String.join(",", datafiles));
         }
         try {
-            BulkXpathExecutor bxe = new BulkXpathExecutor(paths);
-            bxe.setOutputManager(om);
-            bxe.setData(datafiles.toArray(new String[datafiles.size()]));
-            bxe.processDocuments(doc);
-            ArrayList<String> errors = bxe.getOutputManager().getErrors();
+            if (workers > 0) {
+                Coordinator c = new Coordinator(workers, workerArgs);
+                c.setWorkerHeap(workerHeap);
+                c.run(doc, om);
+            } else {
+                BulkXpathExecutor bxe = newExecutor(paths, snapshot, datafiles, threads, patch, split, xslt, parser);
+                bxe.setOutputManager(om);
+                bxe.setColumnarOutput(columns, multiValue, columnarFile);
+                bxe.setMemoryBudget(memoryBudget);
+                if (aggregate) {
+                    bxe.setAggregate(top);
+                }
+                bxe.setProgress(progress);
+                bxe.setStartupReport(startup);
+                if (indexDir != null) {
+                    bxe.setIndex(new ValueIndex(Paths.get(indexDir)));
+                }
+                bxe.processDocuments(doc);
+                if (indexDir != null) {
+                    System.out.println("Index " + indexDir + " holds " + bxe.index.getDocuments() + " documents");
+                }
+            }
+            om.writeErrorSummary();
+            if (startup != null) {
+                startup.write(System.err);
+            }
+            ArrayList<String> errors = om.getErrors();
             if ((errors != null) && (!errors.isEmpty())) {
                 System.err.println("Non-fatal processing errors:");
                 for (String s : errors) {
@@ -202,7 +869,9 @@ public class BulkXpathExecutor {
     }
 
     /**
-     * reads paths file and populates expressions
+     * reads paths file and populates expressions. Nothing is compiled here:
+     * see compile(). Labels with identical xpaths share one DescribedXPath,
+     * which is evaluated once per document.
      *
      * @param paths String path to paths file
      * @throws Exception
@@ -219,7 +888,7 @@ public class BulkXpathExecutor {
         BufferedReader br = new BufferedReader(new InputStreamReader(in));
         @SuppressWarnings("UnusedAssignment")
         String line = null;
-        XPathFactory xpf = XPathFactory.newInstance();
+        HashMap<String, DescribedXPath> byPath = new HashMap<>();
         while ((line = br.readLine()) != null) {
             // email style terminator for use with streams
             if (line.contentEquals(".")) {
@@ -230,328 +899,1885 @@ public class BulkXpathExecutor {
             }
             if (line.contains("\t")) {
                 String[] s = line.split("\t");
-                XPath xp = xpf.newXPath();
-                xp.setNamespaceContext(nhsdNS);
-                XPathExpression exp = xp.compile(s[1]);
-                DescribedXPath x = new DescribedXPath(s[1], exp);
-                expressions.put(s[0], x);
+                expressions.put(s[0], byPath.computeIfAbsent(s[1], p -> new DescribedXPath(p, nhsdNS)));
+                if (s.length > 2 && !s[2].trim().isEmpty()) {
+                    setHint(s[0], s[2].trim());
+                }
             } else {
-                XPath xp = xpf.newXPath();
-                xp.setNamespaceContext(nhsdNS);
-                XPathExpression exp = xp.compile(line);
-                DescribedXPath x = new DescribedXPath(line, exp);
-                expressions.put(line, x);
+                expressions.put(line, byPath.computeIfAbsent(line, p -> new DescribedXPath(p, nhsdNS)));
             }
         }
+        setPathLimits();
     }
 
-    private void setOutputManager(OutputManager om) {
-        outputManager = om;
-    }
-
-    private OutputManager getOutputManager() {
-        return outputManager;
+    /**
+     * builds an executor from a profile snapshot. Paths that the snapshot
+     * classified as needing a DOM are not offered to CompactXPath again.
+     *
+     * @param snapshot snapshot written by --compile
+     */
+    private BulkXpathExecutor(ProfileSnapshot snapshot) {
+        HashMap<String, DescribedXPath> byPath = new HashMap<>();
+        for (ProfileSnapshot.Entry e : snapshot.getEntries()) {
+            DescribedXPath xp = byPath.computeIfAbsent(e.getXpath(), p -> new DescribedXPath(p, nhsdNS));
+            if (e.getKind() == ProfileSnapshot.DOM) {
+                xp.setCompactPath(null);
+            }
+            expressions.put(e.getLabel(), xp);
+            if (e.getLimit() > 0) {
+                limits.put(e.getLabel(), e.getLimit());
+            }
+            if (e.isExists()) {
+                existsLabels.add(e.getLabel());
+            }
+        }
+        setPathLimits();
+        validated = true;
     }
 
     /**
-     * iterates through documents and processes them
+     * builds an executor with the options every mode shares
      *
-     * @param documents ArrayList&lt;String&gt; paths to documents files
+     * @param paths paths file, used if there is no snapshot
+     * @param snapshot profile snapshot, or null
+     * @param datafiles data files, used if there is no snapshot
+     * @param threads threads to evaluate each document's labels on
+     * @param patch true for patch mode
+     * @param split path of the records to split documents into, or null
+     * @param xslt true to use the XSLT engine for substitutions
+     * @param parser how to parse documents
+     * @return executor for the snapshot or else the paths and data files
      * @throws Exception
      */
-    private void processDocuments(ArrayList<String> documents)
+    private static BulkXpathExecutor newExecutor(String paths, ProfileSnapshot snapshot, ArrayList<String> datafiles, int threads, boolean patch, String split, boolean xslt, ParserProfile parser)
             throws Exception {
-        if (outputManager == null) {
-            outputManager = new OutputManager();
-        }
-
-        for (String document : documents) {
-            outputManager.setCurrentFile(document);
-            process(document);
-        }
+        BulkXpathExecutor bxe = (snapshot == null) ? new BulkXpathExecutor(paths) : new BulkXpathExecutor(snapshot);
+        bxe.setOptions(threads, patch, split, xslt, parser);
+        bxe.setData((snapshot == null) ? readData(datafiles.toArray(new String[datafiles.size()])) : snapshot.getData());
+        return bxe;
     }
 
     /**
-     * iterates through data files and populates substitutions
+     * validates a paths file and data files and records them in a snapshot:
+     * every xpath is compiled and classified, and every xmlfragment: value
+     * parsed
      *
-     * @param datafiles String[] of data files
-     * @throws Exception
+     * @param paths paths file
+     * @param datafiles data files, none for an extraction profile
+     * @return the snapshot
+     * @throws Exception listing what failed to compile or parse
      */
-    private void setData(String[] datafiles)
+    private static ProfileSnapshot compileSnapshot(String paths, ArrayList<String> datafiles)
             throws Exception {
-
-        if (datafiles == null || datafiles.length == 0) {
-            return;
+        BulkXpathExecutor bxe = new BulkXpathExecutor(paths);
+        bxe.compile(bxe.expressions.keySet(), true);
+        ProfileSnapshot ps = new ProfileSnapshot();
+        ps.addSource(paths);
+        for (String f : datafiles) {
+            ps.addSource(f);
         }
-
-        substitutions = new HashMap<>();
-        for (String datafile : datafiles) {
-            BufferedReader br = new BufferedReader(new FileReader(datafile));
-            @SuppressWarnings("UnusedAssignment")
-            String line = null;
-            while ((line = br.readLine()) != null) {
-                if (line.trim().isEmpty() || line.trim().startsWith("#")) {
-                    continue;
-                }
-                String[] s = line.split("\t");
-                ArrayList<String> list = new ArrayList<>();
-                for (int i = 1; i < s.length; i++) {
-                    if (s[i].startsWith("$")) {
-                        list.add(resolveFunction(s[i]).trim());
-                    } else {
-                        list.add(s[i]);
+        for (String label : bxe.expressions.keySet()) {
+            DescribedXPath xp = bxe.expressions.get(label);
+            byte kind = (xp.getCompactPath() == null) ? ProfileSnapshot.DOM : ProfileSnapshot.COMPACT;
+            ps.add(new ProfileSnapshot.Entry(label, xp.getXpath(), bxe.limits.getOrDefault(label, 0), bxe.existsLabels.contains(label), kind));
+        }
+        LinkedHashMap<String, ArrayList<String>> data = readData(datafiles.toArray(new String[datafiles.size()]));
+        if (data != null) {
+            ArrayList<String> failures = new ArrayList<>();
+            for (String label : data.keySet()) {
+                for (String v : data.get(label)) {
+                    if (v.startsWith("xmlfragment:")) {
+                        try {
+                            parse(v.substring("xmlfragment:".length()));
+                        } catch (Exception e) {
+                            failures.add(label + ": " + e.getMessage());
+                        }
                     }
                 }
-                substitutions.put(s[0], list);
+            }
+            if (!failures.isEmpty()) {
+                throw new Exception("Failed to parse fragments " + String.join(", ", failures));
             }
         }
+        ps.setData(data);
+        return ps;
     }
 
     /**
-     * evaluates reserved words
-     *
-     * @param s name of reserved word
-     * @return evaluates substitution
+     * sets each path's limit from the hints of the labels using it. A path
+     * is evaluated once for all its labels, so it is only limited if every
+     * label using it is.
      */
-    private String resolveFunction(String s) {
-
-        // TODO: Add ISO8601 duration offsets to $TIME and $DATE
-        if (s.contentEquals(RESERVED_WORD_TIME)) {
-            return ISO8601TIME.format(new Date());
-        }
-        if (s.contentEquals(RESERVED_WORD_DATE)) {
-            return ISO8601DATE.format(new Date());
+    private void setPathLimits() {
+        IdentityHashMap<DescribedXPath, Integer> pathLimits = new IdentityHashMap<>();
+        for (String label : expressions.keySet()) {
+            DescribedXPath xp = expressions.get(label);
+            int l = limits.getOrDefault(label, 0);
+            Integer current = pathLimits.get(xp);
+            pathLimits.put(xp, (current == null) ? l : ((current == 0 || l == 0) ? 0 : Math.max(current, l)));
         }
-        // $TODAY is a timestamp starting at 00:00:00 today.
-        if (s.contentEquals(RESERVED_WORD_TODAY)) {
-            Calendar cal = new GregorianCalendar();
-            cal.set(Calendar.HOUR_OF_DAY, 0);
-            cal.set(Calendar.MINUTE, 0);
-            cal.set(Calendar.SECOND, 0);
-            cal.set(Calendar.MILLISECOND, 0);
-            return ISO8601TIME.format(cal.getTime());
+        for (DescribedXPath xp : pathLimits.keySet()) {
+            xp.setLimit(pathLimits.get(xp));
         }
+    }
 
-        if (s.startsWith(RESERVED_WORD_TIME)) {
-            return resolveOffset(s, false);
-        }
-        if (s.startsWith(RESERVED_WORD_DATE)) {
-            return resolveOffset(s, true);
+    /**
+     * records a paths file extraction hint for a label
+     *
+     * @param label label
+     * @param hint first, exists or max N
+     * @throws Exception if the hint is not recognised
+     */
+    private void setHint(String label, String hint)
+            throws Exception {
+        if (hint.contentEquals("first")) {
+            limits.put(label, 1);
+        } else if (hint.contentEquals("exists")) {
+            limits.put(label, 1);
+            existsLabels.add(label);
+        } else if (hint.startsWith("max ") && hint.substring(4).trim().matches("[1-9][0-9]*")) {
+            limits.put(label, Integer.parseInt(hint.substring(4).trim()));
+        } else {
+            throw new Exception("Unrecognised hint " + hint + " for label " + label + ", expected first, exists or max N");
         }
-        if (s.startsWith(RESERVED_WORD_TODAY)) {
-            return resolveOffset(s, false);
+    }
+
+    /**
+     * copies an executor for use on another thread. XPathExpressions are not
+     * thread safe, so the copy has its own, compiled as it needs them;
+     * everything else is shared.
+     *
+     * @param b executor to copy
+     * @throws Exception
+     */
+    private BulkXpathExecutor(BulkXpathExecutor b)
+            throws Exception {
+        HashMap<String, DescribedXPath> byPath = new HashMap<>();
+        for (String label : b.expressions.keySet()) {
+            DescribedXPath xp = b.expressions.get(label);
+            expressions.put(label, byPath.computeIfAbsent(xp.getXpath(), p -> new DescribedXPath(p, nhsdNS)));
+            expressions.get(label).setLimit(xp.getLimit());
+        }
+        limits = b.limits;
+        existsLabels = b.existsLabels;
+        substitutions = b.substitutions;
+        plan = b.plan;
+        valueOnly = b.valueOnly;
+        patchMode = b.patchMode;
+        xsltEngine = b.xsltEngine;
+        pool = b.pool;
+        splitter = b.splitter;
+        startup = b.startup;
+        index = b.index;
+        parser = b.parser;
+        if (b.aggregates != null) {
+            setAggregate(b.aggregateTop);
+        }
+    }
+
+    /**
+     * compiles, in parallel, the expressions that a run is going to use, so
+     * that a paths file of thousands of lines neither compiles serially nor
+     * compiles paths that are never evaluated. Each distinct xpath is
+     * compiled once however many labels share it.
+     *
+     * @param labels labels that will be evaluated
+     * @param dom true if they will all be evaluated over a DOM, otherwise only
+     * those outside the CompactXPath subset are compiled for JAXP
+     * @throws Exception if an xpath does not compile
+     */
+    private void compile(Collection<String> labels, boolean dom)
+            throws Exception {
+        LinkedHashSet<DescribedXPath> unique = new LinkedHashSet<>();
+        for (String label : labels) {
+            unique.add(expressions.get(label));
+        }
+        ArrayList<String> failures = new ArrayList<>();
+        Runnable r = () -> unique.parallelStream().forEach(x -> {
+            try {
+                if (x.getCompactPath() == null || dom) {
+                    x.getExpression();
+                }
+            } catch (Exception e) {
+                synchronized (failures) {
+                    failures.add(x.getXpath() + ": " + e.toString());
+                }
+            }
+        });
+        if (pool == null) {
+            r.run();
+        } else {
+            pool.submit(r).get();
+        }
+        if (!failures.isEmpty()) {
+            throw new Exception("Failed to compile " + String.join(", ", failures));
+        }
+    }
+
+    private void setOutputManager(OutputManager om) {
+        outputManager = om;
+    }
+
+
+    /**
+     * sets columnar output for extraction runs: one row per document with one
+     * column per label, in paths file order
+     *
+     * @param format ColumnarWriter.CSV or TSV, 0 for one line per label
+     * @param multi ColumnarWriter.FIRST, LAST or JOIN
+     * @param binaryFile optional dictionary encoded columnar file, or null
+     */
+    private void setColumnarOutput(char format, int multi, String binaryFile) {
+        columnFormat = format;
+        multiValue = multi;
+        columnarFile = binaryFile;
+    }
+
+    /**
+     * iterates through documents and processes them
+     *
+     * @param documents ArrayList&lt;String&gt; paths to documents files
+     * @throws Exception
+     */
+    private void processDocuments(ArrayList<String> documents)
+            throws Exception {
+        startRun();
+        if (progress != null) {
+            progress.start();
+        }
+        try {
+            if (memoryBudget > 0 && documents.size() > 1) {
+                processScheduled(documents);
+            } else {
+                for (String document : documents) {
+                    outputManager.setCurrentFile(document);
+                    long started = System.nanoTime();
+                    try {
+                        process(document);
+                    } catch (Exception e) {
+                        if (!parser.isOffline()) {
+                            throw e;
+                        }
+                        outputManager.error(new ErrorCollector.Record(document, ErrorCollector.DOCUMENT_FAILED, null, null, null, ParserProfile.describe(e)));
+                    }
+                    if (progress != null) {
+                        progress.documentDone(document, documentSize(document), System.nanoTime() - started);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // keep the postings of the documents indexed before the failure
+            if (index != null) {
+                try {
+                    index.close();
+                } catch (Exception x) {
+                    e.addSuppressed(x);
+                }
+            }
+            throw e;
+        }
+        if (progress != null) {
+            progress.stop();
+        }
+        endRun();
+    }
+
+    /**
+     * prepares for a run: compiles what the run needs and opens columnar
+     * output
+     *
+     * @throws Exception
+     */
+    private void startRun()
+            throws Exception {
+        if (startup != null) {
+            startup.mark("load profile");
+        }
+        if (outputManager == null) {
+            outputManager = new OutputManager();
+        }
+        reportXsltFallback();
+        if (substitutions == null) {
+            // split records are always evaluated over a DOM
+            compile(expressions.keySet(), splitter != null);
+        }
+        if (substitutions == null && columnFormat != 0) {
+            columnarWriter = new ColumnarWriter(outputManager, columnFormat, expressions.keySet().toArray(new String[expressions.size()]));
+            columnarWriter.setMultiValue(multiValue, "|");
+            if (columnarFile != null) {
+                columnarWriter.setBinaryFile(columnarFile);
+            }
+        }
+        if (startup != null) {
+            startup.mark("prepare run");
+        }
+    }
+
+    /**
+     * reports, once, why substitutions are made with the DOM engine rather
+     * than the XSLT engine asked for
+     *
+     * @throws Exception
+     */
+    private void reportXsltFallback()
+            throws Exception {
+        if (xsltFallback != null) {
+            outputManager.error(xsltFallback);
+            xsltFallback = null;
+        }
+    }
+
+    /**
+     * completes a run: closes columnar output, reports any aggregates and
+     * writes out the rest of the index
+     *
+     * @throws Exception
+     */
+    private void endRun()
+            throws Exception {
+        if (columnarWriter != null) {
+            columnarWriter.close();
+            columnarWriter = null;
+        }
+        if (aggregates != null) {
+            for (String label : aggregates.keySet()) {
+                outputManager.output(aggregates.get(label).report(label));
+            }
+        }
+        if (index != null) {
+            index.close();
+        }
+    }
+
+    /**
+     * multi-profile run: several paths and data profiles, each with its own
+     * output, over the same documents. Each document is read and parsed once
+     * for all the profiles; extraction profiles evaluate against the shared
+     * parsed forms and substitution profiles modify their own copy of the
+     * DOM.
+     *
+     * @param profiles one executor per profile, each with its OutputManager
+     * @param documents paths to document files
+     * @param progress reporter to time each document, with all its profiles,
+     * or null
+     * @throws Exception
+     */
+    private static void processProfiles(ArrayList<BulkXpathExecutor> profiles, ArrayList<String> documents, ProgressReporter progress)
+            throws Exception {
+        for (BulkXpathExecutor p : profiles) {
+            p.startRun();
+        }
+        StartupReport startup = profiles.isEmpty() ? null : profiles.get(0).startup;
+        ParserProfile parser = profiles.isEmpty() ? ParserProfile.DEFAULT : profiles.get(0).parser;
+        for (String document : documents) {
+            long started = System.nanoTime();
+            long size = 0;
+            try {
+                byte[] raw = readDocument(document, parser);
+                size = raw.length;
+                if (startup != null) {
+                    startup.mark("read first document");
+                }
+                ParsedDocument pd = new ParsedDocument(document, raw, profiles.size() > 1, parser);
+                for (BulkXpathExecutor p : profiles) {
+                    p.outputManager.setCurrentFile(document);
+                    p.process(pd);
+                }
+            } catch (Exception e) {
+                if (!parser.isOffline()) {
+                    throw e;
+                }
+                profiles.get(0).outputManager.error(new ErrorCollector.Record(document, ErrorCollector.DOCUMENT_FAILED, null, null, null, ParserProfile.describe(e)));
+            }
+            if (startup != null) {
+                startup.mark("process first document");
+            }
+            if (progress != null) {
+                progress.documentDone(document, size, System.nanoTime() - started);
+            }
+        }
+        for (BulkXpathExecutor p : profiles) {
+            p.endRun();
+        }
+    }
+
+    /**
+     * reads a profiles file: one profile per line, with tab separated paths
+     * file, comma separated data files (empty or - for an extraction
+     * profile) and output file (empty or - for stdout). Comments start with
+     * #.
+     *
+     * @param file profiles file
+     * @param profiles receives an executor for each profile
+     * @param threads threads to evaluate each document's labels on
+     * @param patch true for patch mode
+     * @param xslt true to use the XSLT engine for substitution profiles
+     * @param parser how to parse documents
+     * @throws Exception
+     */
+    private static void readProfiles(String file, ArrayList<BulkXpathExecutor> profiles, int threads, boolean patch, boolean xslt, ParserProfile parser)
+            throws Exception {
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        @SuppressWarnings("UnusedAssignment")
+        String line = null;
+        while ((line = br.readLine()) != null) {
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                continue;
+            }
+            String[] s = line.split("\t");
+            BulkXpathExecutor bxe = new BulkXpathExecutor(s[0]);
+            OutputManager om = new OutputManager();
+            if (s.length > 2 && !s[2].trim().isEmpty() && !s[2].trim().contentEquals("-")) {
+                om.setOutputFile(s[2].trim());
+            }
+            bxe.setOutputManager(om);
+            bxe.setOptions(threads, patch, null, xslt, parser);
+            if (s.length > 1 && !s[1].trim().isEmpty() && !s[1].trim().contentEquals("-")) {
+                bxe.setData(readData(s[1].trim().split(",")));
+            }
+            profiles.add(bxe);
+        }
+        br.close();
+    }
+
+    /**
+     * watch mode: keeps the compiled paths and data resident and processes
+     * each file written into the spool directory as soon as it is complete.
+     * Outputs go through the OutputManager, which must be writing a file per
+     * document. They are written under a temporary name in the done directory
+     * and renamed after the document once complete. The input is then moved
+     * to the done directory, or if processing it threw, the partial output is
+     * deleted and the input and its errors are moved to the failed
+     * directory. Runs until the process is stopped.
+     *
+     * @param spool directory to watch
+     * @param done directory for processed documents and their outputs, or
+     * null for spool/done
+     * @param failed directory for documents that could not be processed, or
+     * null for spool/failed
+     * @param settle milliseconds a file's size must be unchanged before it is
+     * taken to be complete
+     * @throws Exception
+     */
+    private void processWatch(String spool, String done, String failed, long settle)
+            throws Exception {
+        Path spoolDir = Paths.get(spool);
+        Path doneDir = (done == null) ? spoolDir.resolve("done") : Paths.get(done);
+        Path failedDir = (failed == null) ? spoolDir.resolve("failed") : Paths.get(failed);
+        Files.createDirectories(doneDir);
+        Files.createDirectories(failedDir);
+        if (outputManager == null) {
+            outputManager = new OutputManager();
+        }
+        reportXsltFallback();
+        if (substitutions == null) {
+            compile(expressions.keySet(), splitter != null);
+        }
+        if (progress != null) {
+            progress.start();
+        }
+        new WatchFolder(spoolDir, settle).run(file -> {
+            Path name = file.getFileName();
+            // WatchFolder ignores names starting with ., so a watch on the
+            // done directory only ever sees complete outputs
+            String partial = doneDir.resolve("." + name + ".part").toString();
+            outputManager.setCurrentFile(doneDir.resolve(name).toString(), partial);
+            Path destination = doneDir;
+            long size = documentSize(file.toString());
+            long started = System.nanoTime();
+            try {
+                process(file.toString());
+            } catch (Exception e) {
+                outputManager.error(new ErrorCollector.Record(file.toString(), ErrorCollector.DOCUMENT_FAILED, null, null, null, e.toString()));
+                destination = failedDir;
+            }
+            if (progress != null) {
+                progress.documentDone(file.toString(), size, System.nanoTime() - started);
+            }
+            outputManager.closeCurrentFile();
+            if (destination == doneDir) {
+                outputManager.moveFiles(partial, doneDir.resolve(name).toString(), doneDir.resolve(name).toString());
+            } else {
+                outputManager.moveFiles(partial, null, failedDir.resolve(name).toString());
+            }
+            Files.move(file, destination.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+        });
+    }
+
+    /**
+     * processes documents from a framed stream until it ends, writing each
+     * document's output as one frame as soon as it has been processed. Every
+     * document gives a frame, empty if it produced no output or could not be
+     * processed, so results can be paired with documents by position. Errors
+     * go to the error destination as usual, against names -#1, -#2 and so
+     * on.
+     *
+     * @param stream documents in and results out
+     * @throws Exception if the stream itself fails
+     */
+    private void processFramed(FramedStream stream)
+            throws Exception {
+        startRun();
+        outputManager.setInMemoryOutput();
+        if (parser.isOffline()) {
+            stream.setMaxSize(parser.getMaxDocumentSize());
+        }
+        if (progress != null) {
+            progress.start();
+        }
+        int count = 0;
+        byte[] frame;
+        while ((frame = stream.read()) != null) {
+            String name = "-#" + (++count);
+            if (startup != null) {
+                startup.mark("read first document");
+            }
+            outputManager.setCurrentFile(name);
+            long started = System.nanoTime();
+            try {
+                // a frame over the size limit has been read as empty
+                parser.checkSize(name, stream.getLastSize());
+                process(new ParsedDocument(name, frame, false, parser));
+            } catch (Exception e) {
+                outputManager.error(new ErrorCollector.Record(name, ErrorCollector.DOCUMENT_FAILED, null, null, null, e.toString()));
+            }
+            if (progress != null) {
+                progress.documentDone(name, stream.getLastSize(), System.nanoTime() - started);
+            }
+            if (startup != null) {
+                startup.mark("process first document");
+            }
+            StringBuilder sb = new StringBuilder();
+            for (String s : outputManager.getOutputs()) {
+                sb.append(s).append("\n");
+            }
+            outputManager.getOutputs().clear();
+            stream.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        if (progress != null) {
+            progress.stop();
+        }
+        endRun();
+    }
+
+    /**
+     * processes documents concurrently, one copy of this executor per thread,
+     * within the heap budget. Results are replayed in document order.
+     *
+     * @param documents ArrayList&lt;String&gt; paths to documents files
+     * @throws Exception
+     */
+    private void processScheduled(ArrayList<String> documents)
+            throws Exception {
+        DocumentScheduler scheduler = new DocumentScheduler(memoryBudget, Runtime.getRuntime().availableProcessors());
+        scheduler.setStreaming(splitter != null);
+        scheduler.setRecordFailures(parser.isOffline());
+        ThreadLocal<BulkXpathExecutor> executors = new ThreadLocal<>();
+        ArrayList<BulkXpathExecutor> copies = new ArrayList<>();
+        scheduler.run(documents, outputManager, (document, om) -> {
+            BulkXpathExecutor bxe = executors.get();
+            if (bxe == null) {
+                bxe = new BulkXpathExecutor(this);
+                executors.set(bxe);
+                synchronized (copies) {
+                    copies.add(bxe);
+                }
+            }
+            bxe.setOutputManager(om);
+            om.setCurrentFile(document);
+            long started = System.nanoTime();
+            try {
+                bxe.process(document);
+            } finally {
+                if (progress != null) {
+                    progress.documentDone(document, documentSize(document), System.nanoTime() - started);
+                }
+            }
+        });
+        if (aggregates != null) {
+            for (BulkXpathExecutor bxe : copies) {
+                for (String label : aggregates.keySet()) {
+                    aggregates.get(label).merge(bxe.aggregates.get(label));
+                }
+            }
+        }
+    }
+
+    /**
+     * sets aggregate mode for extraction runs: instead of a line per label
+     * per document, each label's matches are folded into a LabelAggregate
+     * and one report line per label is output at the end of the run
+     *
+     * @param top number of most frequent values to report for each label
+     */
+    private void setAggregate(int top) {
+        aggregateTop = top;
+        aggregates = new LinkedHashMap<>();
+        for (String label : expressions.keySet()) {
+            aggregates.put(label, new LabelAggregate(top));
+        }
+    }
+
+    /**
+     * sets index mode for extraction runs: each document's values are added
+     * to an inverted index by label and value, as well as being output
+     *
+     * @param i index, which the run closes at its end
+     */
+    private void setIndex(ValueIndex i) {
+        index = i;
+    }
+
+    /**
+     * @param b heap budget in bytes for documents processed concurrently, 0
+     * to process one document at a time
+     */
+    private void setMemoryBudget(long b) {
+        memoryBudget = b;
+    }
+
+    /**
+     * sets the number of threads used to evaluate expressions within each
+     * document
+     *
+     * @param n number of threads, 1 for serial evaluation
+     */
+    private void setThreads(int n) {
+        pool = (n > 1) ? new ForkJoinPool(n) : null;
+    }
+
+    /**
+     * sets the options every mode shares. Set before the data files.
+     *
+     * @param threads threads to evaluate each document's labels on
+     * @param patch true for patch mode
+     * @param split path of the records to split documents into, or null
+     * @param xslt true to use the XSLT engine for substitutions
+     * @param p how to parse documents
+     * @throws Exception if the split path is not one RecordSplitter can
+     * stream
+     */
+    private void setOptions(int threads, boolean patch, String split, boolean xslt, ParserProfile p)
+            throws Exception {
+        setParserProfile(p);
+        setThreads(threads);
+        setPatchMode(patch);
+        setSplitPath(split);
+        setXsltMode(xslt);
+    }
+
+    /**
+     * @param s report to mark the phases of the run in, or null
+     */
+    private void setStartupReport(StartupReport s) {
+        startup = s;
+    }
+
+    /**
+     * @param p reporter to pass each document's size and processing time to,
+     * or null. The run starts and stops it.
+     */
+    private void setProgress(ProgressReporter p) {
+        progress = p;
+    }
+
+    /**
+     * @param b true to patch attribute and text values into the original
+     * bytes when the data files only set values
+     */
+    private void setPatchMode(boolean b) {
+        patchMode = b;
+    }
+
+    /**
+     * @param b true to make substitutions with an XsltEngine where the data
+     * files allow it. Set before the data files.
+     */
+    private void setXsltMode(boolean b) {
+        xsltMode = b;
+    }
+
+    /**
+     * @param path absolute path of the records to split documents into, eg
+     * /fhir:Bundle/fhir:entry, or null to process whole documents
+     * @throws Exception if the path is not one RecordSplitter can stream
+     */
+    private void setSplitPath(String path)
+            throws Exception {
+        splitter = (path == null) ? null : new RecordSplitter(path, nhsdNS);
+        if (splitter != null) {
+            splitter.setParserProfile(parser);
+        }
+    }
+
+    /**
+     * @param p how to parse documents. With the offline profile a document
+     * that fails is reported as an error and the run goes on to the next.
+     */
+    private void setParserProfile(ParserProfile p) {
+        parser = p;
+        if (splitter != null) {
+            splitter.setParserProfile(p);
+        }
+        if (xsltEngine != null) {
+            xsltEngine.setParserProfile(p);
+        }
+    }
+
+    /**
+     * worker side of a Coordinator run. Claims documents from the queue until
+     * none are left, recording the outputs and errors for each one. A failure
+     * on one document is recorded as its error and the worker carries on.
+     *
+     * @param queue shared work queue
+     * @param worker this worker's shard number
+     * @throws Exception
+     */
+    private void processQueue(ShardQueue queue, int worker)
+            throws Exception {
+        int seq = -1;
+        while ((seq = queue.claim(worker)) != -1) {
+            OutputManager om = new OutputManager();
+            om.setInMemoryOutput();
+            om.setInMemoryError();
+            setOutputManager(om);
+            ArrayList<String> d = new ArrayList<>();
+            d.add(queue.getDocument(seq));
+            try {
+                processDocuments(d);
+            } catch (Exception e) {
+                om.error(new ErrorCollector.Record(d.get(0), ErrorCollector.DOCUMENT_FAILED, null, null, null, e.toString()));
+            }
+            queue.complete(seq, om.getOutputs(), om.getErrors());
+        }
+    }
+
+    /**
+     * reads data files. Values are as written, reserved words unresolved.
+     *
+     * @param datafiles String[] of data files
+     * @return values for each label, a later file replacing an earlier one's
+     * values for the same label, or null if there are no data files
+     * @throws Exception
+     */
+    private static LinkedHashMap<String, ArrayList<String>> readData(String[] datafiles)
+            throws Exception {
+
+        if (datafiles == null || datafiles.length == 0) {
+            return null;
+        }
+
+        LinkedHashMap<String, ArrayList<String>> data = new LinkedHashMap<>();
+        for (String datafile : datafiles) {
+            BufferedReader br = new BufferedReader(new FileReader(datafile));
+            @SuppressWarnings("UnusedAssignment")
+            String line = null;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                    continue;
+                }
+                String[] s = line.split("\t");
+                ArrayList<String> list = new ArrayList<>();
+                for (int i = 1; i < s.length; i++) {
+                    list.add(s[i]);
+                }
+                data.put(s[0], list);
+            }
+            br.close();
+        }
+        return data;
+    }
+
+    /**
+     * resolves reserved words in data values and populates substitutions
+     *
+     * @param data values for each label from readData() or a snapshot, null
+     * for an extraction run
+     * @throws Exception
+     */
+    private void setData(LinkedHashMap<String, ArrayList<String>> data)
+            throws Exception {
+
+        if (data == null) {
+            return;
+        }
+
+        substitutions = new HashMap<>();
+        for (String label : data.keySet()) {
+            ArrayList<String> list = new ArrayList<>();
+            for (String v : data.get(label)) {
+                if (v.startsWith("$")) {
+                    list.add(resolveFunction(v).trim());
+                } else {
+                    list.add(v);
+                }
+            }
+            substitutions.put(label, list);
+        }
+        makePlan();
+    }
+
+    /**
+     * works out which expressions substitution mode needs to evaluate, so that
+     * the work done per document scales with the data files rather than with
+     * the paths file. Only labels with substitutions are ever modified. A
+     * $label reference is resolved from the referenced label's substitutions,
+     * not from its nodes, so it does not add anything to evaluate.
+     *
+     * @throws Exception if a planned xpath does not compile
+     */
+    private void makePlan()
+            throws Exception {
+        plan = new ArrayList<>();
+        valueOnly = true;
+        for (String label : expressions.keySet()) {
+            ArrayList<String> subs = substitutions.get(label);
+            if (subs != null && !subs.isEmpty()) {
+                plan.add(label);
+                if (expressions.get(label).getCompactPath() == null) {
+                    valueOnly = false;
+                }
+                for (String v : subs) {
+                    if (v != null && (v.startsWith("xmlfragment:") || v.equals(RESERVED_WORD_DELETE))) {
+                        valueOnly = false;
+                    }
+                }
+            }
+        }
+        // paths from a snapshot are known to compile, so only those the DOM
+        // pass will evaluate are compiled now; any others are compiled if a
+        // fallback needs them
+        compile(plan, !validated || (pool == null && !xsltMode && !(patchMode && valueOnly)));
+        if (xsltMode) {
+            try {
+                xsltEngine = makeXslt();
+            } catch (Exception e) {
+                // reported through the OutputManager when the run starts
+                xsltFallback = "Using the DOM engine: " + e.getMessage();
+            }
+        }
+    }
+
+    /**
+     * compiles the planned substitutions into an XsltEngine, with the same
+     * semantics as substitute()
+     *
+     * @return the engine
+     * @throws Exception saying why, if the substitutions cannot all be made
+     * by XSLT
+     */
+    private XsltEngine makeXslt()
+            throws Exception {
+        XsltEngine engine = new XsltEngine(nhsdNS);
+        engine.setParserProfile(parser);
+        for (String expression : plan) {
+            ArrayList<String> subs = substitutions.get(expression);
+            // every position past the end of subs, and of any label it
+            // references, is substituted the same way
+            int bound = subs.size();
+            for (String v : subs) {
+                if (v.startsWith("$") && substitutions.containsKey(v.substring(1))) {
+                    bound = Math.max(bound, substitutions.get(v.substring(1)).size());
+                }
+            }
+            ArrayList<XsltEngine.Action> actions = new ArrayList<>();
+            for (int i = 0; i <= bound; i++) {
+                actions.add(xsltAction(expression, subs, i));
+            }
+            engine.add(expression, expressions.get(expression).getXpath(), actions);
+        }
+        engine.compile();
+        return engine;
+    }
+
+    /**
+     * @param expression label
+     * @param subs label's substitutions
+     * @param i index of the node being substituted
+     * @return what substitute() does to the node
+     * @throws Exception if that depends on the node's value
+     */
+    private XsltEngine.Action xsltAction(String expression, ArrayList<String> subs, int i)
+            throws Exception {
+        String v = null;
+        try {
+            v = subs.get(i);
+        } catch (IndexOutOfBoundsException e) {
+            v = subs.get(0);
+            if (v == null || v.trim().isEmpty()) {
+                return XsltEngine.Action.value("");
+            }
+        }
+        if (v.startsWith("xmlfragment:")) {
+            return XsltEngine.Action.fragment(v.substring("xmlfragment:".length()));
+        }
+        if (v.startsWith("$")) {
+            if (v.equals(RESERVED_WORD_DELETE)) {
+                return XsltEngine.Action.delete();
+            }
+            if (v.startsWith(RESERVED_WORD_VALUEDATEOFFSET)) {
+                throw new Exception("Label " + expression + " uses " + RESERVED_WORD_VALUEDATEOFFSET + ", which needs the DOM");
+            }
+            String r = resolveReference(v, i);
+            if (r != null) {
+                return XsltEngine.Action.value(r);
+            }
+            return XsltEngine.Action.error(ErrorCollector.message(ErrorCollector.UNDEFINED_REFERENCE, null, expression, null, null, v));
+        }
+        return XsltEngine.Action.value(v);
+    }
+
+    /**
+     * evaluates reserved words
+     *
+     * @param s name of reserved word
+     * @return evaluates substitution
+     */
+    private String resolveFunction(String s) {
+
+        // TODO: Add ISO8601 duration offsets to $TIME and $DATE
+        if (s.contentEquals(RESERVED_WORD_TIME)) {
+            return ISO8601TIME.format(LocalDateTime.now());
+        }
+        if (s.contentEquals(RESERVED_WORD_DATE)) {
+            return ISO8601DATE.format(LocalDate.now());
+        }
+        // $TODAY is a timestamp starting at 00:00:00 today.
+        if (s.contentEquals(RESERVED_WORD_TODAY)) {
+            return ISO8601TIME.format(LocalDate.now().atStartOfDay());
+        }
+
+        if (s.startsWith(RESERVED_WORD_TIME)) {
+            return resolveOffset(s, false);
+        }
+        if (s.startsWith(RESERVED_WORD_DATE)) {
+            return resolveOffset(s, true);
+        }
+        if (s.startsWith(RESERVED_WORD_TODAY)) {
+            return resolveOffset(s, false);
+        }
+        if (s.startsWith(RESERVED_WORD_UUID)) {
+            return UUID.randomUUID().toString().toLowerCase();
+        }
+        // Reference to something else, which we'll resolve as we need it
+        //
+        return s;
+    }
+
+    /**
+     *
+     * @param spec String specification of date or time eg $TODAYPT9H
+     * @param dt date or time boolean true means date
+     * @return resolved time/date string
+     */
+    private String resolveOffset(String spec, boolean dt) {
+
+        String durationStr = null;
+        Instant now = null;
+        if (spec.startsWith(RESERVED_WORD_TODAY)) {
+            durationStr = spec.substring(RESERVED_WORD_TODAY.length()).trim();
+            LocalTime midnight = LocalTime.MIDNIGHT;
+            LocalDate today = LocalDate.now(ZoneId.of("Europe/London"));
+            LocalDateTime todayMidnight = LocalDateTime.of(today, midnight);
+            // TODO I don't understand why this appears to work during BST
+            now = todayMidnight.toInstant(ZoneOffset.UTC);
+        } else {
+            durationStr = spec.substring(RESERVED_WORD_TIME.length()).trim();
+            now = Instant.now();
+        }
+
+        Duration offset = Duration.parse(durationStr);
+
+        @SuppressWarnings("UnusedAssignment")
+        Instant then = null;
+        then = now.plus(offset);
+        // Should be ISO-8601 anyway
+        if (!dt) {
+            return then.toString().substring(0, 19);
+        }
+        String t = then.toString();
+        return t.substring(0, t.indexOf("T"));
+    }
+
+    /**
+     * processes input document
+     *
+     * @param doc String containing path to xml document
+     * @throws Exception
+     */
+    private void process(String doc)
+            throws Exception {
+
+        if (splitter != null) {
+            processRecords(doc);
+        } else {
+            byte[] raw = readDocument(doc, parser);
+            if (startup != null) {
+                startup.mark("read first document");
+            }
+            process(new ParsedDocument(doc, raw, false, parser));
+        }
+        if (startup != null) {
+            startup.mark("process first document");
+        }
+    }
+
+    /**
+     * processes a document that has been read, and possibly parsed for
+     * another profile
+     *
+     * @param pd document
+     * @throws Exception
+     */
+    private void process(ParsedDocument pd)
+            throws Exception {
+        if (substitutions == null) {
+            extract(pd);
+            return;
+        }
+        if (patchMode && valueOnly && patch(pd)) {
+            return;
+        }
+        if (xsltEngine != null) {
+            try (Writer w = outputManager.openOutput()) {
+                xsltEngine.transform(pd.getRaw(), pd.getName(), w, outputManager);
+            }
+            return;
+        }
+        Document d = pd.getDocumentCopy();
+        HashMap<String, NodeList> nodelists = new HashMap<>();
+        if (pool != null) {
+            evaluateParallel(pd, d, nodelists);
+        }
+        if (substitute(d, d, nodelists)) {
+            outputManager.output(getStringFromDoc(d));
+        } else {
+            // nothing matched or every value was already set
+            outputManager.outputUnmodified(pd.getName(), pd.getRaw());
+        }
+    }
+
+    /**
+     * makes the planned substitutions in a DOM
+     *
+     * @param d document to modify
+     * @param context node the expressions are evaluated against, the document
+     * or a split record's root element
+     * @param nodelists results already evaluated, by label
+     * @return true if the document was modified
+     * @throws Exception
+     */
+    private boolean substitute(Document d, Node context, HashMap<String, NodeList> nodelists)
+            throws Exception {
+        boolean modified = false;
+        // labels sharing an xpath share its nodelist
+        IdentityHashMap<DescribedXPath, NodeList> evaluated = new IdentityHashMap<>();
+        for (String label : nodelists.keySet()) {
+            evaluated.put(expressions.get(label), nodelists.get(label));
+        }
+        // first pass constructs and caches all the nodelists, the second pass makes the substitutions.
+        // This avoids conflicts around modifying a dom that you are still querying
+        for (int pass = 0; pass < 2; pass++) {
+            for (String expression : plan) {
+                DescribedXPath xp = expressions.get(expression);
+                if (pass == 0) {
+                    if (nodelists.containsKey(expression)) {
+                        continue;
+                    }
+                    NodeList nl = evaluated.get(xp);
+                    if (nl == null) {
+                        XPathExpression exp = xp.getExpression();
+                        nl = (NodeList) exp.evaluate(context, XPathConstants.NODESET);
+                        evaluated.put(xp, nl);
+                    }
+                    nodelists.put(expression, nl);
+                } else {
+                    NodeList nl = nodelists.get(expression);
+                    // substitutions driven by datafile
+                    ArrayList<String> subs = substitutions.get(expression);
+                    if (subs == null || subs.isEmpty()) {
+                        continue;
+                    }
+                    for (int i = 0; i < nl.getLength(); i++) {
+                        Node n = nl.item(i);
+
+                        String v = null;
+                        // There can be > 1 substitutions to match multiple matches but if there aren't just use the first one
+                        // and if there isnt one at all set an empty string. This is not fhir valid xml but that will be trapped
+                        // by subsequent fhir validation
+                        try {
+                            v = subs.get(i);
+                        } catch (IndexOutOfBoundsException e) {
+                            v = subs.get(0);
+                            if (v == null || v.trim().isEmpty()) {
+                                modified |= setValue(n, "");
+                                continue;
+                            }
+                        }
+                        if (v.startsWith("xmlfragment:")) {
+                            if (n.getNodeType() == Node.ELEMENT_NODE) {
+                                Element elem = getElement(v.substring("xmlfragment:".length()));
+                                elem = (Element) d.importNode(elem, true);
+                                n.getParentNode().replaceChild(elem, n);
+                                modified = true;
+                            } else {
+                                outputManager.error(ErrorCollector.FRAGMENT_TARGET, expression, xp.getXpath(), n.getLocalName(), v.substring("xmlfragment:".length()));
+                            }
+                        } else {
+                            if (v.startsWith("$")) {
+                                if (v.equals(RESERVED_WORD_DELETE)) {
+                                    if (n.getParentNode() != null) {
+                                        // System.err.println("Deleting " + n.getLocalName() + " "+ n.getAttributes().getNamedItem("value"));
+                                        // n needs to be an element not an attribute. Attributes don't have parents
+                                        n.getParentNode().removeChild(n);
+                                        modified = true;
+                                    } else {
+                                        outputManager.error(ErrorCollector.DELETE_NO_PARENT, expression, xp.getXpath(), n.getLocalName(), null);
+                                    }
+                                    continue;
+                                } else if (v.startsWith(RESERVED_WORD_VALUEDATEOFFSET)) {
+                                    String dateStr = offsetDate(n.getNodeValue(), v);
+                                    if (dateStr != null) {
+                                        modified |= setValue(n, dateStr);
+                                    } else {
+                                        outputManager.error(ErrorCollector.MALFORMED_DATE, expression, xp.getXpath(), n.getLocalName(), n.getNodeValue());
+                                    }
+                                    continue;
+                                }
+                                String r = resolveReference(v, i);
+                                if (r != null) {
+                                    modified |= setValue(n, r);
+                                } else {
+                                    undefinedReference(expression, v);
+                                }
+                            } else {
+                                modified |= setValue(n, v);
+                            }
+                        } // if xml fragment
+                    } // for nodelist
+                } // second pass
+            } // for expression
+        } // for pass
+        return modified;
+    }
+
+    /**
+     * record splitting mode: streams the document and processes each record
+     * as a small document of its own, with expressions evaluated relative to
+     * the record element, so memory use depends on the largest record rather
+     * than the whole file. Extraction outputs the results for each record in
+     * turn. Substitution streams the envelope back out with each record
+     * replaced by its modified form; unmodified records are copied as read,
+     * with the namespaces in scope declared on the record element.
+     *
+     * @param doc String containing path to xml document
+     * @throws Exception
+     */
+    private void processRecords(String doc)
+            throws Exception {
+        @SuppressWarnings("UnusedAssignment")
+        InputStream in = null;
+        if (doc.contentEquals("-")) {
+            in = System.in;
+        } else {
+            in = new FileInputStream(doc);
+        }
+        recordCount = 0;
+        try {
+            if (substitutions == null) {
+                splitter.split(in, null, record -> {
+                    extractRecord(doc, parse(record, parser).getDocumentElement());
+                    return null;
+                });
+            } else {
+                try (Writer w = outputManager.openOutput()) {
+                    splitter.split(in, w, record -> substituteRecord(record));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param record a split record as a standalone document
+     * @return the record after substitution, or null if it was deleted
+     * @throws Exception
+     */
+    private String substituteRecord(String record)
+            throws Exception {
+        Document d = parse(record, parser);
+        if (!substitute(d, d.getDocumentElement(), new HashMap<>())) {
+            return record;
+        }
+        if (d.getDocumentElement() == null) {
+            return null;
+        }
+        return getStringFromNode(d.getDocumentElement());
+    }
+
+    /**
+     * extraction output for one split record. Each record is reported like a
+     * document; in columnar output the document column is the file name and
+     * the record's position in it, eg bundle.xml#3
+     *
+     * @param doc String containing path to xml document
+     * @param record root element of the record
+     * @throws Exception
+     */
+    private void extractRecord(String doc, Element record)
+            throws Exception {
+        recordCount++;
+        ArrayList<StringBuilder> lines = new ArrayList<>();
+        ArrayList<ArrayList<String>> matched = new ArrayList<>();
+        IdentityHashMap<DescribedXPath, NodeList> evaluated = new IdentityHashMap<>();
+        for (String expression : expressions.keySet()) {
+            StringBuilder sb = new StringBuilder(expression);
+            ArrayList<String> values = new ArrayList<>();
+            DescribedXPath xp = expressions.get(expression);
+            NodeList nl = evaluated.get(xp);
+            if (nl == null) {
+                nl = evaluateDom(xp, record);
+                evaluated.put(xp, nl);
+            }
+            appendMatches(expression, nl, sb, values);
+            lines.add(sb);
+            matched.add(values);
+        }
+        if (index != null) {
+            indexDocument = index.addDocument(doc + "#" + recordCount);
+        }
+        ArrayList<ArrayList<String>> row = emitAll(lines, matched);
+        if (columnarWriter != null) {
+            columnarWriter.writeRow(doc + "#" + recordCount, row);
+        }
+    }
+
+    /**
+     * sets a node value, noting whether that changed anything
+     *
+     * @param n node
+     * @param v new value
+     * @return true if the document was modified
+     */
+    private boolean setValue(Node n, String v) {
+        String current = n.getNodeValue();
+        if (current == null || current.equals(v)) {
+            // includes elements, for which setNodeValue does nothing
+            return false;
         }
-        if (s.startsWith(RESERVED_WORD_UUID)) {
-            return UUID.randomUUID().toString().toLowerCase();
+        n.setNodeValue(v);
+        return true;
+    }
+
+    /**
+     * applies a $VALUEDATEOFFSET substitution to the date part of the source
+     * document field. The string may be a date only or date time field with
+     * trailing chars but the duration must be days only with no hours, mins
+     * or secs
+     *
+     * @param dateStr current value of the field
+     * @param v substitution, $VALUEDATEOFFSET followed by an ISO8601 duration
+     * @return offset date, or null if dateStr is not a well formed date
+     */
+    private String offsetDate(String dateStr, String v) {
+        // see https://www.hl7.org/fhir/datatypes.html#dateTime
+        if (!dateStr.matches("^([0-9]([0-9]([0-9][1-9]|[1-9]0)|[1-9]00)|[1-9]000)(-(0[1-9]|1[0-2])(-(0[1-9]|[1-2][0-9]|3[0-1])(T([01][0-9]|2[0-3]):[0-5][0-9]:([0-5][0-9]|60)(\\.[0-9]+)?(Z|(\\+|-)((0[0-9]|1[0-3]):[0-5][0-9]|14:00)))?)?)?$")) {
+            return null;
         }
-        // Reference to something else, which we'll resolve as we need it
-        //
-        return s;
+        final int DATE_LENGTH = 10;
+        String durationsStr = v.substring(RESERVED_WORD_VALUEDATEOFFSET.length()).trim();
+        Duration duration = Duration.parse(durationsStr);
+        LocalDate localDate = LocalDate.parse(dateStr.substring(0, DATE_LENGTH));
+
+        // bump the date
+        localDate = localDate.plus(duration.toDays(), ChronoUnit.DAYS);
+
+        // replace the initial date part
+        dateStr = dateStr.replaceFirst("^.{" + DATE_LENGTH + "}", localDate.toString().substring(0, DATE_LENGTH));
+
+        if (dateStr.matches("^.*\\+0[01]:00$")) {
+            // if there's a timezone string appended adjust the timezone for the time of year
+            Instant instant = localDate.atStartOfDay(ZoneId.systemDefault()).toInstant();
+            Date date = Date.from(instant);
+            if (TimeZone.getDefault().inDaylightTime(date)) {
+                dateStr = dateStr.replaceFirst("\\+0[01]:00$", "\\+01:00");
+            } else {
+                dateStr = dateStr.replaceFirst("\\+0[01]:00$", "\\+00:00");
+            }
+        }
+        return dateStr;
     }
 
     /**
+     * resolves a $label reference to another label's substitutions
      *
-     * @param spec String specification of date or time eg $TODAYPT9H
-     * @param dt date or time boolean true means date
-     * @return resolved time/date string
+     * @param v reference
+     * @param i index of the node being substituted
+     * @return the referenced value, "" if it is empty, or null if the label
+     * is not defined
      */
-    private String resolveOffset(String spec, boolean dt) {
+    private String resolveReference(String v, int i) {
+        ArrayList<String> vs = substitutions.get(v.substring(1));
+        if (vs == null) {
+            return null;
+        }
+        try {
+            v = vs.get(i);
+        } catch (IndexOutOfBoundsException e) {
+            v = vs.get(0);
+        }
+        if (v != null && !v.trim().isEmpty()) {
+            return v;
+        }
+        return "";
+    }
 
-        String durationStr = null;
-        Instant now = null;
-        if (spec.startsWith(RESERVED_WORD_TODAY)) {
-            durationStr = spec.substring(RESERVED_WORD_TODAY.length()).trim();
-            LocalTime midnight = LocalTime.MIDNIGHT;
-            LocalDate today = LocalDate.now(ZoneId.of("Europe/London"));
-            LocalDateTime todayMidnight = LocalDateTime.of(today, midnight);
-            // TODO I don't understand why this appears to work during BST
-            now = todayMidnight.toInstant(ZoneOffset.UTC);
+    private void undefinedReference(String expression, String v)
+            throws Exception {
+        outputManager.error(ErrorCollector.UNDEFINED_REFERENCE, expression, expressions.get(expression).getXpath(), null, v);
+    }
+
+    /**
+     * patch mode: when every substitution just sets an attribute or text
+     * value, splice the new values into the original bytes instead of
+     * building and re-serialising a DOM. Everything outside the replaced
+     * values, including whitespace, quoting and namespace declarations, is
+     * output byte for byte.
+     *
+     * @param pd document
+     * @return false, having done nothing, if the document has to go through
+     * the DOM instead
+     * @throws Exception
+     */
+    private boolean patch(ParsedDocument pd)
+            throws Exception {
+        String doc = pd.getName();
+        byte[] raw = pd.getRaw();
+        if (!isUtf8(pd.getContent())) {
+            return false;
+        }
+        CompactDocument cd = pd.getCompact();
+        int[][] results = evaluateCompact(cd, plan);
+        TreeMap<Integer, String> changes = new TreeMap<>();
+        for (int[] r : results) {
+            for (int n : r) {
+                byte k = cd.getKind(n);
+                if (k == CompactDocument.ATTRIBUTE || k == CompactDocument.TEXT) {
+                    changes.put(n, null);
+                }
+            }
+        }
+        int[] targets = new int[changes.size()];
+        int t = 0;
+        for (int n : changes.keySet()) {
+            targets[t++] = n;
+        }
+        ByteRangeScanner scanner = new ByteRangeScanner(raw);
+        if (!scanner.scan(targets) || scanner.getNodeCount() != cd.size()) {
+            return false;
+        }
+        for (int k = 0; k < targets.length; k++) {
+            if (scanner.isComplex(k)) {
+                return false;
+            }
+        }
+        // same semantics as the second pass over the DOM, except that element
+        // nodes are left alone since setting their value has no effect
+        for (int p = 0; p < plan.size(); p++) {
+            String expression = plan.get(p);
+            ArrayList<String> subs = substitutions.get(expression);
+            for (int i = 0; i < results[p].length; i++) {
+                int n = results[p][i];
+                if (!changes.containsKey(n)) {
+                    continue;
+                }
+                String current = (changes.get(n) == null) ? cd.getNodeValue(n) : changes.get(n);
+                String v = null;
+                try {
+                    v = subs.get(i);
+                } catch (IndexOutOfBoundsException e) {
+                    v = subs.get(0);
+                    if (v == null || v.trim().isEmpty()) {
+                        changes.put(n, "");
+                        continue;
+                    }
+                }
+                if (v.startsWith(RESERVED_WORD_VALUEDATEOFFSET)) {
+                    String dateStr = offsetDate(current, v);
+                    if (dateStr != null) {
+                        changes.put(n, dateStr);
+                    } else {
+                        outputManager.error(ErrorCollector.MALFORMED_DATE, expression, expressions.get(expression).getXpath(), cd.getLocalName(n), current);
+                    }
+                } else if (v.startsWith("$")) {
+                    String r = resolveReference(v, i);
+                    if (r != null) {
+                        changes.put(n, r);
+                    } else {
+                        undefinedReference(expression, v);
+                    }
+                } else {
+                    changes.put(n, v);
+                }
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length + 1024);
+        int copied = 0;
+        for (int k = 0; k < targets.length; k++) {
+            String v = changes.get(targets[k]);
+            if (v == null || v.equals(cd.getNodeValue(targets[k]))) {
+                continue;
+            }
+            out.write(raw, copied, scanner.getStart(k) - copied);
+            out.write(escape(v, scanner.getQuote(k)).getBytes(StandardCharsets.UTF_8));
+            copied = scanner.getEnd(k);
+        }
+        if (copied == 0) {
+            outputManager.outputUnmodified(doc, raw);
+            return true;
+        }
+        out.write(raw, copied, raw.length - copied);
+        outputManager.output(out.toString("UTF-8"));
+        return true;
+    }
+
+    /**
+     * @param content decoded document
+     * @return true unless the xml declaration names an encoding other than
+     * UTF-8 (or its ASCII subset)
+     */
+    private boolean isUtf8(String content) {
+        String s = content.startsWith("\uFEFF") ? content.substring(1) : content;
+        if (!s.startsWith("<?xml")) {
+            return true;
+        }
+        int end = s.indexOf("?>");
+        String decl = (end == -1) ? s : s.substring(0, end);
+        Matcher m = Pattern.compile("encoding\\s*=\\s*[\"']([^\"']+)[\"']").matcher(decl);
+        if (!m.find()) {
+            return true;
+        }
+        String enc = m.group(1).toUpperCase();
+        return enc.contentEquals("UTF-8") || enc.contentEquals("UTF8") || enc.contentEquals("US-ASCII") || enc.contentEquals("ASCII");
+    }
+
+    /**
+     * escapes a value for the place it is spliced into
+     *
+     * @param v value
+     * @param quote quote character around an attribute value, or 0 for text
+     * @return escaped value
+     */
+    private static String escape(String v, byte quote) {
+        StringBuilder sb = new StringBuilder(v.length() + 16);
+        for (int i = 0; i < v.length(); i++) {
+            char c = v.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '"':
+                    sb.append(quote == '"' ? "&quot;" : "\"");
+                    break;
+                case '\'':
+                    sb.append(quote == '\'' ? "&apos;" : "'");
+                    break;
+                case '\t':
+                case '\n':
+                case '\r':
+                    // attribute value normalisation would turn these into spaces
+                    if (quote != 0) {
+                        sb.append("&#").append((int) c).append(';');
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * parallel first pass for substitution mode. The Xerces DOM is not safe
+     * for concurrent reads, so the planned expressions that CompactXPath can
+     * handle are evaluated across the pool against an immutable
+     * CompactDocument of the same text, and the results mapped back to DOM
+     * nodes. Anything not evaluated here is left for the serial first pass.
+     *
+     * @param pd document
+     * @param d DOM of the document
+     * @param nodelists receives a NodeList for each expression evaluated
+     * @throws Exception
+     */
+    private void evaluateParallel(ParsedDocument pd, Document d, HashMap<String, NodeList> nodelists)
+            throws Exception {
+        CompactDocument cd = pd.getCompact();
+        ArrayList<String> labels = new ArrayList<>();
+        for (String label : plan) {
+            if (expressions.get(label).getCompactPath() != null) {
+                labels.add(label);
+            }
+        }
+        int[][] results = evaluateCompact(cd, labels);
+        Node[] nodes = cd.mapNodes(d);
+        if (nodes == null) {
+            return;
+        }
+        for (int i = 0; i < labels.size(); i++) {
+            nodelists.put(labels.get(i), new CompactNodeList(nodes, results[i]));
+        }
+    }
+
+    /**
+     * evaluates expressions against a CompactDocument, in parallel if threads
+     * have been set
+     *
+     * @param cd document
+     * @param labels labels of expressions that have compact paths
+     * @return node ids matched by each expression, in label order
+     * @throws Exception
+     */
+    private int[][] evaluateCompact(CompactDocument cd, ArrayList<String> labels)
+            throws Exception {
+        // each distinct path is evaluated once
+        ArrayList<CompactXPath> unique = new ArrayList<>();
+        IdentityHashMap<CompactXPath, Integer> index = new IdentityHashMap<>();
+        for (String label : labels) {
+            CompactXPath cp = expressions.get(label).getCompactPath();
+            if (!index.containsKey(cp)) {
+                index.put(cp, unique.size());
+                unique.add(cp);
+            }
+        }
+        // extraction hints let a path stop early
+        int[] limit = new int[unique.size()];
+        if (substitutions == null) {
+            for (String label : labels) {
+                DescribedXPath xp = expressions.get(label);
+                limit[index.get(xp.getCompactPath())] = xp.getLimit();
+            }
+        }
+        int[][] distinct = new int[unique.size()][];
+        if (pool == null) {
+            for (int i = 0; i < distinct.length; i++) {
+                distinct[i] = unique.get(i).evaluate(cd, limit[i]);
+            }
         } else {
-            durationStr = spec.substring(RESERVED_WORD_TIME.length()).trim();
-            now = Instant.now();
+            pool.submit(() -> IntStream.range(0, distinct.length).parallel()
+                    .forEach(i -> distinct[i] = unique.get(i).evaluate(cd, limit[i]))).get();
         }
+        int[][] results = new int[labels.size()][];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = distinct[index.get(expressions.get(labels.get(i)).getCompactPath())];
+        }
+        return results;
+    }
 
-        Duration offset = Duration.parse(durationStr);
+    /**
+     * One input document, read once, with its parsed forms built when first
+     * needed. When several profiles process the same document the parsed
+     * forms are shared: extraction only reads them, and substitution works
+     * on a copy of the DOM.
+     */
+    private static class ParsedDocument {
 
-        @SuppressWarnings("UnusedAssignment")
-        Instant then = null;
-        then = now.plus(offset);
-        // Should be ISO-8601 anyway
-        if (!dt) {
-            return then.toString().substring(0, 19);
+        private final String name;
+        private final byte[] raw;
+        private final boolean shared;
+        private final ParserProfile parser;
+        private String content = null;
+        private CompactDocument compact = null;
+        private Document dom = null;
+
+        /**
+         * @param n path to the document, or - for stdin
+         * @param r the document's bytes
+         * @param s true if more than one profile will process the document
+         * @param p how to parse the document
+         */
+        ParsedDocument(String n, byte[] r, boolean s, ParserProfile p) {
+            name = n;
+            raw = r;
+            shared = s;
+            parser = p;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        byte[] getRaw() {
+            return raw;
+        }
+
+        String getContent() {
+            if (content == null) {
+                content = new String(raw, StandardCharsets.UTF_8);
+            }
+            return content;
+        }
+
+        CompactDocument getCompact()
+                throws Exception {
+            if (compact == null) {
+                compact = CompactDocument.parse(new StringReader(getContent()), parser);
+            }
+            return compact;
+        }
+
+        /**
+         * @return the DOM, which must not be modified
+         * @throws Exception
+         */
+        Document getDocument()
+                throws Exception {
+            if (dom == null) {
+                dom = parse(getContent(), parser);
+            }
+            return dom;
+        }
+
+        /**
+         * @return a DOM that the caller may modify
+         * @throws Exception
+         */
+        Document getDocumentCopy()
+                throws Exception {
+            if (!shared) {
+                return parse(getContent(), parser);
+            }
+            // cloning is cheaper than parsing again
+            return (Document) getDocument().cloneNode(true);
         }
-        String t = then.toString();
-        return t.substring(0, t.indexOf("T"));
     }
 
     /**
-     * processes input document
+     * NodeList over DOM nodes selected by CompactDocument node ids
+     */
+    private static class CompactNodeList
+            implements NodeList {
+
+        private final Node[] nodes;
+        private final int[] ids;
+
+        CompactNodeList(Node[] n, int[] i) {
+            nodes = n;
+            ids = i;
+        }
+
+        @Override
+        public Node item(int index) {
+            return (index < 0 || index >= ids.length) ? null : nodes[ids[index]];
+        }
+
+        @Override
+        public int getLength() {
+            return ids.length;
+        }
+    }
+
+    /**
+     * extraction only run, no data file so generate datafile like output.
+     * Nothing is modified so the document is loaded as a CompactDocument, and
+     * a DOM is only built if some expression is outside the subset that
+     * CompactXPath can evaluate.
      *
-     * @param doc String containing path to xml document
+     * @param pd document
      * @throws Exception
      */
-    private void process(String doc)
+    private void extract(ParsedDocument pd)
             throws Exception {
+        String doc = pd.getName();
+        CompactDocument cd = pd.getCompact();
+        ArrayList<String> labels = new ArrayList<>();
+        for (String label : expressions.keySet()) {
+            if (expressions.get(label).getCompactPath() != null) {
+                labels.add(label);
+            }
+        }
+        int[][] results = evaluateCompact(cd, labels);
+        Document d = null;
+        IdentityHashMap<DescribedXPath, NodeList> evaluated = new IdentityHashMap<>();
+        ArrayList<StringBuilder> lines = new ArrayList<>();
+        ArrayList<ArrayList<String>> matched = new ArrayList<>();
+        int r = 0;
+        for (String expression : expressions.keySet()) {
+            DescribedXPath xp = expressions.get(expression);
+            StringBuilder sb = new StringBuilder(expression);
+            ArrayList<String> values = new ArrayList<>();
+            if (xp.getCompactPath() != null) {
+                int[] matches = results[r++];
+                int count = matchLimit(expression, matches.length);
+                for (int k = 0; k < count; k++) {
+                    int n = matches[k];
+                    appendMatch(sb, cd.getNamespaceURI(n), cd.getNodeValue(n));
+                    values.add(cd.getNodeValue(n));
+                }
+            } else {
+                if (d == null) {
+                    d = pd.getDocument();
+                }
+                NodeList nl = evaluated.get(xp);
+                if (nl == null) {
+                    nl = evaluateDom(xp, d);
+                    evaluated.put(xp, nl);
+                }
+                appendMatches(expression, nl, sb, values);
+            }
+            lines.add(sb);
+            matched.add(values);
+        }
+        // nothing is output or indexed until every label has been
+        // evaluated, so a failure leaves no partial output for the document
+        if (index != null) {
+            indexDocument = index.addDocument(doc);
+        }
+        ArrayList<ArrayList<String>> row = emitAll(lines, matched);
+        if (columnarWriter != null) {
+            columnarWriter.writeRow(doc, row);
+        }
+    }
 
-        @SuppressWarnings("UnusedAssignment")
-        Document d = getDocument(doc);
-        HashMap<String, NodeList> nodelists = new HashMap<>();
-        // first pass constructs and caches all the nodelists, the second pass makes the substitutions.
-        // This avoids conflicts around modifying a dom that you are still querying
-        for (int pass = 0; pass < 2; pass++) {
-            for (String expression : expressions.keySet()) {
-                DescribedXPath xp = expressions.get(expression);
-                if (pass == 0) {
-                    XPathExpression exp = xp.getExpression();
-                    NodeList nl = (NodeList) exp.evaluate(d, XPathConstants.NODESET);
-                    nodelists.put(expression, nl);
-                } else {
-                    // no substitutions ie no data file so generate datafile like output
-                    NodeList nl = nodelists.get(expression);
-                    if (substitutions == null) {
-                        StringBuilder sb = new StringBuilder(expression);
-                        //sb.append(System.getProperty("line.separator"));
-                        for (int i = 0; i < nl.getLength(); i++) {
-                            Node n = nl.item(i);
-                            String nsuri = n.getNamespaceURI();
-                            if (nsuri != null) {
-                                sb.append(nsuri);
-                                sb.append(":");
-                            }
-                            if (n.getNodeType() == Node.ATTRIBUTE_NODE) {
-                                //sb.append("@");
-                            }
-                            //sb.append(n.getNodeName());
-                            sb.append("\t");
-                            sb.append(n.getNodeValue());
-                            // sb.append(System.getProperty("line.separator"));
-                        }
-                        outputManager.output(sb.toString());
-                    } else {
-                        // substitutions driven by datafile
-                        ArrayList<String> subs = substitutions.get(expression);
-                        if (subs == null || subs.isEmpty()) {
-                            continue;
-                        }
-                        for (int i = 0; i < nl.getLength(); i++) {
-                            Node n = nl.item(i);
-
-                            String v = null;
-                            // There can be > 1 substitutions to match multiple matches but if there aren't just use the first one
-                            // and if there isnt one at all set an empty string. This is not fhir valid xml but that will be trapped
-                            // by subsequent fhir validation
-                            try {
-                                v = subs.get(i);
-                            } catch (IndexOutOfBoundsException e) {
-                                v = subs.get(0);
-                                if (v == null || v.trim().isEmpty()) {
-                                    n.setNodeValue("");
-                                    continue;
-                                }
-                            }
-                            if (v.startsWith("xmlfragment:")) {
-                                if (n.getNodeType() == Node.ELEMENT_NODE) {
-                                    Element elem = getElement(v.substring("xmlfragment:".length()));
-                                    elem = (Element) d.importNode(elem, true);
-                                    n.getParentNode().replaceChild(elem, n);
-                                } else {
-                                    StringBuilder erep = new StringBuilder("WARNING: Ignoring substitution. Attempt to substitute XML fragment ");
-                                    erep.append(v.substring("xmlfragment:".length()));
-                                    erep.append(" into non-element location ");
-                                    erep.append(xp.getXpath());
-                                    erep.append(": XML fragment substitutions can only be made into elements.");
-                                    outputManager.error(erep.toString());
-                                }
-                            } else {
-                                if (v.startsWith("$")) {
-                                    if (v.equals(RESERVED_WORD_DELETE)) {
-                                        if (n.getParentNode() != null) {
-                                            // System.err.println("Deleting " + n.getLocalName() + " "+ n.getAttributes().getNamedItem("value"));
-                                            // n needs to be an element not an attribute. Attributes don't have parents
-                                            n.getParentNode().removeChild(n);
-                                        } else {
-                                            outputManager.error("Failed to delete " + n.getLocalName() + " no parent ");
-                                        }
-                                        continue;
-                                    } else if (v.startsWith(RESERVED_WORD_VALUEDATEOFFSET)) {
-                                        // applies a date offset to the date part of the source document field. the string may be a date only or date time field with trailing chars
-                                        // but the duration must be days only with no hours, mins or secs
-                                        String dateStr = n.getNodeValue();
-                                        // see https://www.hl7.org/fhir/datatypes.html#dateTime
-                                        if (dateStr.matches("^([0-9]([0-9]([0-9][1-9]|[1-9]0)|[1-9]00)|[1-9]000)(-(0[1-9]|1[0-2])(-(0[1-9]|[1-2][0-9]|3[0-1])(T([01][0-9]|2[0-3]):[0-5][0-9]:([0-5][0-9]|60)(\\.[0-9]+)?(Z|(\\+|-)((0[0-9]|1[0-3]):[0-5][0-9]|14:00)))?)?)?$")) {
-                                            final int DATE_LENGTH = 10;
-                                            String durationsStr = v.substring(RESERVED_WORD_VALUEDATEOFFSET.length()).trim();
-                                            Duration duration = Duration.parse(durationsStr);
-                                            LocalDate localDate = LocalDate.parse(dateStr.substring(0, DATE_LENGTH));
-                                            
-                                            // bump the date
-                                            localDate = localDate.plus(duration.toDays(), ChronoUnit.DAYS);
-
-                                            // replace the initial date part
-                                            dateStr = dateStr.replaceFirst("^.{" + DATE_LENGTH + "}", localDate.toString().substring(0, DATE_LENGTH));
-                                            
-                                            if (dateStr.matches("^.*\\+0[01]:00$")) {
-                                                // if there's a timezone string appended adjust the timezone for the time of year
-                                                Instant instant = localDate.atStartOfDay(ZoneId.systemDefault()).toInstant();
-                                                Date date = Date.from(instant);
-                                                if (TimeZone.getDefault().inDaylightTime(date)) {
-                                                    dateStr = dateStr.replaceFirst("\\+0[01]:00$", "\\+01:00");
-                                                } else {
-                                                    dateStr = dateStr.replaceFirst("\\+0[01]:00$", "\\+00:00");
-                                                }
-                                            }
-
-                                            n.setNodeValue(dateStr);
-                                        } else {
-                                            outputManager.error("Failed to parse malformed date string " + dateStr + " at node " + n.getLocalName());
-                                        }
-                                        continue;
-                                    }
-                                    String r = v.substring(1);
-                                    ArrayList<String> vs = substitutions.get(r);
-                                    if (vs != null) {
-                                        try {
-                                            v = vs.get(i);
-                                        } catch (IndexOutOfBoundsException e) {
-                                            v = vs.get(0);
-                                        }
-                                        if (v != null && !v.trim().isEmpty()) {
-                                            n.setNodeValue(v);
-                                        } else {
-                                            n.setNodeValue("");
-                                        }
+    /**
+     * evaluates an extraction expression over a DOM. A path limited to one
+     * match is evaluated for a single node, which JAXP can return without
+     * building the whole node set.
+     *
+     * @param xp expression
+     * @param context document or record root
+     * @return matched nodes
+     * @throws Exception
+     */
+    private NodeList evaluateDom(DescribedXPath xp, Node context)
+            throws Exception {
+        if (xp.getLimit() == 1) {
+            Node n = (Node) xp.getExpression().evaluate(context, XPathConstants.NODE);
+            return (n == null) ? new CompactNodeList(new Node[0], new int[0]) : new CompactNodeList(new Node[]{n}, new int[]{0});
+        }
+        return (NodeList) xp.getExpression().evaluate(context, XPathConstants.NODESET);
+    }
 
-                                    } else {
-                                        StringBuilder erep = new StringBuilder("WARNING: Ignoring substitution. Label ");
-                                        erep.append(expression);
-                                        erep.append(" references another: ");
-                                        erep.append(v);
-                                        erep.append(" which is not defined.");
-                                        outputManager.error(erep.toString());
-                                    }
-                                } else {
-                                    n.setNodeValue(v);
-                                }
-                            } // if xml fragment
-                        } // for nodelist
-                    } // there exist substitutions
-                } // second pass
-            } // for expression
-        } // for pass
-        if (substitutions != null) {
-            outputManager.output(getStringFromDoc(d));
+    /**
+     * @param label label
+     * @param matches number of matches
+     * @return number of the matches to report, given the label's hint
+     */
+    private int matchLimit(String label, int matches) {
+        Integer l = limits.get(label);
+        return (l == null) ? matches : Math.min(l, matches);
+    }
+
+    /**
+     * appends DOM matches to a line of extraction output
+     *
+     * @param label label, whose hint may limit the matches reported
+     * @param nl matched nodes
+     * @param sb line being built
+     * @param values receives the node values
+     */
+    private void appendMatches(String label, NodeList nl, StringBuilder sb, ArrayList<String> values) {
+        int count = matchLimit(label, nl.getLength());
+        for (int i = 0; i < count; i++) {
+            Node n = nl.item(i);
+            appendMatch(sb, n.getNamespaceURI(), n.getNodeValue());
+            values.add(n.getNodeValue());
+        }
+    }
+
+    /**
+     * emits the lines and values evaluated for a document or record, one per
+     * label in paths file order
+     *
+     * @param lines line built for each label
+     * @param matched matched values for each label
+     * @return columnar row
+     * @throws Exception
+     */
+    private ArrayList<ArrayList<String>> emitAll(ArrayList<StringBuilder> lines, ArrayList<ArrayList<String>> matched)
+            throws Exception {
+        ArrayList<ArrayList<String>> row = new ArrayList<>();
+        int i = 0;
+        for (String label : expressions.keySet()) {
+            emit(label, lines.get(i), matched.get(i), row);
+            i++;
+        }
+        return row;
+    }
+
+    /**
+     * outputs the extraction line for a label, adds its values to the
+     * columnar row, or folds them into the label's aggregate, and adds them
+     * to the index if there is one. A label with
+     * the exists hint has the single value true or false instead of its
+     * matches.
+     *
+     * @param label label
+     * @param sb line built for the label
+     * @param values matched values
+     * @param row columnar row being built
+     * @throws Exception
+     */
+    private void emit(String label, StringBuilder sb, ArrayList<String> values, ArrayList<ArrayList<String>> row)
+            throws Exception {
+        if (existsLabels.contains(label)) {
+            String found = Boolean.toString(!values.isEmpty());
+            sb = new StringBuilder(label).append("\t").append(found);
+            values.clear();
+            values.add(found);
+        }
+        if (index != null) {
+            index.add(indexDocument, label, values);
         }
+        if (aggregates != null) {
+            aggregates.get(label).add(values);
+        } else if (columnarWriter == null) {
+            outputManager.output(sb.toString());
+        } else {
+            values.removeIf(v -> v == null);
+            row.add(values);
+        }
+    }
+
+    /**
+     * appends one matched node to a line of extraction output
+     *
+     * @param sb line being built
+     * @param nsuri namespace URI of the node, or null
+     * @param value node value, or null
+     */
+    private void appendMatch(StringBuilder sb, String nsuri, String value) {
+        if (nsuri != null) {
+            sb.append(nsuri);
+            sb.append(":");
+        }
+        sb.append("\t");
+        sb.append(value);
     }
 
     /**
+     * parses an xml fragment, once per executor. Callers import the result
+     * into their document, so the parsed copy is never modified.
      *
-     * @param s xpath to element
+     * @param s xml fragment
      * @return populated Element object
      * @throws Exception
      */
     private Element getElement(String s)
             throws Exception {
-        Element elem = parse(s).getDocumentElement();
+        Element elem = fragments.get(s);
+        if (elem == null) {
+            elem = parse(s, parser).getDocumentElement();
+            fragments.put(s, elem);
+        }
         return elem;
     }
 
@@ -568,6 +2794,20 @@ public class BulkXpathExecutor {
         return lsSerializer.writeToString(doc);
     }
 
+    /**
+     * serialises a node without an xml declaration, for output inside an
+     * enclosing document
+     *
+     * @param n Node object
+     * @return Serialised String
+     */
+    private String getStringFromNode(Node n) {
+        DOMImplementationLS domImplementation = (DOMImplementationLS) n.getOwnerDocument().getImplementation();
+        LSSerializer lsSerializer = domImplementation.createLSSerializer();
+        lsSerializer.getDomConfig().setParameter("xml-declaration", false);
+        return lsSerializer.writeToString(n);
+    }
+
     /**
      * parse a string containing xml into a Document object
      *
@@ -575,31 +2815,52 @@ public class BulkXpathExecutor {
      * @return Document object
      * @throws Exception
      */
-    private Document parse(String s)
+    private static Document parse(String s)
+            throws Exception {
+        return parse(s, ParserProfile.DEFAULT);
+    }
+
+    /**
+     * parse a string containing xml into a Document object
+     *
+     * @param s
+     * @param p how to parse
+     * @return Document object
+     * @throws Exception if the xml is not well formed or the profile rejects
+     * it
+     */
+    private static Document parse(String s, ParserProfile p)
             throws Exception {
         InputSource is = new InputSource(new StringReader(s));
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        dbf.setIgnoringComments(true);
-        dbf.setNamespaceAware(true);
-        DocumentBuilder db = dbf.newDocumentBuilder();
+        DocumentBuilder db = p.newDocumentBuilder();
         Document xml = db.parse(is);
         return xml;
     }
 
+    /**
+     * @param d document path, or - for stdin
+     * @return size of the document file, 0 for stdin
+     */
+    private static long documentSize(String d) {
+        return d.contentEquals("-") ? 0 : new File(d).length();
+    }
+
     /**
      *
      * @param d String containing path to document file
-     * @return populated xml Document object
-     * @throws Exception
+     * @param p parser profile whose size limit applies
+     * @return content of the document file
+     * @throws Exception if it cannot be read or is over the size limit
      */
-    private Document getDocument(String d)
+    private static byte[] readDocument(String d, ParserProfile p)
             throws Exception {
-        StringBuilder sb = new StringBuilder();
         @SuppressWarnings("UnusedAssignment")
         InputStream in = null;
         if (d.contentEquals("-")) {
             in = System.in;
         } else {
+            // before reading any of it
+            p.checkSize(d, documentSize(d));
             in = new FileInputStream(d);
         }
 
@@ -607,10 +2868,14 @@ public class BulkXpathExecutor {
         ByteArrayOutputStream result = new ByteArrayOutputStream();
         byte[] buffer = new byte[1024];
         int length;
-        while ((length = in.read(buffer)) != -1) {
-            result.write(buffer, 0, length);
+        try {
+            while ((length = in.read(buffer)) != -1) {
+                result.write(buffer, 0, length);
+                p.checkSize(d, result.size());
+            }
+        } finally {
+            in.close();
         }
-        in.close();
-        return parse(result.toString("UTF-8"));
+        return result.toByteArray();
     }
 }
@@ -0,0 +1,258 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.util.Arrays;
+
+/**
+ * Single pass scan over the raw bytes of a UTF-8 xml document, which numbers
+ * nodes exactly as CompactDocument does and records where the values of
+ * selected attribute and text nodes are in the original bytes. Used by patch
+ * mode to splice new values into the document without re-serialising it.
+ *
+ * The scanner assumes the document is well formed, which the CompactDocument
+ * parse has already established. It declines (scan returns false) documents
+ * with a DOCTYPE, since entity definitions could change what the bytes mean.
+ *
+ * @author Damian Murphy
+ */
+public class ByteRangeScanner {
+
+    private byte[] xml = null;
+    private int[] targets = null;
+    private int[] start = null;
+    private int[] end = null;
+    private boolean[] complex = null;
+    private byte[] quotes = null;
+    private int nodeCount = 0;
+
+    public ByteRangeScanner(byte[] b) {
+        xml = b;
+    }
+
+    /**
+     * @param t node ids to find, ascending
+     * @return false if the document is not one the scanner handles
+     */
+    public boolean scan(int[] t) {
+        targets = t;
+        start = new int[t.length];
+        end = new int[t.length];
+        complex = new boolean[t.length];
+        quotes = new byte[t.length];
+        int n = xml.length;
+        int i = 0;
+        int depth = 0;
+        int next = 1;
+        int text = -1;
+        while (i < n) {
+            if (xml[i] != '<') {
+                int j = indexOf((byte) '<', i);
+                if (depth > 0) {
+                    text = text(text, next, i, j, false);
+                    if (text == next) {
+                        next++;
+                    }
+                }
+                i = j;
+                continue;
+            }
+            // a processing instruction ends the text node, a comment does not
+            if (startsWith("<?", i)) {
+                i = indexOf("?>", i) + 2;
+                text = -1;
+                continue;
+            }
+            if (startsWith("<!--", i)) {
+                i = indexOf("-->", i) + 3;
+                markComplex(text);
+                continue;
+            }
+            if (startsWith("<![CDATA[", i)) {
+                int j = indexOf("]]>", i) + 3;
+                if (depth > 0) {
+                    text = text(text, next, i, j, true);
+                    if (text == next) {
+                        next++;
+                    }
+                }
+                i = j;
+                continue;
+            }
+            if (startsWith("<!", i)) {
+                return false;
+            }
+            text = -1;
+            if (xml[i + 1] == '/') {
+                i = indexOf((byte) '>', i) + 1;
+                depth--;
+                continue;
+            }
+            // start tag
+            next++;
+            i++;
+            while (i < n && !isSpace(xml[i]) && xml[i] != '>' && xml[i] != '/') {
+                i++;
+            }
+            while (true) {
+                while (isSpace(xml[i])) {
+                    i++;
+                }
+                if (xml[i] == '>') {
+                    depth++;
+                    i++;
+                    break;
+                }
+                if (xml[i] == '/') {
+                    i += 2;
+                    break;
+                }
+                int nameStart = i;
+                while (xml[i] != '=' && !isSpace(xml[i])) {
+                    i++;
+                }
+                boolean ns = isNamespaceDeclaration(nameStart, i);
+                i = indexOf((byte) '=', i) + 1;
+                while (isSpace(xml[i])) {
+                    i++;
+                }
+                byte quote = xml[i];
+                int valueStart = i + 1;
+                i = indexOf(quote, valueStart);
+                // namespace declarations are not attribute nodes
+                if (!ns) {
+                    int k = record(next++, valueStart, i, false);
+                    if (k >= 0) {
+                        quotes[k] = quote;
+                    }
+                }
+                i++;
+            }
+        }
+        nodeCount = next;
+        return true;
+    }
+
+    private int text(int current, int next, int from, int to, boolean cdata) {
+        if (current == -1) {
+            record(next, from, to, cdata);
+            return next;
+        }
+        int k = Arrays.binarySearch(targets, current);
+        if (k >= 0) {
+            end[k] = to;
+            complex[k] |= cdata;
+        }
+        return current;
+    }
+
+    private void markComplex(int text) {
+        if (text != -1) {
+            int k = Arrays.binarySearch(targets, text);
+            if (k >= 0) {
+                complex[k] = true;
+            }
+        }
+    }
+
+    private int record(int node, int from, int to, boolean c) {
+        int k = Arrays.binarySearch(targets, node);
+        if (k >= 0) {
+            start[k] = from;
+            end[k] = to;
+            complex[k] = c;
+        }
+        return k;
+    }
+
+    private boolean isNamespaceDeclaration(int from, int to) {
+        return startsWith("xmlns", from) && (to - from == 5 || xml[from + 5] == ':');
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private boolean startsWith(String s, int at) {
+        if (at + s.length() > xml.length) {
+            return false;
+        }
+        for (int k = 0; k < s.length(); k++) {
+            if (xml[at + k] != s.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(byte b, int from) {
+        for (int k = from; k < xml.length; k++) {
+            if (xml[k] == b) {
+                return k;
+            }
+        }
+        return xml.length;
+    }
+
+    private int indexOf(String s, int from) {
+        for (int k = from; k < xml.length; k++) {
+            if (startsWith(s, k)) {
+                return k;
+            }
+        }
+        return xml.length;
+    }
+
+    /**
+     * @return number of nodes counted, which must match CompactDocument.size()
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @param k index into the targets passed to scan()
+     * @return offset of the first byte of the value
+     */
+    public int getStart(int k) {
+        return start[k];
+    }
+
+    /**
+     * @param k index into the targets passed to scan()
+     * @return offset after the last byte of the value
+     */
+    public int getEnd(int k) {
+        return end[k];
+    }
+
+    /**
+     * @param k index into the targets passed to scan()
+     * @return true for text made up of more than plain character data (CDATA
+     * sections or comments), which cannot simply be replaced
+     */
+    public boolean isComplex(int k) {
+        return complex[k];
+    }
+
+    /**
+     * @param k index into the targets passed to scan()
+     * @return the quote character around an attribute value, or 0 for text
+     */
+    public byte getQuote(int k) {
+        return quotes[k];
+    }
+}
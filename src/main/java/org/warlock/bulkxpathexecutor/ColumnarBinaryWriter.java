@@ -0,0 +1,131 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compact binary columnar file with dictionary encoded values. Rows are
+ * buffered into blocks of BLOCK_ROWS and each block is written column by
+ * column, so memory is bounded by the block size rather than the corpus.
+ *
+ * Layout, all integers big-endian:
+ * <pre>
+ * "BXPC" int version int columns { int length, UTF-8 name }*
+ * block*: int rows, then per column:
+ *     int dictionary size { int length, UTF-8 value }*
+ *     one code per row: a byte if the dictionary has up to 256 entries,
+ *     a short up to 65536, otherwise an int
+ * int 0 end of file
+ * </pre>
+ *
+ * @author Damian Murphy
+ */
+public class ColumnarBinaryWriter {
+
+    public static final String MAGIC = "BXPC";
+    public static final int VERSION = 1;
+    public static final int BLOCK_ROWS = 4096;
+
+    private DataOutputStream out = null;
+    private int columns = 0;
+    private ArrayList<String[]> block = new ArrayList<>();
+
+    /**
+     * @param fname path of the file to write
+     * @param names column names
+     * @throws Exception
+     */
+    public ColumnarBinaryWriter(String fname, String[] names)
+            throws Exception {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fname)));
+        columns = names.length;
+        out.write(MAGIC.getBytes(StandardCharsets.US_ASCII));
+        out.writeInt(VERSION);
+        out.writeInt(columns);
+        for (String n : names) {
+            writeString(n);
+        }
+    }
+
+    public void writeRow(String[] cells)
+            throws Exception {
+        block.add(cells);
+        if (block.size() == BLOCK_ROWS) {
+            flushBlock();
+        }
+    }
+
+    public void close()
+            throws Exception {
+        flushBlock();
+        out.writeInt(0);
+        out.close();
+    }
+
+    private void flushBlock()
+            throws Exception {
+        if (block.isEmpty()) {
+            return;
+        }
+        int rows = block.size();
+        out.writeInt(rows);
+        int[] codes = new int[rows];
+        for (int c = 0; c < columns; c++) {
+            HashMap<String, Integer> index = new HashMap<>();
+            ArrayList<String> dictionary = new ArrayList<>();
+            for (int r = 0; r < rows; r++) {
+                String v = block.get(r)[c];
+                if (v == null) {
+                    v = "";
+                }
+                Integer code = index.get(v);
+                if (code == null) {
+                    code = dictionary.size();
+                    index.put(v, code);
+                    dictionary.add(v);
+                }
+                codes[r] = code;
+            }
+            out.writeInt(dictionary.size());
+            for (String v : dictionary) {
+                writeString(v);
+            }
+            for (int r = 0; r < rows; r++) {
+                if (dictionary.size() <= 0x100) {
+                    out.writeByte(codes[r]);
+                } else if (dictionary.size() <= 0x10000) {
+                    out.writeShort(codes[r]);
+                } else {
+                    out.writeInt(codes[r]);
+                }
+            }
+        }
+        block.clear();
+    }
+
+    private void writeString(String s)
+            throws Exception {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.util.ArrayList;
+
+/**
+ * Streaming CSV or TSV writer for columnar extraction output. One row per
+ * document, with the document name in the first column and one column per
+ * label in paths file order. Rows are written through the OutputManager as
+ * they are produced, so nothing is held beyond the current document.
+ *
+ * @author Damian Murphy
+ */
+public class ColumnarWriter {
+
+    public static final char CSV = ',';
+    public static final char TSV = '\t';
+
+    // How to fill a cell when a label matches more than one node
+    public static final int FIRST = 0;
+    public static final int LAST = 1;
+    public static final int JOIN = 2;
+
+    private OutputManager outputManager = null;
+    private char delimiter = CSV;
+    private int multiValue = JOIN;
+    private String separator = "|";
+    private ColumnarBinaryWriter binary = null;
+    private boolean headerWritten = false;
+    private String[] labels = null;
+
+    /**
+     * @param om destination for the text rows
+     * @param d delimiter, CSV or TSV
+     * @param labels column labels in paths file order
+     */
+    public ColumnarWriter(OutputManager om, char d, String[] labels) {
+        outputManager = om;
+        delimiter = d;
+        this.labels = labels;
+    }
+
+    /**
+     * @param m one of FIRST, LAST or JOIN
+     * @param s separator used between values for JOIN
+     */
+    public void setMultiValue(int m, String s) {
+        multiValue = m;
+        separator = s;
+    }
+
+    /**
+     * Also write each row to a dictionary encoded binary columnar file
+     *
+     * @param fname path of the binary file
+     * @throws Exception
+     */
+    public void setBinaryFile(String fname)
+            throws Exception {
+        String[] columns = new String[labels.length + 1];
+        columns[0] = "document";
+        System.arraycopy(labels, 0, columns, 1, labels.length);
+        binary = new ColumnarBinaryWriter(fname, columns);
+    }
+
+    /**
+     * parses the --multivalue argument
+     *
+     * @param s first, last or join
+     * @return FIRST, LAST or JOIN
+     * @throws Exception if the handling is not recognised
+     */
+    public static int getMultiValue(String s)
+            throws Exception {
+        switch (s) {
+            case "first":
+                return FIRST;
+            case "last":
+                return LAST;
+            case "join":
+                return JOIN;
+            default:
+                throw new Exception("Unknown multiple value handling " + s + ": expected first, last or join");
+        }
+    }
+
+    /**
+     * writes one document's row, preceded by the header row for the first
+     * document
+     *
+     * @param document document name
+     * @param values matched node values for each label, in label order
+     * @throws Exception
+     */
+    public void writeRow(String document, ArrayList<ArrayList<String>> values)
+            throws Exception {
+        if (!headerWritten) {
+            StringBuilder sb = new StringBuilder("document");
+            for (String l : labels) {
+                sb.append(delimiter);
+                sb.append(escape(l));
+            }
+            outputManager.output(sb.toString());
+            headerWritten = true;
+        }
+        String[] cells = new String[labels.length + 1];
+        cells[0] = document;
+        StringBuilder sb = new StringBuilder(escape(document));
+        for (int i = 0; i < labels.length; i++) {
+            cells[i + 1] = cell(values.get(i));
+            sb.append(delimiter);
+            sb.append(escape(cells[i + 1]));
+        }
+        outputManager.output(sb.toString());
+        if (binary != null) {
+            binary.writeRow(cells);
+        }
+    }
+
+    public void close()
+            throws Exception {
+        if (binary != null) {
+            binary.close();
+        }
+    }
+
+    private String cell(ArrayList<String> v) {
+        if (v.isEmpty()) {
+            return "";
+        }
+        switch (multiValue) {
+            case FIRST:
+                return v.get(0);
+            case LAST:
+                return v.get(v.size() - 1);
+            default:
+                return String.join(separator, v);
+        }
+    }
+
+    private String escape(String s) {
+        if (delimiter == TSV) {
+            if (s.indexOf('\t') == -1 && s.indexOf('\n') == -1 && s.indexOf('\r') == -1 && s.indexOf('\\') == -1) {
+                return s;
+            }
+            return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+        }
+        if (s.indexOf(delimiter) == -1 && s.indexOf('"') == -1 && s.indexOf('\n') == -1 && s.indexOf('\r') == -1) {
+            return s;
+        }
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+}
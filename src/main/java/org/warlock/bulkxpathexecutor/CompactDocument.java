@@ -0,0 +1,396 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Objects;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Compact, immutable, read-only document tree for extraction runs.
+ *
+ * Nodes are identified by int ids allocated in document order (an element is
+ * followed immediately by its attributes, then by its children) so every
+ * subtree occupies a contiguous id range. Names are held once each in a shared
+ * name table and all attribute and text content lives in a single char array,
+ * so there is no per-node object overhead.
+ *
+ * Text nodes follow the XPath view of the DOM parse. Comments are dropped, as
+ * the DOM parse ignores them, so the text either side of one is a single
+ * node. A run of text and CDATA sections is one node, which the DOM holds as
+ * several, and its value is the value of the first of those, the one XPath
+ * over the DOM returns. Processing instructions are dropped but end the text
+ * node, as they are nodes of the DOM.
+ *
+ * Instances are never modified after construction and are safe to read from
+ * several threads at once.
+ *
+ * @author Damian Murphy
+ */
+public class CompactDocument {
+
+    public static final byte DOCUMENT = 0;
+    public static final byte ELEMENT = 1;
+    public static final byte ATTRIBUTE = 2;
+    public static final byte TEXT = 3;
+
+    private static final int INITIAL_NODES = 1024;
+    // the JDK's parser reports CDATA sections as plain characters unless asked
+    private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    private int size = 0;
+    private byte[] kind = null;
+    private int[] name = null;
+    private int[] parent = null;
+    private int[] last = null;
+    private int[] attributes = null;
+    private int[] textStart = null;
+    private int[] textLength = null;
+    private char[] text = null;
+    private int textSize = 0;
+
+    private String[] namespaces = null;
+    private String[] localNames = null;
+
+    private CompactDocument() {
+        kind = new byte[INITIAL_NODES];
+        name = new int[INITIAL_NODES];
+        parent = new int[INITIAL_NODES];
+        last = new int[INITIAL_NODES];
+        attributes = new int[INITIAL_NODES];
+        textStart = new int[INITIAL_NODES];
+        textLength = new int[INITIAL_NODES];
+        text = new char[INITIAL_NODES * 8];
+    }
+
+    /**
+     * Builds a compact document from xml text.
+     *
+     * @param r Reader over the xml
+     * @return populated CompactDocument
+     * @throws Exception if the xml is not well formed
+     */
+    public static CompactDocument parse(Reader r)
+            throws Exception {
+        return parse(r, ParserProfile.DEFAULT);
+    }
+
+    /**
+     * Builds a compact document from xml text.
+     *
+     * @param r Reader over the xml
+     * @param profile how to parse
+     * @return populated CompactDocument
+     * @throws Exception if the xml is not well formed or the profile rejects
+     * it
+     */
+    public static CompactDocument parse(Reader r, ParserProfile profile)
+            throws Exception {
+        XMLInputFactory xif = profile.newXMLInputFactory();
+        if (xif.isPropertySupported(REPORT_CDATA)) {
+            xif.setProperty(REPORT_CDATA, true);
+        }
+        XMLStreamReader xsr = xif.createXMLStreamReader(r);
+        CompactDocument cd = new CompactDocument();
+        try {
+            cd.build(xsr, profile);
+        } finally {
+            xsr.close();
+        }
+        return cd;
+    }
+
+    private void build(XMLStreamReader xsr, ParserProfile profile)
+            throws Exception {
+        HashMap<String, Integer> nameIndex = new HashMap<>();
+        int[] stack = new int[64];
+        int depth = 0;
+        boolean inText = false;
+        boolean inFirst = false;
+        stack[0] = add(DOCUMENT, -1, -1);
+        while (xsr.hasNext()) {
+            switch (xsr.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    int e = add(ELEMENT, internName(nameIndex, xsr.getNamespaceURI(), xsr.getLocalName()), stack[depth]);
+                    int n = xsr.getAttributeCount();
+                    for (int i = 0; i < n; i++) {
+                        int a = add(ATTRIBUTE, internName(nameIndex, xsr.getAttributeNamespace(i), xsr.getAttributeLocalName(i)), e);
+                        appendText(a, xsr.getAttributeValue(i));
+                        last[a] = a;
+                    }
+                    attributes[e] = n;
+                    if (++depth == stack.length) {
+                        stack = Arrays.copyOf(stack, depth * 2);
+                    }
+                    stack[depth] = e;
+                    inText = false;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    last[stack[depth]] = size - 1;
+                    depth--;
+                    inText = false;
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    inText = false;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    // text outside the document element has no node in the DOM either
+                    if (depth == 0) {
+                        break;
+                    }
+                    // adjacent character events are one text node, but only the
+                    // first DOM node of the run, up to a CDATA section or
+                    // from one to the end of it, contributes to the value
+                    boolean cdata = xsr.getEventType() == XMLStreamConstants.CDATA;
+                    int t = size - 1;
+                    if (!inText) {
+                        t = add(TEXT, -1, stack[depth]);
+                        last[t] = t;
+                        inText = true;
+                        inFirst = true;
+                    } else if (cdata) {
+                        inFirst = false;
+                    }
+                    if (inFirst) {
+                        appendText(t, xsr.getTextCharacters(), xsr.getTextStart(), xsr.getTextLength());
+                        inFirst = !cdata;
+                    }
+                    break;
+                case XMLStreamConstants.DTD:
+                    profile.checkDoctype();
+                    break;
+                default:
+                    break;
+            }
+        }
+        last[0] = size - 1;
+        trim(nameIndex);
+    }
+
+    private int add(byte k, int n, int p) {
+        if (size == kind.length) {
+            int c = size * 2;
+            kind = Arrays.copyOf(kind, c);
+            name = Arrays.copyOf(name, c);
+            parent = Arrays.copyOf(parent, c);
+            last = Arrays.copyOf(last, c);
+            attributes = Arrays.copyOf(attributes, c);
+            textStart = Arrays.copyOf(textStart, c);
+            textLength = Arrays.copyOf(textLength, c);
+        }
+        kind[size] = k;
+        name[size] = n;
+        parent[size] = p;
+        textStart[size] = textSize;
+        return size++;
+    }
+
+    private void appendText(int node, String s) {
+        appendText(node, s.toCharArray(), 0, s.length());
+    }
+
+    private void appendText(int node, char[] c, int start, int length) {
+        if (textSize + length > text.length) {
+            text = Arrays.copyOf(text, Math.max(text.length * 2, textSize + length));
+        }
+        System.arraycopy(c, start, text, textSize, length);
+        textSize += length;
+        textLength[node] += length;
+    }
+
+    private int internName(HashMap<String, Integer> nameIndex, String ns, String local) {
+        if (ns != null && ns.isEmpty()) {
+            ns = null;
+        }
+        String key = (ns == null) ? local : ns + "\u0000" + local;
+        Integer i = nameIndex.get(key);
+        if (i == null) {
+            i = nameIndex.size();
+            nameIndex.put(key, i);
+        }
+        return i;
+    }
+
+    private void trim(HashMap<String, Integer> nameIndex) {
+        kind = Arrays.copyOf(kind, size);
+        name = Arrays.copyOf(name, size);
+        parent = Arrays.copyOf(parent, size);
+        last = Arrays.copyOf(last, size);
+        attributes = Arrays.copyOf(attributes, size);
+        textStart = Arrays.copyOf(textStart, size);
+        textLength = Arrays.copyOf(textLength, size);
+        text = Arrays.copyOf(text, textSize);
+        namespaces = new String[nameIndex.size()];
+        localNames = new String[nameIndex.size()];
+        for (String key : nameIndex.keySet()) {
+            int i = nameIndex.get(key);
+            int sep = key.indexOf('\u0000');
+            if (sep == -1) {
+                localNames[i] = key;
+            } else {
+                namespaces[i] = key.substring(0, sep);
+                localNames[i] = key.substring(sep + 1);
+            }
+        }
+    }
+
+    /**
+     * @return number of nodes, including the document node (id 0)
+     */
+    public int size() {
+        return size;
+    }
+
+    public byte getKind(int node) {
+        return kind[node];
+    }
+
+    public int getParent(int node) {
+        return parent[node];
+    }
+
+    /**
+     * @param node node id
+     * @return id of the last node in the subtree rooted at node
+     */
+    public int getLast(int node) {
+        return last[node];
+    }
+
+    /**
+     * @param node element id
+     * @return number of attributes, whose ids follow the element id
+     */
+    public int getAttributeCount(int node) {
+        return attributes[node];
+    }
+
+    /**
+     * @param node node id
+     * @return index into the shared name table, or -1 for unnamed nodes
+     */
+    public int getNameIndex(int node) {
+        return name[node];
+    }
+
+    /**
+     * @param ns namespace URI, or null for no namespace
+     * @param local local name
+     * @return index into the shared name table, or -1 if no node has this name
+     */
+    public int findName(String ns, String local) {
+        for (int i = 0; i < localNames.length; i++) {
+            if (localNames[i].equals(local) && Objects.equals(namespaces[i], ns)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String getNamespaceURI(int node) {
+        return (name[node] == -1) ? null : namespaces[name[node]];
+    }
+
+    public String getLocalName(int node) {
+        return (name[node] == -1) ? null : localNames[name[node]];
+    }
+
+    /**
+     * @param index name table index
+     * @return namespace URI of the name, or null
+     */
+    public String getNamespaceOfName(int index) {
+        return namespaces[index];
+    }
+
+    /**
+     * As for DOM, attribute and text nodes have values, other nodes do not.
+     *
+     * @param node node id
+     * @return node value or null
+     */
+    public String getNodeValue(int node) {
+        if (kind[node] == ATTRIBUTE || kind[node] == TEXT) {
+            return new String(text, textStart[node], textLength[node]);
+        }
+        return null;
+    }
+
+    /**
+     * Finds the DOM node for each node of this document, in a DOM parsed from
+     * the same text, so that results evaluated against this document can be
+     * used to modify the DOM. Where the DOM splits adjacent text and CDATA
+     * into several nodes, the first of them is returned.
+     *
+     * @param d DOM parsed from the same text
+     * @return DOM nodes indexed by node id, or null if the trees differ
+     */
+    public Node[] mapNodes(Document d) {
+        Node[] nodes = new Node[size];
+        nodes[0] = d;
+        return mapChildren(d, 0, nodes) ? nodes : null;
+    }
+
+    private boolean mapChildren(Node domParent, int p, Node[] nodes) {
+        Node dn = domParent.getFirstChild();
+        for (int c = p + 1 + attributes[p]; c <= last[p]; c = last[c] + 1) {
+            while (dn != null && !isText(dn) && dn.getNodeType() != Node.ELEMENT_NODE) {
+                dn = dn.getNextSibling();
+            }
+            if (dn == null) {
+                return false;
+            }
+            if (kind[c] == ELEMENT) {
+                if (dn.getNodeType() != Node.ELEMENT_NODE || !localNames[name[c]].equals(dn.getLocalName())) {
+                    return false;
+                }
+                nodes[c] = dn;
+                for (int a = c + 1; a <= c + attributes[c]; a++) {
+                    nodes[a] = ((Element) dn).getAttributeNodeNS(getNamespaceURI(a), getLocalName(a));
+                    if (nodes[a] == null) {
+                        return false;
+                    }
+                }
+                if (!mapChildren(dn, c, nodes)) {
+                    return false;
+                }
+                dn = dn.getNextSibling();
+            } else {
+                if (!isText(dn)) {
+                    return false;
+                }
+                nodes[c] = dn;
+                while (dn != null && isText(dn)) {
+                    dn = dn.getNextSibling();
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isText(Node n) {
+        return n.getNodeType() == Node.TEXT_NODE || n.getNodeType() == Node.CDATA_SECTION_NODE;
+    }
+}
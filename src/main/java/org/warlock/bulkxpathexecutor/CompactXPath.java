@@ -0,0 +1,484 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import javax.xml.namespace.NamespaceContext;
+
+/**
+ * Evaluator for CompactDocument. Handles the absolute location paths that
+ * XpathGenerator writes: child and descendant (//) steps, qualified or
+ * wildcard element name tests, text(), a trailing named attribute step and
+ * positional predicates, eg /fhir:Bundle[1]/fhir:entry[2]//fhir:id/@value
+ *
+ * Anything else is reported as unsupported by compile() returning null, and
+ * the caller falls back to the JAXP expression over a DOM. That includes
+ * node(), which matches processing instructions that CompactDocument does not
+ * hold, and @*, which the DOM returns in its own attribute order.
+ *
+ * When only the first few matches are wanted, evaluate(d, limit) evaluates
+ * the steps as a pipeline of cursors and stops at the limit, instead of
+ * building the full node set for each step.
+ *
+ * @author Damian Murphy
+ */
+public class CompactXPath {
+
+    private static final int NAME = 0;
+    private static final int TEXT = 1;
+
+    private final Step[] steps;
+
+    private CompactXPath(Step[] s) {
+        steps = s;
+    }
+
+    private static class Step {
+
+        boolean descendant = false;
+        boolean attribute = false;
+        int test = NAME;
+        String namespace = null;
+        String localName = null;  // null for a wildcard
+        int[] positions = new int[0];
+    }
+
+    /**
+     * @param xpath xpath string
+     * @param ns namespace context used to resolve prefixes
+     * @return compiled path, or null if the expression is outside the
+     * supported subset
+     */
+    public static CompactXPath compile(String xpath, NamespaceContext ns) {
+        String p = xpath.trim();
+        if (!p.startsWith("/")) {
+            return null;
+        }
+        ArrayList<Step> steps = new ArrayList<>();
+        int i = 0;
+        while (i < p.length()) {
+            if (p.charAt(i) != '/') {
+                return null;
+            }
+            Step s = new Step();
+            i++;
+            if (i < p.length() && p.charAt(i) == '/') {
+                s.descendant = true;
+                i++;
+            }
+            int end = i;
+            while (end < p.length() && p.charAt(end) != '/' && p.charAt(end) != '[') {
+                end++;
+            }
+            String test = p.substring(i, end);
+            if (test.isEmpty()) {
+                // "/" on its own selects the document
+                if (end == p.length() && steps.isEmpty() && !s.descendant) {
+                    break;
+                }
+                return null;
+            }
+            if (!nodeTest(s, test, ns)) {
+                return null;
+            }
+            i = end;
+            while (i < p.length() && p.charAt(i) == '[') {
+                int close = p.indexOf(']', i);
+                if (close == -1) {
+                    return null;
+                }
+                int pos = 0;
+                try {
+                    pos = Integer.parseInt(p.substring(i + 1, close));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (pos < 1) {
+                    return null;
+                }
+                s.positions = Arrays.copyOf(s.positions, s.positions.length + 1);
+                s.positions[s.positions.length - 1] = pos;
+                i = close + 1;
+            }
+            // attributes have no children so an attribute step must be the last
+            if (!steps.isEmpty() && steps.get(steps.size() - 1).attribute) {
+                return null;
+            }
+            steps.add(s);
+        }
+        return new CompactXPath(steps.toArray(new Step[steps.size()]));
+    }
+
+    private static boolean nodeTest(Step s, String test, NamespaceContext ns) {
+        if (test.startsWith("@")) {
+            s.attribute = true;
+            test = test.substring(1);
+        } else if (test.contentEquals("text()")) {
+            s.test = TEXT;
+            return true;
+        }
+        String local = test;
+        int colon = test.indexOf(':');
+        if (colon != -1) {
+            String prefix = test.substring(0, colon);
+            local = test.substring(colon + 1);
+            if (!isNCName(prefix)) {
+                return false;
+            }
+            s.namespace = ns.getNamespaceURI(prefix);
+            if (s.namespace == null || s.namespace.isEmpty()) {
+                return false;
+            }
+        }
+        // the DOM gives several attributes in its own order rather than
+        // document order, so attribute wildcards are left to it
+        if (local.contentEquals("*")) {
+            return !s.attribute;
+        }
+        if (!isNCName(local)) {
+            return false;
+        }
+        s.localName = local;
+        return true;
+    }
+
+    private static boolean isNCName(String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            boolean ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+            if (i > 0) {
+                ok = ok || (c >= '0' && c <= '9') || c == '-' || c == '.';
+            }
+            if (!ok) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param d document to evaluate against
+     * @return matching node ids in document order
+     */
+    public int[] evaluate(CompactDocument d) {
+        int[] context = new int[]{0};
+        for (Step s : steps) {
+            int nameIndex = -1;
+            if (s.test == NAME && s.localName != null) {
+                nameIndex = d.findName(s.namespace, s.localName);
+                if (nameIndex == -1) {
+                    return new int[0];
+                }
+            }
+            IntList next = new IntList();
+            for (int c : context) {
+                step(d, s, nameIndex, c, next);
+            }
+            context = next.toSortedSet();
+            if (context.length == 0) {
+                break;
+            }
+        }
+        return context;
+    }
+
+    /**
+     * evaluates the path lazily, stopping as soon as limit matches have been
+     * found. Each step pulls context nodes from the step before only as it
+     * needs them, so eg //fhir:identifier with a limit of 1 scans only as far
+     * as the first identifier rather than the whole document.
+     *
+     * @param d document to evaluate against
+     * @param limit most matches wanted, 0 for all of them
+     * @return the first limit matching node ids in document order
+     */
+    public int[] evaluate(CompactDocument d, int limit) {
+        if (limit <= 0) {
+            return evaluate(d);
+        }
+        Cursor c = new Cursor();
+        for (Step s : steps) {
+            int nameIndex = -1;
+            if (s.test == NAME && s.localName != null) {
+                nameIndex = d.findName(s.namespace, s.localName);
+                if (nameIndex == -1) {
+                    return new int[0];
+                }
+            }
+            c = new StepCursor(d, s, nameIndex, c);
+        }
+        IntList out = new IntList();
+        int n = 0;
+        while (out.size() < limit && (n = c.next()) != -1) {
+            out.add(n);
+        }
+        return out.toSortedSet();
+    }
+
+    private void step(CompactDocument d, Step s, int nameIndex, int c, IntList out) {
+        if (s.descendant && s.positions.length == 0) {
+            descendants(d, s, nameIndex, c, out);
+        } else if (s.descendant) {
+            // positions apply per parent so expand descendant-or-self first
+            children(d, s, nameIndex, c, out);
+            for (int n = c + 1; n <= d.getLast(c); n++) {
+                if (d.getKind(n) == CompactDocument.ELEMENT) {
+                    children(d, s, nameIndex, n, out);
+                }
+            }
+        } else {
+            children(d, s, nameIndex, c, out);
+        }
+    }
+
+    private void descendants(CompactDocument d, Step s, int nameIndex, int c, IntList out) {
+        int from = s.attribute ? c : c + 1;
+        for (int n = from; n <= d.getLast(c); n++) {
+            if (matches(d, s, nameIndex, n)) {
+                out.add(n);
+            }
+        }
+    }
+
+    private void children(CompactDocument d, Step s, int nameIndex, int c, IntList out) {
+        int first = c + 1 + d.getAttributeCount(c);
+        int mark = out.size();
+        if (s.attribute) {
+            for (int n = c + 1; n < first; n++) {
+                if (matches(d, s, nameIndex, n)) {
+                    out.add(n);
+                }
+            }
+        } else {
+            for (int n = first; n <= d.getLast(c); n = d.getLast(n) + 1) {
+                if (matches(d, s, nameIndex, n)) {
+                    out.add(n);
+                }
+            }
+        }
+        for (int pos : s.positions) {
+            if (out.size() - mark >= pos) {
+                int n = out.get(mark + pos - 1);
+                out.truncate(mark);
+                out.add(n);
+            } else {
+                out.truncate(mark);
+            }
+        }
+    }
+
+    private boolean matches(CompactDocument d, Step s, int nameIndex, int n) {
+        byte k = d.getKind(n);
+        if (s.attribute != (k == CompactDocument.ATTRIBUTE)) {
+            return false;
+        }
+        switch (s.test) {
+            case TEXT:
+                return k == CompactDocument.TEXT;
+            default:
+                if (k != CompactDocument.ELEMENT && k != CompactDocument.ATTRIBUTE) {
+                    return false;
+                }
+                if (s.localName != null) {
+                    return d.getNameIndex(n) == nameIndex;
+                }
+                return s.namespace == null || s.namespace.equals(d.getNamespaceOfName(d.getNameIndex(n)));
+        }
+    }
+
+    /**
+     * node ids in ascending document order, produced on demand. This one
+     * produces the document node.
+     */
+    private static class Cursor {
+
+        private boolean done = false;
+
+        /**
+         * @return the next node id, or -1 when there are no more
+         */
+        int next() {
+            if (done) {
+                return -1;
+            }
+            done = true;
+            return 0;
+        }
+    }
+
+    /**
+     * one step applied lazily to the nodes of the cursor before it. The
+     * matches under each context node come in ascending order and all follow
+     * it, so the smallest pending match can be returned as soon as it is
+     * before the next context node, which need not be pulled until then.
+     */
+    private class StepCursor
+            extends Cursor {
+
+        private final CompactDocument d;
+        private final Step s;
+        private final int nameIndex;
+        private final Cursor from;
+        private final PriorityQueue<Scan> pending = new PriorityQueue<>((a, b) -> Integer.compare(a.current, b.current));
+        private int nextContext = 0;
+        private int covered = -1;
+        private int last = -1;
+
+        StepCursor(CompactDocument cd, Step st, int ni, Cursor f) {
+            d = cd;
+            s = st;
+            nameIndex = ni;
+            from = f;
+            nextContext = from.next();
+        }
+
+        @Override
+        int next() {
+            while (true) {
+                while (nextContext != -1 && (pending.isEmpty() || pending.peek().current > nextContext)) {
+                    open(nextContext);
+                    nextContext = from.next();
+                }
+                Scan sc = pending.poll();
+                if (sc == null) {
+                    return -1;
+                }
+                int n = sc.current;
+                if (sc.advance()) {
+                    pending.add(sc);
+                }
+                // contexts that overlap can match the same node
+                if (n != last) {
+                    last = n;
+                    return n;
+                }
+            }
+        }
+
+        private void open(int c) {
+            if (s.descendant && s.positions.length == 0) {
+                // everything under c is already being scanned for an ancestor
+                if (c <= covered) {
+                    return;
+                }
+                covered = d.getLast(c);
+            }
+            Scan sc = new Scan(c);
+            if (sc.advance()) {
+                pending.add(sc);
+            }
+        }
+
+        /**
+         * the matches under one context node. Positional steps are
+         * evaluated in full for the context, anything else node by node.
+         */
+        private class Scan {
+
+            private final int context;
+            private int current = -1;
+            private int[] eager = null;
+            private int index = 0;
+
+            Scan(int c) {
+                context = c;
+                if (s.positions.length > 0) {
+                    IntList l = new IntList();
+                    step(d, s, nameIndex, c, l);
+                    eager = l.toSortedSet();
+                }
+            }
+
+            /**
+             * @return true if current has moved to the next match
+             */
+            boolean advance() {
+                if (eager != null) {
+                    if (index == eager.length) {
+                        return false;
+                    }
+                    current = eager[index++];
+                    return true;
+                }
+                int firstChild = context + 1 + d.getAttributeCount(context);
+                int end = (s.attribute && !s.descendant) ? firstChild - 1 : d.getLast(context);
+                int n = 0;
+                if (current == -1) {
+                    n = (s.descendant || s.attribute) ? context + 1 : firstChild;
+                } else {
+                    n = (s.descendant || s.attribute) ? current + 1 : d.getLast(current) + 1;
+                }
+                while (n <= end) {
+                    if (matches(d, s, nameIndex, n)) {
+                        current = n;
+                        return true;
+                    }
+                    n = (s.descendant || s.attribute) ? n + 1 : d.getLast(n) + 1;
+                }
+                return false;
+            }
+        }
+    }
+
+    private static class IntList {
+
+        private int[] a = new int[16];
+        private int n = 0;
+
+        void add(int i) {
+            if (n == a.length) {
+                a = Arrays.copyOf(a, n * 2);
+            }
+            a[n++] = i;
+        }
+
+        int get(int i) {
+            return a[i];
+        }
+
+        int size() {
+            return n;
+        }
+
+        void truncate(int i) {
+            n = i;
+        }
+
+        int[] toSortedSet() {
+            int[] r = Arrays.copyOf(a, n);
+            boolean ordered = true;
+            for (int i = 1; i < n && ordered; i++) {
+                ordered = r[i - 1] < r[i];
+            }
+            if (ordered) {
+                return r;
+            }
+            Arrays.sort(r);
+            int w = 0;
+            for (int i = 0; i < n; i++) {
+                if (w == 0 || r[w - 1] != r[i]) {
+                    r[w++] = r[i];
+                }
+            }
+            return Arrays.copyOf(r, w);
+        }
+    }
+}
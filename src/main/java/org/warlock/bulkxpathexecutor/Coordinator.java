@@ -0,0 +1,168 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Runs a batch across several local worker JVMs, each with its own heap. The
+ * document list is split into contiguous shards in a ShardQueue, idle workers
+ * steal from busy ones, and when all the workers have finished the results
+ * are replayed into the caller's OutputManager in command line order, so the
+ * output is the same as for a single process run.
+ *
+ * A worker that dies (eg OutOfMemoryError on a huge document) is replaced
+ * while work remains. The document it was processing is reported as an error
+ * rather than retried, so one bad document cannot stall the run.
+ *
+ * @author Damian Murphy
+ */
+public class Coordinator {
+
+    private static final long POLL_INTERVAL = 50;
+
+    private int workers = 0;
+    private ArrayList<String> workerArgs = null;
+    private String workerHeap = null;
+    private String queueDirectory = null;
+
+    /**
+     * @param n number of worker processes
+     * @param args paths, data and processing arguments to pass to each worker
+     */
+    public Coordinator(int n, ArrayList<String> args) {
+        workers = n;
+        workerArgs = args;
+    }
+
+    /**
+     * @param h maximum heap for each worker, as for -Xmx, or null for the JVM
+     * default
+     */
+    public void setWorkerHeap(String h) {
+        workerHeap = h;
+    }
+
+    /**
+     * @param d directory for the shared queue, or null for a temporary
+     * directory
+     */
+    public void setQueueDirectory(String d) {
+        queueDirectory = d;
+    }
+
+    /**
+     * processes the documents and merges the results into om
+     *
+     * @param documents paths to document files
+     * @param om destination for outputs and errors
+     * @throws Exception
+     */
+    public void run(ArrayList<String> documents, OutputManager om)
+            throws Exception {
+        if (documents.contains("-") || workerArgs.contains("-")) {
+            throw new Exception("Standard input cannot be shared between worker processes");
+        }
+        String dir = (queueDirectory == null) ? Files.createTempDirectory("bxpqueue").toString() : queueDirectory;
+        ShardQueue queue = new ShardQueue(dir);
+        try {
+            int shardSize = (documents.size() + workers - 1) / workers;
+            for (int i = 0; i < documents.size(); i++) {
+                queue.add(i / shardSize, i, documents.get(i));
+            }
+            supervise(queue, documents.size());
+            for (int i = 0; i < documents.size(); i++) {
+                om.setCurrentFile(documents.get(i));
+                if (queue.isComplete(i)) {
+                    ShardQueue.Result result = queue.getResult(i);
+                    for (String s : result.getOutputs()) {
+                        om.output(s);
+                    }
+                    for (String s : result.getErrors()) {
+                        om.error(s);
+                    }
+                } else {
+                    om.error(ErrorCollector.DOCUMENT_FAILED, null, null, null, "worker process exited before completing it");
+                }
+            }
+        } finally {
+            if (queueDirectory == null) {
+                queue.delete();
+            }
+        }
+    }
+
+    private void supervise(ShardQueue queue, int documents)
+            throws Exception {
+        ArrayList<Process> running = new ArrayList<>();
+        ArrayList<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            running.add(launch(queue, i));
+            ids.add(i);
+        }
+        int restarts = 0;
+        while (!running.isEmpty()) {
+            Thread.sleep(POLL_INTERVAL);
+            Iterator<Process> p = running.iterator();
+            Iterator<Integer> id = ids.iterator();
+            ArrayList<Integer> replace = new ArrayList<>();
+            while (p.hasNext()) {
+                Process w = p.next();
+                int i = id.next();
+                if (w.isAlive()) {
+                    continue;
+                }
+                p.remove();
+                id.remove();
+                if (w.exitValue() != 0) {
+                    System.err.println("Worker " + i + " exited with status " + w.exitValue());
+                    if (queue.pendingCount() > 0 && restarts < documents) {
+                        replace.add(i);
+                    }
+                }
+            }
+            for (int i : replace) {
+                restarts++;
+                running.add(launch(queue, i));
+                ids.add(i);
+            }
+        }
+    }
+
+    private Process launch(ShardQueue queue, int id)
+            throws Exception {
+        ArrayList<String> cmd = new ArrayList<>();
+        cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (workerHeap != null) {
+            cmd.add("-Xmx" + workerHeap);
+        }
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(BulkXpathExecutor.class.getName());
+        cmd.addAll(workerArgs);
+        cmd.add("--worker-queue");
+        cmd.add(queue.getRoot().toString());
+        cmd.add("--worker-id");
+        cmd.add(Integer.toString(id));
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return pb.start();
+    }
+}
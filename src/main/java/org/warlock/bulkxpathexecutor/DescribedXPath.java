@@ -15,28 +15,103 @@
  */
 package org.warlock.bulkxpathexecutor;
 
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
 
 /**
+ * An xpath with its compiled forms. Paths read from a paths file are compiled
+ * lazily, on first use, so a large generated paths file costs little more
+ * than reading it when only a few of its paths are ever evaluated.
  *
  * @author Damian Murphy
  */
 public class DescribedXPath {
     
+    // XPathFactory is not thread safe
+    private static final ThreadLocal<XPathFactory> FACTORY = ThreadLocal.withInitial(XPathFactory::newInstance);
+
     private String xpath = null;
     private XPathExpression expression = null;
+    private CompactXPath compactPath = null;
+    private NamespaceContext namespaceContext = null;
+    private boolean compactCompiled = false;
+    private int limit = 0;
     
     
     DescribedXPath(String p, XPathExpression x) {
         xpath = p;
         expression = x;
+        compactCompiled = true;
+    }
+
+    DescribedXPath(String p, XPathExpression x, CompactXPath c) {
+        this(p, x);
+        compactPath = c;
+    }
+
+    /**
+     * @param p xpath, compiled when it is first needed
+     * @param ns namespace context to compile it with
+     */
+    DescribedXPath(String p, NamespaceContext ns) {
+        xpath = p;
+        namespaceContext = ns;
     }
 
     public String getXpath() {
         return xpath;
     }
 
-    public XPathExpression getExpression() {
+    /**
+     * @return most matches that any label using this path needs, 0 for all
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @param l most matches that any label using this path needs, 0 for all
+     */
+    public void setLimit(int l) {
+        limit = l;
+    }
+
+    /**
+     * @return the compiled expression. XPathExpression is not thread safe, so
+     * a DescribedXPath should only be evaluated on one thread at a time.
+     * @throws XPathExpressionException if the xpath does not compile
+     */
+    public synchronized XPathExpression getExpression()
+            throws XPathExpressionException {
+        if (expression == null) {
+            XPath xp = FACTORY.get().newXPath();
+            xp.setNamespaceContext(namespaceContext);
+            expression = xp.compile(xpath);
+        }
         return expression;
     }
+
+    /**
+     * @return the path compiled for CompactDocument, or null if it is outside
+     * the subset CompactXPath handles
+     */
+    public synchronized CompactXPath getCompactPath() {
+        if (!compactCompiled) {
+            compactPath = CompactXPath.compile(xpath, namespaceContext);
+            compactCompiled = true;
+        }
+        return compactPath;
+    }
+
+    /**
+     * @param c the path compiled for CompactDocument, or null if it is
+     * already known to be outside the subset CompactXPath handles
+     */
+    synchronized void setCompactPath(CompactXPath c) {
+        compactPath = c;
+        compactCompiled = true;
+    }
 }
@@ -0,0 +1,319 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Processes documents concurrently within a heap budget. Each document's
+ * footprint is estimated from its size on disk times a ratio, and documents
+ * are admitted first-fit, in command line order, while the estimated total in
+ * flight stays within the budget. A document whose estimate exceeds the
+ * budget waits for everything else to finish and then runs alone, unless the
+ * documents are being streamed, in which case the footprint does not depend
+ * on the document size.
+ *
+ * The ratio starts at a conservative guess for a DOM and is calibrated from
+ * the live heap after garbage collections while documents are in flight.
+ *
+ * Each document's outputs and errors are collected in memory and replayed
+ * into the caller's OutputManager in command line order, so the output is the
+ * same as for a serial run. As in a serial run, a failed document stops the
+ * run once the documents before it have been replayed, unless failures are
+ * being recorded (see --parser offline).
+ *
+ * @author Damian Murphy
+ */
+public class DocumentScheduler {
+
+    /**
+     * Processes one document
+     */
+    public interface Task {
+
+        /**
+         * @param document path to the document
+         * @param om in memory OutputManager for the document's outputs and
+         * errors
+         * @throws Exception
+         */
+        void process(String document, OutputManager om)
+                throws Exception;
+    }
+
+    // DOM bytes per byte of xml before any calibration
+    static final double DEFAULT_RATIO = 10.0;
+    static final double MIN_RATIO = 2.0;
+    static final double MAX_RATIO = 50.0;
+    // footprint assumed for a streamed document
+    private static final long STREAMED_ESTIMATE = 16 * 1024 * 1024;
+
+    private long budget = 0;
+    private int threads = 1;
+    private boolean streaming = false;
+    private boolean recordFailures = false;
+    private volatile double ratio = DEFAULT_RATIO;
+    private long baselineHeap = 0;
+    private long lastGcCount = 0;
+
+    /**
+     * @param b heap budget in bytes for the documents in flight
+     * @param n maximum number of documents in flight
+     */
+    public DocumentScheduler(long b, int n) {
+        budget = b;
+        threads = Math.max(1, n);
+    }
+
+    /**
+     * @param s true if documents are streamed (see --split), so an oversized
+     * file does not need the heap to itself
+     */
+    public void setStreaming(boolean s) {
+        streaming = s;
+    }
+
+    /**
+     * @param r true if a document that fails is recorded as a
+     * DOCUMENT_FAILED error and the run carries on, false if the first
+     * failure, in command line order, is thrown from run
+     */
+    public void setRecordFailures(boolean r) {
+        recordFailures = r;
+    }
+
+    /**
+     * @return current bytes of heap estimated per byte of document
+     */
+    public double getRatio() {
+        return ratio;
+    }
+
+    /**
+     * @param document path to the document, or - for stdin
+     * @return estimated heap needed to process it
+     */
+    public long estimate(String document) {
+        if (streaming) {
+            return Math.min(STREAMED_ESTIMATE, budget);
+        }
+        if (document.contentEquals("-")) {
+            // unknown size
+            return budget + 1;
+        }
+        return (long) (new File(document).length() * ratio);
+    }
+
+    /**
+     * parses a size in the style of -Xmx, eg 512m or 4g
+     *
+     * @param s size, with an optional k, m or g suffix
+     * @return size in bytes
+     */
+    public static long parseSize(String s) {
+        String t = s.trim().toLowerCase();
+        long multiplier = 1;
+        switch (t.charAt(t.length() - 1)) {
+            case 'k':
+                multiplier = 1024L;
+                break;
+            case 'm':
+                multiplier = 1024L * 1024;
+                break;
+            case 'g':
+                multiplier = 1024L * 1024 * 1024;
+                break;
+            default:
+        }
+        if (multiplier > 1) {
+            t = t.substring(0, t.length() - 1);
+        }
+        return Long.parseLong(t) * multiplier;
+    }
+
+    /**
+     * processes the documents and replays the results into om
+     *
+     * @param documents paths to document files
+     * @param om destination for outputs and errors
+     * @param task processes one document
+     * @throws Exception the first document failure, unless failures are
+     * being recorded
+     */
+    public void run(ArrayList<String> documents, OutputManager om, Task task)
+            throws Exception {
+        int n = documents.size();
+        long[] estimates = new long[n];
+        OutputManager[] results = new OutputManager[n];
+        boolean[] done = new boolean[n];
+        Throwable[] failures = new Throwable[n];
+        int failed = n;
+        ArrayList<Integer> waiting = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            waiting.add(i);
+        }
+        LinkedBlockingQueue<Integer> completions = new LinkedBlockingQueue<>();
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        baselineHeap = liveHeap();
+        lastGcCount = gcCount();
+        long inFlight = 0;
+        long inFlightFileBytes = 0;
+        int running = 0;
+        int next = 0;
+        try {
+            while (next < n) {
+                // admit first-fit, except that an oversized document at the
+                // head of the queue holds back the rest until it has run
+                Iterator<Integer> w = waiting.iterator();
+                while (w.hasNext() && running < threads) {
+                    int i = w.next();
+                    if (i > failed) {
+                        // a serial run would not get this far
+                        break;
+                    }
+                    long e = estimate(documents.get(i));
+                    boolean alone = e > budget;
+                    if (alone ? running > 0 : inFlight + e > budget) {
+                        if (alone) {
+                            break;
+                        }
+                        continue;
+                    }
+                    w.remove();
+                    estimates[i] = alone ? budget : e;
+                    inFlight += estimates[i];
+                    inFlightFileBytes += fileSize(documents.get(i));
+                    running++;
+                    OutputManager r = new OutputManager();
+                    r.setInMemoryOutput();
+                    r.setInMemoryError();
+                    // structured errors go straight to a shared collector
+                    r.setErrorCollector(om.getErrorCollector());
+                    results[i] = r;
+                    final int index = i;
+                    exec.submit(() -> {
+                        try {
+                            task.process(documents.get(index), r);
+                        } catch (Exception x) {
+                            if (recordFailures) {
+                                try {
+                                    r.error(new ErrorCollector.Record(documents.get(index), ErrorCollector.DOCUMENT_FAILED, null, null, null, ParserProfile.describe(x)));
+                                } catch (Exception e2) {
+                                    // in memory errors do not throw
+                                }
+                            } else {
+                                failures[index] = x;
+                            }
+                        } catch (Throwable t) {
+                            failures[index] = t;
+                        } finally {
+                            completions.add(index);
+                        }
+                    });
+                    if (alone) {
+                        break;
+                    }
+                }
+                int i = completions.take();
+                calibrate(inFlightFileBytes);
+                done[i] = true;
+                if (failures[i] != null) {
+                    failed = Math.min(failed, i);
+                }
+                inFlight -= estimates[i];
+                inFlightFileBytes -= fileSize(documents.get(i));
+                running--;
+                while (next < n && done[next]) {
+                    om.setCurrentFile(documents.get(next));
+                    for (String s : results[next].getOutputs()) {
+                        om.output(s);
+                    }
+                    for (String s : results[next].getErrors()) {
+                        om.error(s);
+                    }
+                    if (failures[next] instanceof Error) {
+                        throw (Error) failures[next];
+                    }
+                    if (failures[next] != null) {
+                        throw (Exception) failures[next];
+                    }
+                    results[next] = null;
+                    next++;
+                }
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    /**
+     * updates the ratio from the live heap after the latest collection, if
+     * there has been one since the last sample. The ratio rises at once to
+     * what was observed but only falls gradually.
+     *
+     * @param fileBytes total size of the documents in flight
+     */
+    private void calibrate(long fileBytes) {
+        long count = gcCount();
+        if (count == lastGcCount || fileBytes <= 0) {
+            return;
+        }
+        lastGcCount = count;
+        double observed = (liveHeap() - baselineHeap) / (double) fileBytes;
+        if (observed <= 0) {
+            return;
+        }
+        double r = (observed > ratio) ? observed : (0.8 * ratio + 0.2 * observed);
+        ratio = Math.max(MIN_RATIO, Math.min(MAX_RATIO, r));
+    }
+
+    private static long fileSize(String document) {
+        return document.contentEquals("-") ? 0 : new File(document).length();
+    }
+
+    private static long liveHeap() {
+        long used = 0;
+        for (MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (p.getType() == MemoryType.HEAP) {
+                MemoryUsage u = p.getCollectionUsage();
+                if (u != null) {
+                    used += u.getUsed();
+                }
+            }
+        }
+        return used;
+    }
+
+    private static long gcCount() {
+        long c = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc.getCollectionCount() > 0) {
+                c += gc.getCollectionCount();
+            }
+        }
+        return c;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects processing errors as structured records for runs that produce too
+ * many to write out one by one. Each kind of error is counted, repeats of
+ * the same warning (same kind, label and xpath) are counted against the
+ * first occurrence, and the details of the most recent errors are kept in a
+ * fixed size ring. Adding a record takes no locks, so one collector can be
+ * shared by documents processed in parallel, and memory use does not grow
+ * with the number of errors.
+ *
+ * @author Damian Murphy
+ */
+public class ErrorCollector {
+
+    // Kinds of error
+    public static final int OTHER = 0;
+    public static final int UNDEFINED_REFERENCE = 1;
+    public static final int MALFORMED_DATE = 2;
+    public static final int FRAGMENT_TARGET = 3;
+    public static final int DELETE_NO_PARENT = 4;
+    public static final int DOCUMENT_FAILED = 5;
+    private static final String[] KIND_NAMES = {"other", "undefined-reference", "malformed-date", "fragment-target", "delete-no-parent", "document-failed"};
+
+    public static final int DEFAULT_SAMPLES = 100;
+    // distinct warnings tracked before further ones are only counted
+    private static final int MAX_DISTINCT = 10000;
+
+    /**
+     * One error. The message is only built when it is needed.
+     */
+    public static final class Record {
+
+        private final String document;
+        private final int kind;
+        private final String label;
+        private final String xpath;
+        private final String node;
+        private final String value;
+
+        /**
+         * @param d document being processed, may be null
+         * @param k kind of error
+         * @param l label, may be null
+         * @param x label's xpath, may be null
+         * @param n local name of the node, may be null
+         * @param v the value concerned, eg the malformed date, the undefined
+         * reference, the fragment, or the whole message for OTHER
+         */
+        public Record(String d, int k, String l, String x, String n, String v) {
+            document = d;
+            kind = k;
+            label = l;
+            xpath = x;
+            node = n;
+            value = v;
+        }
+
+        public String getDocument() {
+            return document;
+        }
+
+        public int getKind() {
+            return kind;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public String getXpath() {
+            return xpath;
+        }
+
+        public String getNode() {
+            return node;
+        }
+
+        /**
+         * @return the message as it is written when errors are not collected
+         */
+        public String getMessage() {
+            return message(kind, document, label, xpath, node, value);
+        }
+
+        private String key() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(kind).append('\t').append(label).append('\t').append(xpath);
+            if (kind == OTHER || kind == DOCUMENT_FAILED) {
+                sb.append('\t').append(value);
+            }
+            return sb.toString();
+        }
+    }
+
+    private static class Repeat {
+
+        final Record first;
+        final LongAdder count = new LongAdder();
+
+        Repeat(Record r) {
+            first = r;
+        }
+    }
+
+    private final LongAdder[] counts = new LongAdder[KIND_NAMES.length];
+    private final ConcurrentHashMap<String, Repeat> repeats = new ConcurrentHashMap<>();
+    private final LongAdder untracked = new LongAdder();
+    private final AtomicReferenceArray<Record> samples;
+    private final AtomicLong added = new AtomicLong();
+
+    /**
+     * @param n number of recent errors to keep the details of
+     */
+    public ErrorCollector(int n) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+        samples = new AtomicReferenceArray<>(Math.max(1, n));
+    }
+
+    /**
+     * @param r error to record
+     */
+    public void add(Record r) {
+        counts[r.kind].increment();
+        String key = r.key();
+        Repeat repeat = repeats.get(key);
+        if (repeat == null) {
+            if (repeats.size() < MAX_DISTINCT) {
+                Repeat n = new Repeat(r);
+                Repeat p = repeats.putIfAbsent(key, n);
+                repeat = (p == null) ? n : p;
+            }
+        }
+        if (repeat != null) {
+            repeat.count.increment();
+        } else {
+            untracked.increment();
+        }
+        long i = added.getAndIncrement();
+        samples.set((int) (i % samples.length()), r);
+    }
+
+    /**
+     * @return number of errors recorded
+     */
+    public long getCount() {
+        return added.get();
+    }
+
+    /**
+     * @param kind kind of error
+     * @return number of errors of that kind recorded
+     */
+    public long getCount(int kind) {
+        return counts[kind].sum();
+    }
+
+    /**
+     * @return the most recent errors, oldest first
+     */
+    public ArrayList<Record> getSamples() {
+        ArrayList<Record> l = new ArrayList<>();
+        long n = added.get();
+        for (long i = Math.max(0, n - samples.length()); i < n; i++) {
+            Record r = samples.get((int) (i % samples.length()));
+            if (r != null) {
+                l.add(r);
+            }
+        }
+        return l;
+    }
+
+    /**
+     * @return report lines: the count of each kind of error, each distinct
+     * warning with its number of occurrences, most frequent first, and the
+     * details of the most recent errors, all tab separated
+     */
+    public ArrayList<String> summary() {
+        ArrayList<String> lines = new ArrayList<>();
+        lines.add("Errors\t" + getCount());
+        for (int k = 0; k < counts.length; k++) {
+            long c = counts[k].sum();
+            if (c > 0) {
+                lines.add(KIND_NAMES[k] + "\t" + c);
+            }
+        }
+        ArrayList<Repeat> distinct = new ArrayList<>(repeats.values());
+        distinct.sort((a, b) -> {
+            int c = Long.compare(b.count.sum(), a.count.sum());
+            return (c != 0) ? c : a.first.key().compareTo(b.first.key());
+        });
+        lines.add("Distinct\t" + distinct.size());
+        for (Repeat r : distinct) {
+            lines.add(r.count.sum() + "\t" + r.first.getMessage());
+        }
+        if (untracked.sum() > 0) {
+            lines.add(untracked.sum() + "\tfurther errors not told apart");
+        }
+        ArrayList<Record> recent = getSamples();
+        lines.add("Recent\t" + recent.size());
+        for (Record r : recent) {
+            lines.add(blank(r.document) + "\t" + KIND_NAMES[r.kind] + "\t" + blank(r.label) + "\t" + blank(r.xpath) + "\t" + blank(r.node) + "\t" + r.getMessage());
+        }
+        return lines;
+    }
+
+    private static String blank(String s) {
+        return (s == null) ? "" : s;
+    }
+
+    /**
+     * builds the text of an error
+     *
+     * @param kind kind of error
+     * @param document document being processed, may be null
+     * @param label label, may be null
+     * @param xpath label's xpath, may be null
+     * @param node local name of the node, may be null
+     * @param value the value concerned
+     * @return message
+     */
+    public static String message(int kind, String document, String label, String xpath, String node, String value) {
+        switch (kind) {
+            case UNDEFINED_REFERENCE:
+                return "WARNING: Ignoring substitution. Label " + label + " references another: " + value + " which is not defined.";
+            case MALFORMED_DATE:
+                return "Failed to parse malformed date string " + value + " at node " + node;
+            case FRAGMENT_TARGET:
+                return "WARNING: Ignoring substitution. Attempt to substitute XML fragment " + value + " into non-element location " + xpath
+                        + ": XML fragment substitutions can only be made into elements.";
+            case DELETE_NO_PARENT:
+                return "Failed to delete " + node + " no parent ";
+            case DOCUMENT_FAILED:
+                return "Failed processing " + document + ": " + value;
+            default:
+                return value;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads documents from, and writes results to, a stream of frames, so that
+ * one process can handle any number of documents on stdin and stdout.
+ *
+ * In LENGTH format each frame is its length in bytes, in ASCII decimal, on a
+ * line of its own followed by that many bytes. Blank lines between frames
+ * are ignored, so frames can be written with, for example, printf '%d\n'
+ * followed by cat. In NUL format each frame is followed by a NUL byte, which
+ * cannot occur in XML; the last frame of the stream may omit it.
+ *
+ * Frames are read as they arrive, without waiting for more input, and each
+ * written frame is flushed at once. With a size limit, the content of a frame
+ * over it is passed over without being held in memory, and the frame is read
+ * as empty, so the frames after it are still read in step.
+ *
+ * @author Damian Murphy
+ */
+public class FramedStream {
+
+    // frame formats
+    public static final int LENGTH = 1;
+    public static final int NUL = 2;
+
+    // longest length line accepted
+    private static final int MAX_HEADER = 20;
+
+    private final int format;
+    private final InputStream in;
+    private final OutputStream out;
+    private long maxSize = 0;
+    private long lastSize = 0;
+
+    /**
+     * @param f LENGTH or NUL
+     * @param i stream to read frames from, which should be buffered
+     * @param o stream to write frames to
+     */
+    public FramedStream(int f, InputStream i, OutputStream o) {
+        format = f;
+        in = i;
+        out = o;
+    }
+
+    /**
+     * @param m largest frame content read, in bytes, or 0 for no limit
+     */
+    public void setMaxSize(long m) {
+        maxSize = m;
+    }
+
+    /**
+     * @return size in bytes of the last frame read, which is more than the
+     * content returned for a frame over the size limit
+     */
+    public long getLastSize() {
+        return lastSize;
+    }
+
+    /**
+     * parses the --framed argument
+     *
+     * @param s length or nul
+     * @return LENGTH or NUL
+     * @throws Exception if the format is not recognised
+     */
+    public static int getFormat(String s)
+            throws Exception {
+        switch (s) {
+            case "length":
+                return LENGTH;
+            case "nul":
+                return NUL;
+            default:
+                throw new Exception("Unknown frame format " + s + ": expected length or nul");
+        }
+    }
+
+    /**
+     * @return the content of the next frame, or null at the end of the
+     * stream
+     * @throws IOException if the stream ends within a frame, or a length is
+     * not valid
+     */
+    public byte[] read()
+            throws IOException {
+        return (format == LENGTH) ? readLength() : readNul();
+    }
+
+    /**
+     * writes a frame and flushes it
+     *
+     * @param content frame content
+     * @throws IOException
+     */
+    public void write(byte[] content)
+            throws IOException {
+        if (format == LENGTH) {
+            out.write((content.length + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(content);
+        } else {
+            out.write(content);
+            out.write(0);
+        }
+        out.flush();
+    }
+
+    private byte[] readLength()
+            throws IOException {
+        StringBuilder header = new StringBuilder();
+        int c;
+        while (true) {
+            c = in.read();
+            if (c == -1) {
+                if (header.length() == 0) {
+                    return null;
+                }
+                throw new IOException("Stream ended in frame length " + header);
+            }
+            if (c == '\n') {
+                if (header.length() > 0) {
+                    break;
+                }
+            } else if (c != '\r') {
+                if (c < '0' || c > '9' || header.length() == MAX_HEADER) {
+                    throw new IOException("Frame length expected, found " + header + (char) c);
+                }
+                header.append((char) c);
+            }
+        }
+        long length = Long.parseLong(header.toString());
+        lastSize = length;
+        if (maxSize > 0 && length > maxSize) {
+            skip(length);
+            return new byte[0];
+        }
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new IOException("Frame of " + length + " bytes is too large");
+        }
+        byte[] content = in.readNBytes((int) length);
+        if (content.length < length) {
+            throw new IOException("Stream ended after " + content.length + " of " + length + " frame bytes");
+        }
+        return content;
+    }
+
+    private void skip(long length)
+            throws IOException {
+        long skipped = 0;
+        while (skipped < length) {
+            long n = in.skip(length - skipped);
+            if (n <= 0) {
+                if (in.read() == -1) {
+                    throw new IOException("Stream ended after " + skipped + " of " + length + " frame bytes");
+                }
+                n = 1;
+            }
+            skipped += n;
+        }
+    }
+
+    private byte[] readNul()
+            throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        long size = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == 0) {
+                lastSize = size;
+                return content.toByteArray();
+            }
+            // past the limit the content is dropped, up to the end of the frame
+            size++;
+            if (maxSize == 0 || size <= maxSize) {
+                content.write(c);
+            } else if (size == maxSize + 1) {
+                content.reset();
+            }
+        }
+        lastSize = size;
+        if (size > content.size()) {
+            return new byte[0];
+        }
+        // an unterminated last frame, unless it is only trailing white space
+        byte[] b = content.toByteArray();
+        return new String(b, StandardCharsets.UTF_8).trim().isEmpty() ? null : b;
+    }
+}
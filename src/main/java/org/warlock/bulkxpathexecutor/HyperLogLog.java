@@ -0,0 +1,95 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+/**
+ * HyperLogLog distinct count estimate in a fixed 4 kB of registers, with a
+ * standard error of about 1.6%. Small counts use linear counting, which is
+ * close to exact. Two sketches merge by taking the larger of each register.
+ *
+ * @author Damian Murphy
+ */
+public class HyperLogLog {
+
+    private static final int P = 12;
+    private static final int M = 1 << P;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / M);
+
+    private final byte[] registers = new byte[M];
+
+    public HyperLogLog() {
+    }
+
+    /**
+     * @param s value to count
+     */
+    public void add(String s) {
+        long h = hash(s);
+        int index = (int) (h >>> (64 - P));
+        int rank = Math.min(Long.numberOfLeadingZeros(h << P), 64 - P) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    /**
+     * @param h sketch to fold into this one
+     */
+    public void merge(HyperLogLog h) {
+        for (int i = 0; i < M; i++) {
+            if (h.registers[i] > registers[i]) {
+                registers[i] = h.registers[i];
+            }
+        }
+    }
+
+    /**
+     * @return estimated number of distinct values added
+     */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double e = ALPHA * M * M / sum;
+        if (e <= 2.5 * M && zeros > 0) {
+            e = M * Math.log((double) M / zeros);
+        }
+        return Math.round(e);
+    }
+
+    /**
+     * 64 bit FNV-1a over the characters, with a final avalanche so that the
+     * high bits used for the register index are well mixed
+     */
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.util.List;
+
+/**
+ * Corpus level summary of one label's matches for aggregate mode: exact
+ * counts of documents with a match and of matches, a HyperLogLog distinct
+ * count, Space-Saving top values and the minimum and maximum value in string
+ * order (which is date order for ISO 8601 values). Summaries built separately
+ * merge into the same result as one built over all the documents, except for
+ * the small errors of the sketches.
+ *
+ * @author Damian Murphy
+ */
+public class LabelAggregate {
+
+    private final int topK;
+    private long documents = 0;
+    private long matches = 0;
+    private HyperLogLog distinct = new HyperLogLog();
+    private SpaceSaving heavyHitters = null;
+    private String min = null;
+    private String max = null;
+
+    /**
+     * @param k number of top values to report
+     */
+    public LabelAggregate(int k) {
+        topK = k;
+        // extra counters keep the reported top k accurate
+        heavyHitters = new SpaceSaving(Math.max(10 * k, 100));
+    }
+
+    /**
+     * folds in one document's matches
+     *
+     * @param values node values matched, null for nodes without a value
+     */
+    public void add(List<String> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        documents++;
+        matches += values.size();
+        for (String v : values) {
+            if (v == null) {
+                continue;
+            }
+            distinct.add(v);
+            heavyHitters.add(v);
+            if (min == null || v.compareTo(min) < 0) {
+                min = v;
+            }
+            if (max == null || v.compareTo(max) > 0) {
+                max = v;
+            }
+        }
+    }
+
+    /**
+     * @param a summary to fold into this one
+     */
+    public void merge(LabelAggregate a) {
+        documents += a.documents;
+        matches += a.matches;
+        distinct.merge(a.distinct);
+        heavyHitters.merge(a.heavyHitters);
+        if (a.min != null && (min == null || a.min.compareTo(min) < 0)) {
+            min = a.min;
+        }
+        if (a.max != null && (max == null || a.max.compareTo(max) > 0)) {
+            max = a.max;
+        }
+    }
+
+    public long getDocuments() {
+        return documents;
+    }
+
+    public long getMatches() {
+        return matches;
+    }
+
+    public long getDistinct() {
+        return distinct.estimate();
+    }
+
+    public String getMin() {
+        return min;
+    }
+
+    public String getMax() {
+        return max;
+    }
+
+    /**
+     * @param label label the summary is for
+     * @return one tab separated report line: label, documents=, matches=,
+     * distinct= (an estimate), min=, max= and top= with value=count pairs
+     * separated by |, a count prefixed with ~ being an upper bound
+     */
+    public String report(String label) {
+        StringBuilder sb = new StringBuilder(label);
+        sb.append("\tdocuments=").append(documents);
+        sb.append("\tmatches=").append(matches);
+        sb.append("\tdistinct=").append(getDistinct());
+        sb.append("\tmin=").append((min == null) ? "" : min);
+        sb.append("\tmax=").append((max == null) ? "" : max);
+        sb.append("\ttop=");
+        boolean first = true;
+        for (String v : heavyHitters.top(topK)) {
+            if (!first) {
+                sb.append("|");
+            }
+            first = false;
+            sb.append(v).append("=");
+            if (heavyHitters.getError(v) > 0) {
+                sb.append("~");
+            }
+            sb.append(heavyHitters.getCount(v));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with logarithmic buckets, in the style of HdrHistogram:
+ * each power of two is split into 8 linear sub-buckets, so any value is
+ * placed within 12.5% in a fixed 488 counters covering 1 to 2^63. Recording
+ * takes no locks, so documents processed in parallel can share one.
+ *
+ * @author Damian Murphy
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB + (63 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram() {
+    }
+
+    /**
+     * @param v value to record, eg a latency in microseconds. Negative values
+     * are recorded as 0.
+     */
+    public void record(long v) {
+        long value = Math.max(0, v);
+        counts.incrementAndGet(index(value));
+        total.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    public long getCount() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            n += counts.get(i);
+        }
+        return n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = getCount();
+        return (n == 0) ? 0 : total.sum() / (double) n;
+    }
+
+    /**
+     * @param p percentile, 0 to 100
+     * @return a value no more than 12.5% above the given percentile of the
+     * values recorded, or 0 if there are none
+     */
+    public long getPercentile(double p) {
+        long n = getCount();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upper(i) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return one line per non-empty bucket, tab separated: lowest value,
+     * highest value and count
+     */
+    public ArrayList<String> buckets() {
+        ArrayList<String> lines = new ArrayList<>();
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = counts.get(i);
+            if (c > 0) {
+                lines.add(lower(i) + "\t" + (upper(i) - 1) + "\t" + c);
+            }
+        }
+        return lines;
+    }
+
+    static int index(long v) {
+        if (v < SUB) {
+            return (int) v;
+        }
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        return SUB + (e - SUB_BITS) * SUB + (int) ((v >>> (e - SUB_BITS)) - SUB);
+    }
+
+    static long lower(int i) {
+        if (i < SUB) {
+            return i;
+        }
+        int k = i - SUB;
+        return (long) (k % SUB + SUB) << (k / SUB);
+    }
+
+    static long upper(int i) {
+        if (i < SUB) {
+            return i + 1;
+        }
+        int k = i - SUB;
+        return (long) (k % SUB + SUB + 1) << (k / SUB);
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * End to end load test. Runs the whole command line pipeline (argument
+ * handling, reading the paths and data files, processing the documents and
+ * writing output) over a corpus, and reports documents/s, MB/s, peak RSS and
+ * GC time. The corpus is either the documents on the command line or one
+ * generated to a given size and shape.
+ *
+ * Results can be compared against a baseline properties file written by an
+ * earlier run. A throughput drop or peak RSS rise beyond the threshold is a
+ * regression, and run() then returns non-zero.
+ *
+ * With --compare-engines a substitution run is measured once with each
+ * engine, dom and xslt, and the throughputs compared.
+ *
+ * Usage: java -jar BulkXpathExecutor.jar --loadtest [ --corpus-size n ] [
+ * --corpus-entries n ] [ --runs n ] [ --baseline file [ --threshold percent ]
+ * [ --save-baseline ] | --compare-engines ] -p pathsfile ... [ documentfile+
+ * ]
+ *
+ * @author Damian Murphy
+ */
+public class LoadTest {
+
+    public static final String DOCS_PER_SECOND = "documents.per.second";
+    public static final String MB_PER_SECOND = "mb.per.second";
+    public static final String PEAK_RSS = "peak.rss.kb";
+    public static final String GC_TIME = "gc.ms";
+
+    private static final double DEFAULT_THRESHOLD = 10.0;
+    private static final String[] CODES = {"35489007", "195967001", "38341003", "73211009", "44054006", "13645005", "69896004", "399211009"};
+
+    private int corpusSize = 100;
+    private int corpusEntries = 50;
+    private int runs = 3;
+    private String baseline = null;
+    private boolean saveBaseline = false;
+    private double threshold = DEFAULT_THRESHOLD;
+    private boolean compareEngines = false;
+    private ArrayList<String> pipelineArgs = new ArrayList<>();
+    private ArrayList<String> documents = new ArrayList<>();
+    private boolean hasOutput = false;
+
+    /**
+     * @param args command line, after --loadtest
+     * @throws Exception
+     */
+    public LoadTest(String[] args)
+            throws Exception {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--corpus-size":
+                    corpusSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--corpus-entries":
+                    corpusEntries = Integer.parseInt(args[++i]);
+                    break;
+                case "--runs":
+                    runs = Integer.parseInt(args[++i]);
+                    break;
+                case "--baseline":
+                    baseline = args[++i];
+                    break;
+                case "--save-baseline":
+                    saveBaseline = true;
+                    break;
+                case "--threshold":
+                    threshold = Double.parseDouble(args[++i]);
+                    break;
+                case "--compare-engines":
+                    compareEngines = true;
+                    break;
+                case "-o":
+                case "-x":
+                    hasOutput = true;
+                    pipelineArgs.add(args[i]);
+                    pipelineArgs.add(args[++i]);
+                    break;
+                case "-m":
+                    hasOutput = true;
+                    pipelineArgs.add(args[i]);
+                    break;
+                default:
+                    if (takesValue(args[i])) {
+                        pipelineArgs.add(args[i]);
+                        pipelineArgs.add(args[++i]);
+                    } else if (args[i].startsWith("-") && !args[i].contentEquals("-")) {
+                        pipelineArgs.add(args[i]);
+                    } else {
+                        documents.add(args[i]);
+                    }
+            }
+        }
+        if (documents.contains("-")) {
+            throw new Exception("The load test cannot read documents from standard input");
+        }
+        if (compareEngines && (baseline != null || pipelineArgs.contains("--engine"))) {
+            throw new Exception("--compare-engines chooses the engine itself and has no baseline");
+        }
+    }
+
+    /**
+     * @return the documents to load test with, if not a generated corpus
+     */
+    public ArrayList<String> getDocuments() {
+        return documents;
+    }
+
+    private static boolean takesValue(String a) {
+        switch (a) {
+            case "-p":
+            case "-r":
+            case "-e":
+            case "-X":
+            case "--columns":
+            case "--multivalue":
+            case "--columnar-file":
+            case "--engine":
+            case "--split":
+            case "--threads":
+            case "--memory-budget":
+            case "--top":
+            case "--error-samples":
+            case "--profiles":
+            case "--snapshot":
+            case "--progress":
+            case "--status-file":
+            case "--index":
+            case "--parser":
+            case "--doctype":
+            case "--max-depth":
+            case "--max-entity-expansions":
+            case "--max-document-size":
+            case "--workers":
+            case "--worker-heap":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * runs the load test and prints a report to stdout
+     *
+     * @return 0, or 1 if a regression against the baseline was found
+     * @throws Exception
+     */
+    public int run()
+            throws Exception {
+        Path corpus = null;
+        Path output = null;
+        try {
+            ArrayList<String> docs = documents;
+            if (docs.isEmpty()) {
+                corpus = Files.createTempDirectory("bxpcorpus");
+                docs = generate(corpus.toFile(), corpusSize, corpusEntries);
+            }
+            long bytes = 0;
+            for (String d : docs) {
+                bytes += new File(d).length();
+            }
+            ArrayList<String> args = new ArrayList<>(pipelineArgs);
+            if (!hasOutput) {
+                output = Files.createTempFile("bxploadtest", ".out");
+                args.add("-o");
+                args.add(output.toString());
+            }
+            args.addAll(docs);
+
+            if (compareEngines) {
+                Properties[] results = new Properties[2];
+                String[] engines = {"dom", "xslt"};
+                for (int e = 0; e < engines.length; e++) {
+                    System.out.println("Engine " + engines[e]);
+                    ArrayList<String> ea = new ArrayList<>(args);
+                    ea.add(0, engines[e]);
+                    ea.add(0, "--engine");
+                    results[e] = measure(ea.toArray(new String[ea.size()]), docs.size(), bytes);
+                }
+                double dom = Double.parseDouble(results[0].getProperty(DOCS_PER_SECOND));
+                double xslt = Double.parseDouble(results[1].getProperty(DOCS_PER_SECOND));
+                System.out.println(String.format("xslt/dom throughput: %.2f", xslt / dom));
+                return 0;
+            }
+            Properties result = measure(args.toArray(new String[args.size()]), docs.size(), bytes);
+
+            int status = 0;
+            if (baseline != null) {
+                File b = new File(baseline);
+                if (b.exists() && !saveBaseline) {
+                    Properties base = new Properties();
+                    try (FileReader fr = new FileReader(b)) {
+                        base.load(fr);
+                    }
+                    ArrayList<String> regressions = compare(base, result, threshold);
+                    for (String s : regressions) {
+                        System.out.println("REGRESSION: " + s);
+                    }
+                    if (regressions.isEmpty()) {
+                        System.out.println("No regression against " + baseline + " at " + threshold + "%");
+                    } else {
+                        status = 1;
+                    }
+                } else {
+                    try (PrintWriter pw = new PrintWriter(b)) {
+                        result.store(pw, "BulkXpathExecutor load test baseline");
+                    }
+                    System.out.println("Baseline written to " + baseline);
+                }
+            }
+            return status;
+        } finally {
+            if (corpus != null) {
+                delete(corpus);
+            }
+            if (output != null) {
+                Files.deleteIfExists(output);
+            }
+        }
+    }
+
+    /**
+     * runs the pipeline --runs times
+     *
+     * @param a pipeline arguments
+     * @param documents number of documents
+     * @param bytes total size of the documents
+     * @return results for the fastest run
+     * @throws Exception
+     */
+    private Properties measure(String[] a, int documents, long bytes)
+            throws Exception {
+        double best = 0;
+        long gcTime = 0;
+        PrintStream stdout = System.out;
+        for (int r = 0; r < runs; r++) {
+            long gcStart = gcTime();
+            long start = System.nanoTime();
+            // the pipeline's progress messages are not part of the report
+            System.setOut(new PrintStream(new FileOutputStream(nullDevice())));
+            try {
+                BulkXpathExecutor.main(a);
+            } finally {
+                System.out.close();
+                System.setOut(stdout);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long gc = gcTime() - gcStart;
+            double dps = documents / seconds;
+            System.out.println(String.format("Run %d: %d documents, %.3f s, %.1f documents/s, GC %d ms", r + 1, documents, seconds, dps, gc));
+            if (dps > best) {
+                best = dps;
+                gcTime = gc;
+            }
+        }
+        Properties result = new Properties();
+        result.setProperty(DOCS_PER_SECOND, String.format("%.3f", best));
+        result.setProperty(MB_PER_SECOND, String.format("%.3f", best * (bytes / (double) documents) / (1024 * 1024)));
+        result.setProperty(PEAK_RSS, Long.toString(peakRss()));
+        result.setProperty(GC_TIME, Long.toString(gcTime));
+        System.out.println("Best run: " + result.getProperty(DOCS_PER_SECOND) + " documents/s, " + result.getProperty(MB_PER_SECOND)
+                + " MB/s, peak RSS " + result.getProperty(PEAK_RSS) + " kB, GC " + result.getProperty(GC_TIME) + " ms");
+        return result;
+    }
+
+    /**
+     * compares a result with a baseline. Throughput that drops, or peak RSS
+     * that rises, by more than the threshold is a regression. GC time is
+     * reported but too noisy to fail on.
+     *
+     * @param base baseline
+     * @param result this run
+     * @param threshold allowed change, in percent
+     * @return a description of each regression, empty if there are none
+     */
+    public static ArrayList<String> compare(Properties base, Properties result, double threshold) {
+        ArrayList<String> regressions = new ArrayList<>();
+        check(regressions, DOCS_PER_SECOND, base, result, -threshold);
+        check(regressions, MB_PER_SECOND, base, result, -threshold);
+        check(regressions, PEAK_RSS, base, result, threshold);
+        return regressions;
+    }
+
+    private static void check(ArrayList<String> regressions, String key, Properties base, Properties result, double limit) {
+        String b = base.getProperty(key);
+        String r = result.getProperty(key);
+        if (b == null || r == null) {
+            return;
+        }
+        double bv = Double.parseDouble(b);
+        double rv = Double.parseDouble(r);
+        if (bv <= 0 || rv <= 0) {
+            // not measured, eg peak RSS off Linux
+            return;
+        }
+        double change = (rv - bv) * 100 / bv;
+        if ((limit < 0 && change < limit) || (limit > 0 && change > limit)) {
+            regressions.add(String.format("%s %s against baseline %s (%+.1f%%)", key, r, b, change));
+        }
+    }
+
+    /**
+     * writes a synthetic corpus of FHIR bundles, each with entries Condition
+     * resources, to dir. The content is generated from a fixed seed so a
+     * given size and shape is always the same corpus.
+     *
+     * @param dir directory to write to
+     * @param size number of documents
+     * @param entries entries per document
+     * @return paths to the documents
+     * @throws Exception
+     */
+    public static ArrayList<String> generate(File dir, int size, int entries)
+            throws Exception {
+        Random random = new Random(size * 31L + entries);
+        ArrayList<String> docs = new ArrayList<>();
+        for (int d = 0; d < size; d++) {
+            File f = new File(dir, String.format("bundle%06d.xml", d));
+            try (PrintWriter pw = new PrintWriter(f, "UTF-8")) {
+                pw.println("<Bundle xmlns=\"http://hl7.org/fhir\">");
+                pw.println("   <id value=\"bundle-" + d + "\"/>");
+                pw.println("   <type value=\"collection\"/>");
+                for (int e = 0; e < entries; e++) {
+                    String id = "Condition-" + d + "-" + e;
+                    pw.println("   <entry>");
+                    pw.println("      <fullUrl value=\"Condition/" + id + "\"/>");
+                    pw.println("      <resource>");
+                    pw.println("         <Condition>");
+                    pw.println("            <id value=\"" + id + "\"/>");
+                    pw.println("            <clinicalStatus value=\"" + (random.nextBoolean() ? "active" : "inactive") + "\"/>");
+                    pw.println("            <code>");
+                    pw.println("               <coding>");
+                    pw.println("                  <system value=\"http://snomed.info/sct\"/>");
+                    pw.println("                  <code value=\"" + CODES[random.nextInt(CODES.length)] + "\"/>");
+                    pw.println("               </coding>");
+                    pw.println("            </code>");
+                    pw.println("            <subject>");
+                    pw.println("               <reference value=\"Patient/" + random.nextInt(1000) + "\"/>");
+                    pw.println("            </subject>");
+                    pw.println(String.format("            <onsetDateTime value=\"%04d-%02d-%02dT09:00:00+00:00\"/>",
+                            2000 + random.nextInt(19), 1 + random.nextInt(12), 1 + random.nextInt(28)));
+                    pw.println("         </Condition>");
+                    pw.println("      </resource>");
+                    pw.println("   </entry>");
+                }
+                pw.println("</Bundle>");
+            }
+            docs.add(f.getPath());
+        }
+        return docs;
+    }
+
+    private static long gcTime() {
+        long t = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc.getCollectionTime() > 0) {
+                t += gc.getCollectionTime();
+            }
+        }
+        return t;
+    }
+
+    /**
+     * @return peak resident set size in kB, from /proc/self/status, or 0
+     * where that is not available
+     */
+    private static long peakRss() {
+        File status = new File("/proc/self/status");
+        if (!status.exists()) {
+            return 0;
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(status))) {
+            String line = null;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (Exception e) {
+            return 0;
+        }
+        return 0;
+    }
+
+    private static File nullDevice() {
+        return new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null");
+    }
+
+    private static void delete(Path p)
+            throws Exception {
+        try (Stream<Path> s = Files.walk(p)) {
+            s.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+}
@@ -15,11 +15,20 @@
  */
 package org.warlock.bulkxpathexecutor;
 
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
-import java.text.SimpleDateFormat;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Date;
 
 /**
  *
@@ -33,7 +42,8 @@ public class OutputManager {
     private static final int MULTIFILE = 3;
     private static final int MEMORY = 4;
     
-    private static final SimpleDateFormat DATEFORMAT = new SimpleDateFormat("yyyy-MM-dd'T'hh:mm:ss.SSS");
+    // DateTimeFormatter, unlike SimpleDateFormat, is thread safe
+    private static final DateTimeFormatter DATEFORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'hh:mm:ss.SSS");
     
     private int outputMethod = STDOUT;
     private int errorMethod = STDERR;
@@ -48,8 +58,10 @@ public class OutputManager {
     private String errorExtension = ".err";
     private String errorFileName = null;    
     private ArrayList<String> errorList = null;
+    private ErrorCollector errorCollector = null;
     
     private PrintStream currentOutputStream = System.out;
+    private FileOutputStream currentOutputFile = null;
     private PrintStream currentErrorStream = System.err;
     
     private String currentFileName = null;
@@ -65,6 +77,18 @@ public class OutputManager {
         errorMethod = MEMORY;
     }
     
+    /**
+     * collects errors as structured records instead of writing each one, see
+     * writeErrorSummary()
+     * 
+     * @param c collector, which may be shared with other OutputManagers, or
+     * null to write errors as they occur
+     */
+    public void setErrorCollector(ErrorCollector c) {
+        errorCollector = c;
+    }
+    public ErrorCollector getErrorCollector() { return errorCollector; }
+    
     public void setOutputExtension(String e) {
         outputExtension = e;
         outputMethod = MULTIFILE;
@@ -78,6 +102,18 @@ public class OutputManager {
     
     public void setCurrentFile(String s) 
             throws Exception
+    {
+        setCurrentFile(s, s);
+    }
+    
+    /**
+     * @param s document name, as reported in errors
+     * @param path path, less the extension, of the per document output and
+     * error files, if they are being written
+     * @throws Exception 
+     */
+    public void setCurrentFile(String s, String path) 
+            throws Exception
     {
         currentFileName = s;
         if (outputMethod == MULTIFILE) {
@@ -85,15 +121,16 @@ public class OutputManager {
                 currentOutputStream.flush();
                 currentOutputStream.close();
             }
-            String fname = s + outputExtension;
-            currentOutputStream = new PrintStream(new FileOutputStream(fname));
+            String fname = path + outputExtension;
+            currentOutputFile = new FileOutputStream(fname);
+            currentOutputStream = new PrintStream(currentOutputFile);
         }
         if (errorMethod == MULTIFILE) {
             if (currentErrorStream != null) {
                 currentErrorStream.flush();
                 currentErrorStream.close();
             }
-            String fname = s + errorExtension;
+            String fname = path + errorExtension;
             currentErrorStream = new PrintStream(new FileOutputStream(fname));
         }
     }
@@ -111,11 +148,13 @@ public class OutputManager {
     {        
         if (s == null || s.trim().isEmpty()) {
             outputFileName = null;
+            currentOutputFile = null;
             currentOutputStream = System.out;
             outputMethod = STDOUT;
         } else {
             outputFileName = s;
-            currentOutputStream = new PrintStream(new FileOutputStream(outputFileName));
+            currentOutputFile = new FileOutputStream(outputFileName);
+            currentOutputStream = new PrintStream(currentOutputFile);
             outputMethod = SINGLEFILE;            
         }
     }
@@ -151,19 +190,101 @@ public class OutputManager {
         }
     }
     
+    /**
+     * closes the per document output and error files, if there are any, so
+     * that they are complete before the next setCurrentFile()
+     * 
+     * @throws Exception 
+     */
+    public void closeCurrentFile() 
+            throws Exception
+    {
+        if ((outputMethod == MULTIFILE) && (currentOutputStream != null)) {
+            currentOutputStream.flush();
+            currentOutputStream.close();
+            currentOutputStream = null;
+            currentOutputFile = null;
+        }
+        if ((errorMethod == MULTIFILE) && (currentErrorStream != null)) {
+            currentErrorStream.flush();
+            currentErrorStream.close();
+            currentErrorStream = null;
+        }
+    }
+    
+    /**
+     * moves the per document output and error files, once closed, from the
+     * path they were written under
+     * 
+     * @param path path given to setCurrentFile()
+     * @param output new path for the output file, or null to delete it
+     * @param error new path for the error file, or null to delete it
+     * @throws Exception 
+     */
+    public void moveFiles(String path, String output, String error)
+            throws Exception
+    {
+        if (outputMethod == MULTIFILE) {
+            moveFile(path + outputExtension, output, outputExtension);
+        }
+        if (errorMethod == MULTIFILE) {
+            moveFile(path + errorExtension, error, errorExtension);
+        }
+    }
+    
+    private void moveFile(String from, String to, String extension)
+            throws Exception
+    {
+        if (to == null) {
+            Files.deleteIfExists(Paths.get(from));
+        } else {
+            Files.move(Paths.get(from), Paths.get(to + extension), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
     public ArrayList<String> getOutputs() { return outputList; }
     public ArrayList<String> getErrors() { return errorList; }
     
+    /**
+     * reports an error of a known kind
+     * 
+     * @param kind one of the ErrorCollector kinds
+     * @param label label being substituted, may be null
+     * @param xpath label's xpath, may be null
+     * @param node local name of the node concerned, may be null
+     * @param value the value concerned
+     * @throws Exception 
+     */
+    public void error(int kind, String label, String xpath, String node, String value)
+            throws Exception
+    {
+        error(new ErrorCollector.Record(currentFileName, kind, label, xpath, node, value));
+    }
+    
+    public void error(ErrorCollector.Record r)
+            throws Exception
+    {
+        if (errorCollector != null) {
+            errorCollector.add(r);
+        } else {
+            error(r.getMessage());
+        }
+    }
+    
     public void error(String s)
             throws Exception
     {
+        if (errorCollector != null) {
+            errorCollector.add(new ErrorCollector.Record(currentFileName, ErrorCollector.OTHER, null, null, null, s));
+            return;
+        }
         StringBuilder sb = new StringBuilder();
         if (prependFile) {
             sb.append(currentFileName);
             sb.append("\n");
         }
         if (timestamp) {
-            sb.append(DATEFORMAT.format(new Date()));
+            sb.append(DATEFORMAT.format(LocalDateTime.now()));
             sb.append("\n");
         }
         sb.append(s);
@@ -189,4 +310,123 @@ public class OutputManager {
             currentOutputStream.println(s);
         }
     }
+
+    /**
+     * outputs an input document that was not modified, as its original
+     * bytes rather than a re-serialisation. File to file copies are made with
+     * FileChannel.transferTo so the content need not pass through the heap.
+     * 
+     * @param source path to the document, or - for stdin
+     * @param content the document's bytes, used when a file copy is not possible
+     * @throws Exception 
+     */
+    public void outputUnmodified(String source, byte[] content)
+            throws Exception
+    {
+        if (((outputMethod == SINGLEFILE) || (outputMethod == MULTIFILE)) && (currentOutputFile != null) && !source.contentEquals("-")) {
+            currentOutputStream.flush();
+            try (FileInputStream in = new FileInputStream(source)) {
+                FileChannel src = in.getChannel();
+                FileChannel dest = currentOutputFile.getChannel();
+                long size = src.size();
+                long position = 0;
+                while (position < size) {
+                    position += src.transferTo(position, size - position, dest);
+                }
+            }
+            currentOutputStream.println();
+        } else {
+            output(new String(content, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * writes the collector's summary to the error destination, or to stderr
+     * when errors go to a file per document
+     * 
+     * @throws Exception 
+     */
+    public void writeErrorSummary()
+            throws Exception
+    {
+        if (errorCollector == null) {
+            return;
+        }
+        for (String s : errorCollector.summary()) {
+            if (errorMethod == MEMORY) {
+                errorList.add(s);
+            } else if ((errorMethod == MULTIFILE) || (currentErrorStream == null)) {
+                System.err.println(s);
+            } else {
+                currentErrorStream.println(s);
+            }
+        }
+    }
+
+    /**
+     * opens a writer for one output that is too large to build as a String,
+     * such as a document streamed a record at a time. Closing the writer
+     * completes the output: in memory it is added to the outputs as a single
+     * entry, otherwise it is ended with a newline like output(String).
+     * 
+     * @return writer for the current output
+     */
+    public Writer openOutput()
+    {
+        return new OutputWriter();
+    }
+
+    private class OutputWriter
+            extends Writer
+    {
+        private StringBuilder buffer = null;
+        private Writer stream = null;
+
+        OutputWriter() {
+            if (outputMethod == MEMORY) {
+                buffer = new StringBuilder();
+            } else {
+                stream = new OutputStreamWriter(currentOutputStream, StandardCharsets.UTF_8);
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len)
+                throws IOException
+        {
+            if (buffer != null) {
+                buffer.append(cbuf, off, len);
+            } else {
+                stream.write(cbuf, off, len);
+            }
+        }
+
+        @Override
+        public void flush()
+                throws IOException
+        {
+            if (stream != null) {
+                stream.flush();
+            }
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if (buffer != null) {
+                try {
+                    output(buffer.toString());
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+                buffer = null;
+            } else if (stream != null) {
+                // the underlying stream belongs to the OutputManager
+                stream.flush();
+                currentOutputStream.println();
+                stream = null;
+            }
+        }
+    }
 }
@@ -0,0 +1,296 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+
+/**
+ * How documents are parsed. The default profile is the JAXP defaults, as
+ * this tool has always used them, under which a DOCTYPE naming an external
+ * DTD makes the parser try to fetch it.
+ *
+ * The offline profile is for untrusted input and for machines without
+ * network access. Nothing external is ever resolved: no DTDs, entities or
+ * schemas, by any protocol. A DOCTYPE is rejected (REJECT) or has any
+ * external DTD skipped while its internal subset is still honoured
+ * (IGNORE). Entity expansions and element depth are limited, and so is
+ * document size, which is checked before a document is read. A document
+ * breaking a rule fails to parse with a message saying which, and runs
+ * with this profile report such failures against the document and go on
+ * to the next.
+ *
+ * The entity and depth limits are set through the JDK's own XML
+ * properties, so the offline profile needs the JDK's built in parsers.
+ *
+ * @author Damian Murphy
+ */
+public class ParserProfile {
+
+    // what the offline profile does with a DOCTYPE
+    public static final int REJECT = 0;
+    public static final int IGNORE = 1;
+
+    public static final int DEFAULT_MAX_DEPTH = 500;
+    public static final int DEFAULT_MAX_ENTITY_EXPANSIONS = 10000;
+
+    /**
+     * The JAXP defaults
+     */
+    public static final ParserProfile DEFAULT = new ParserProfile(false);
+
+    private static final String DISALLOW_DOCTYPE = "http://apache.org/xml/features/disallow-doctype-decl";
+    private static final String LOAD_EXTERNAL_DTD = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+    private static final String EXTERNAL_GENERAL_ENTITIES = "http://xml.org/sax/features/external-general-entities";
+    private static final String EXTERNAL_PARAMETER_ENTITIES = "http://xml.org/sax/features/external-parameter-entities";
+    private static final String STAX_IGNORE_EXTERNAL_DTD = "http://java.sun.com/xml/stream/properties/ignore-external-dtd";
+    private static final String ENTITY_EXPANSION_LIMIT = "http://www.oracle.com/xml/jaxp/properties/entityExpansionLimit";
+    private static final String MAX_ELEMENT_DEPTH = "http://www.oracle.com/xml/jaxp/properties/maxElementDepth";
+
+    // fails with the exception, without the default handler's report on stderr
+    private static final ErrorHandler QUIET = new ErrorHandler() {
+        @Override
+        public void warning(SAXParseException e) {
+        }
+
+        @Override
+        public void error(SAXParseException e)
+                throws SAXParseException {
+            throw e;
+        }
+
+        @Override
+        public void fatalError(SAXParseException e)
+                throws SAXParseException {
+            throw e;
+        }
+    };
+
+    private final boolean offline;
+    private int doctype = REJECT;
+    private int maxDepth = DEFAULT_MAX_DEPTH;
+    private int maxEntityExpansions = DEFAULT_MAX_ENTITY_EXPANSIONS;
+    private long maxDocumentSize = 0;
+
+    /**
+     * @param o true for the offline profile, false for the JAXP defaults
+     */
+    public ParserProfile(boolean o) {
+        offline = o;
+    }
+
+    /**
+     * parses the --doctype argument
+     *
+     * @param s reject or ignore
+     * @return REJECT or IGNORE
+     * @throws Exception if the handling is not recognised
+     */
+    public static int getDoctype(String s)
+            throws Exception {
+        switch (s) {
+            case "reject":
+                return REJECT;
+            case "ignore":
+                return IGNORE;
+            default:
+                throw new Exception("Unknown DOCTYPE handling " + s + ": expected reject or ignore");
+        }
+    }
+
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * @param d REJECT or IGNORE
+     */
+    public void setDoctype(int d) {
+        doctype = d;
+    }
+
+    /**
+     * @param d deepest element nesting allowed, 0 for no limit
+     */
+    public void setMaxDepth(int d) {
+        maxDepth = d;
+    }
+
+    /**
+     * @param n most entity expansions allowed in a document, 0 for no limit
+     */
+    public void setMaxEntityExpansions(int n) {
+        maxEntityExpansions = n;
+    }
+
+    /**
+     * @param s largest document allowed in bytes, 0 for no limit
+     */
+    public void setMaxDocumentSize(long s) {
+        maxDocumentSize = s;
+    }
+
+    public long getMaxDocumentSize() {
+        return maxDocumentSize;
+    }
+
+    /**
+     * @param name document name, for the message
+     * @param size document size in bytes
+     * @throws Exception if the document is larger than the limit
+     */
+    public void checkSize(String name, long size)
+            throws Exception {
+        if (offline && maxDocumentSize > 0 && size > maxDocumentSize) {
+            throw new Exception(name + " is " + size + " bytes, more than the document size limit of " + maxDocumentSize);
+        }
+    }
+
+    /**
+     * called by streaming parsers when they meet a DOCTYPE, which they
+     * cannot be told to reject
+     *
+     * @throws Exception if DOCTYPEs are rejected
+     */
+    public void checkDoctype()
+            throws Exception {
+        if (offline && doctype == REJECT) {
+            throw new Exception("DOCTYPE is not allowed by the offline parser profile");
+        }
+    }
+
+    /**
+     * @return a namespace aware builder that ignores comments
+     * @throws Exception if the parser in use does not support the profile
+     */
+    public DocumentBuilder newDocumentBuilder()
+            throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setIgnoringComments(true);
+        dbf.setNamespaceAware(true);
+        if (!offline) {
+            return dbf.newDocumentBuilder();
+        }
+        dbf.setXIncludeAware(false);
+        dbf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        dbf.setFeature(DISALLOW_DOCTYPE, doctype == REJECT);
+        dbf.setFeature(LOAD_EXTERNAL_DTD, false);
+        dbf.setFeature(EXTERNAL_GENERAL_ENTITIES, false);
+        dbf.setFeature(EXTERNAL_PARAMETER_ENTITIES, false);
+        dbf.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        dbf.setAttribute(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+        dbf.setAttribute(ENTITY_EXPANSION_LIMIT, Integer.toString(maxEntityExpansions));
+        dbf.setAttribute(MAX_ELEMENT_DEPTH, Integer.toString(maxDepth));
+        DocumentBuilder db = dbf.newDocumentBuilder();
+        db.setErrorHandler(QUIET);
+        return db;
+    }
+
+    /**
+     * @return a namespace aware factory that does not resolve external
+     * entities. Streaming readers report a DOCTYPE as an event, on which
+     * callers must call checkDoctype().
+     * @throws Exception if the parser in use does not support the profile
+     */
+    public XMLInputFactory newXMLInputFactory()
+            throws Exception {
+        XMLInputFactory xif = XMLInputFactory.newInstance();
+        xif.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        xif.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        if (offline) {
+            xif.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+            xif.setProperty(STAX_IGNORE_EXTERNAL_DTD, true);
+            xif.setProperty(ENTITY_EXPANSION_LIMIT, Integer.toString(maxEntityExpansions));
+            xif.setProperty(MAX_ELEMENT_DEPTH, Integer.toString(maxDepth));
+        }
+        return xif;
+    }
+
+    /**
+     * @param document document bytes
+     * @param name path to the document, or - for stdin
+     * @return a source for a transformation over the document
+     * @throws Exception if the parser in use does not support the profile
+     */
+    public Source newSource(byte[] document, String name)
+            throws Exception {
+        String systemId = name.contentEquals("-") ? null : new File(name).toURI().toString();
+        if (!offline) {
+            StreamSource source = new StreamSource(new ByteArrayInputStream(document));
+            source.setSystemId(systemId);
+            return source;
+        }
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+        spf.setXIncludeAware(false);
+        spf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        spf.setFeature(DISALLOW_DOCTYPE, doctype == REJECT);
+        spf.setFeature(LOAD_EXTERNAL_DTD, false);
+        spf.setFeature(EXTERNAL_GENERAL_ENTITIES, false);
+        spf.setFeature(EXTERNAL_PARAMETER_ENTITIES, false);
+        SAXParser sp = spf.newSAXParser();
+        sp.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        sp.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+        sp.setProperty(ENTITY_EXPANSION_LIMIT, Integer.toString(maxEntityExpansions));
+        sp.setProperty(MAX_ELEMENT_DEPTH, Integer.toString(maxDepth));
+        XMLReader reader = sp.getXMLReader();
+        reader.setErrorHandler(QUIET);
+        InputSource is = new InputSource(new ByteArrayInputStream(document));
+        is.setSystemId(systemId);
+        return new SAXSource(reader, is);
+    }
+
+    /**
+     * @param e a document failure
+     * @return its innermost cause, which says which rule was broken, without
+     * the wrappers that the transformer adds
+     */
+    public static String describe(Throwable e) {
+        while (e.getCause() != null && e.getCause() != e) {
+            e = e.getCause();
+        }
+        return e.toString();
+    }
+
+    /**
+     * checks, at start up, that the parsers in use support the profile
+     *
+     * @throws Exception if they do not
+     */
+    public void check()
+            throws Exception {
+        try {
+            newDocumentBuilder();
+            newXMLInputFactory();
+            newSource(new byte[0], "-");
+        } catch (Exception | LinkageError e) {
+            throw new Exception("The XML parsers in use do not support the offline parser profile: " + e.getMessage());
+        }
+    }
+}
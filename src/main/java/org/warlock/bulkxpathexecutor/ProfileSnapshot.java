@@ -0,0 +1,330 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A paths file and its data files compiled into one binary file, so that a
+ * run can start without reading, splitting and validating them. Every xpath
+ * has been compiled, to check it, and classified as one CompactXPath can
+ * evaluate or one that needs JAXP over a DOM; every xml fragment value has
+ * been parsed. Data values are kept as written, so reserved words such as
+ * $UUID and $DATE are still resolved afresh by each run.
+ *
+ * <pre>
+ * int      magic, BXPS
+ * int      format version
+ * int      payload length
+ * payload  sources: count, then path, size and SHA-256 of each
+ *          paths: count, then label, xpath, limit, exists and kind of each
+ *          data: -1 for an extraction profile, otherwise count, then label
+ *          and values of each
+ * long     CRC32 of the payload
+ * </pre>
+ *
+ * Strings are an int byte length followed by UTF-8. A snapshot is read
+ * through a read-only memory mapping, and is rejected if its version is not
+ * this one, if it is corrupt, or if a source file that still exists has
+ * changed since it was compiled.
+ *
+ * @author Damian Murphy
+ */
+public class ProfileSnapshot {
+
+    public static final int VERSION = 1;
+    private static final int MAGIC = 0x42585053;
+
+    // kinds of path
+    public static final byte COMPACT = 0;
+    public static final byte DOM = 1;
+
+    /**
+     * one label of the paths file
+     */
+    public static class Entry {
+
+        private final String label;
+        private final String xpath;
+        private final int limit;
+        private final boolean exists;
+        private final byte kind;
+
+        /**
+         * @param l label
+         * @param x xpath
+         * @param n most matches reported, 0 for all
+         * @param e true if the label reports whether the path matches
+         * @param k COMPACT or DOM
+         */
+        public Entry(String l, String x, int n, boolean e, byte k) {
+            label = l;
+            xpath = x;
+            limit = n;
+            exists = e;
+            kind = k;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public String getXpath() {
+            return xpath;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        public boolean isExists() {
+            return exists;
+        }
+
+        public byte getKind() {
+            return kind;
+        }
+    }
+
+    private ArrayList<String> sources = new ArrayList<>();
+    private ArrayList<Long> sourceSizes = new ArrayList<>();
+    private ArrayList<byte[]> sourceDigests = new ArrayList<>();
+    private ArrayList<Entry> entries = new ArrayList<>();
+    private LinkedHashMap<String, ArrayList<String>> data = null;
+
+    public ProfileSnapshot() {
+    }
+
+    /**
+     * records a source file and its checksum
+     *
+     * @param file paths or data file
+     * @throws Exception
+     */
+    public void addSource(String file)
+            throws Exception {
+        Path p = Paths.get(file).toAbsolutePath();
+        sources.add(p.toString());
+        sourceSizes.add(Files.size(p));
+        sourceDigests.add(digest(p));
+    }
+
+    /**
+     * @param e label to add, in paths file order
+     */
+    public void add(Entry e) {
+        entries.add(e);
+    }
+
+    public ArrayList<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @param d values for each label as written in the data files, or null
+     * for an extraction profile
+     */
+    public void setData(LinkedHashMap<String, ArrayList<String>> d) {
+        data = d;
+    }
+
+    /**
+     * @return values for each label as written in the data files, or null
+     * for an extraction profile
+     */
+    public LinkedHashMap<String, ArrayList<String>> getData() {
+        return data;
+    }
+
+    public ArrayList<String> getSources() {
+        return sources;
+    }
+
+    /**
+     * @param file snapshot file to write
+     * @throws Exception
+     */
+    public void write(String file)
+            throws Exception {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeInt(sources.size());
+        for (int i = 0; i < sources.size(); i++) {
+            writeString(out, sources.get(i));
+            out.writeLong(sourceSizes.get(i));
+            out.write(sourceDigests.get(i));
+        }
+        out.writeInt(entries.size());
+        for (Entry e : entries) {
+            writeString(out, e.label);
+            writeString(out, e.xpath);
+            out.writeInt(e.limit);
+            out.writeBoolean(e.exists);
+            out.writeByte(e.kind);
+        }
+        if (data == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(data.size());
+            for (String label : data.keySet()) {
+                writeString(out, label);
+                ArrayList<String> values = data.get(label);
+                out.writeInt(values.size());
+                for (String v : values) {
+                    writeString(out, v);
+                }
+            }
+        }
+        out.flush();
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        try (DataOutputStream f = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            f.writeInt(MAGIC);
+            f.writeInt(VERSION);
+            f.writeInt(bytes.length);
+            f.write(bytes);
+            f.writeLong(crc.getValue());
+        }
+    }
+
+    /**
+     * @param file snapshot file
+     * @return the snapshot
+     * @throws Exception if the file is not a snapshot of this version, or is
+     * corrupt
+     */
+    public static ProfileSnapshot read(String file)
+            throws Exception {
+        MappedByteBuffer b = null;
+        try (FileChannel fc = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            b = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        }
+        if (b.remaining() < 20 || b.getInt() != MAGIC) {
+            throw new Exception(file + " is not a profile snapshot");
+        }
+        int version = b.getInt();
+        if (version != VERSION) {
+            throw new Exception(file + " is a version " + version + " snapshot, this is version " + VERSION + ": compile it again");
+        }
+        int length = b.getInt();
+        if (length < 0 || length + 8 != b.remaining()) {
+            throw new Exception(file + " is truncated");
+        }
+        ByteBuffer payload = b.slice();
+        payload.limit(length);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        b.position(b.position() + length);
+        if (crc.getValue() != b.getLong()) {
+            throw new Exception(file + " is corrupt");
+        }
+        ProfileSnapshot ps = new ProfileSnapshot();
+        int n = payload.getInt();
+        for (int i = 0; i < n; i++) {
+            ps.sources.add(readString(payload));
+            ps.sourceSizes.add(payload.getLong());
+            byte[] d = new byte[32];
+            payload.get(d);
+            ps.sourceDigests.add(d);
+        }
+        n = payload.getInt();
+        for (int i = 0; i < n; i++) {
+            String label = readString(payload);
+            String xpath = readString(payload);
+            int limit = payload.getInt();
+            boolean exists = payload.get() != 0;
+            ps.entries.add(new Entry(label, xpath, limit, exists, payload.get()));
+        }
+        n = payload.getInt();
+        if (n >= 0) {
+            ps.data = new LinkedHashMap<>();
+            for (int i = 0; i < n; i++) {
+                String label = readString(payload);
+                int count = payload.getInt();
+                ArrayList<String> values = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    values.add(readString(payload));
+                }
+                ps.data.put(label, values);
+            }
+        }
+        return ps;
+    }
+
+    /**
+     * checks that each source file that still exists is the one compiled.
+     * Files no longer present, eg where only the snapshot is deployed, are
+     * not checked.
+     *
+     * @throws Exception naming the first source that has changed
+     */
+    public void checkSources()
+            throws Exception {
+        for (int i = 0; i < sources.size(); i++) {
+            Path p = Paths.get(sources.get(i));
+            if (!Files.isRegularFile(p)) {
+                continue;
+            }
+            if (Files.size(p) != sourceSizes.get(i) || !Arrays.equals(digest(p), sourceDigests.get(i))) {
+                throw new Exception("Snapshot is out of date: " + p + " has changed since it was compiled");
+            }
+        }
+    }
+
+    private static byte[] digest(Path p)
+            throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        try (InputStream in = Files.newInputStream(p)) {
+            byte[] buffer = new byte[65536];
+            int n = 0;
+            while ((n = in.read(buffer)) != -1) {
+                md.update(buffer, 0, n);
+            }
+        }
+        return md.digest();
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws Exception {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(ByteBuffer b) {
+        byte[] bytes = new byte[b.getInt()];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
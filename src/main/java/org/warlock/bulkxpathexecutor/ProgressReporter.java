@@ -0,0 +1,301 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports the progress of a run while it is going: documents done and
+ * remaining, throughput in documents and MB per second both overall and over
+ * the last interval, collector time over the last interval, which shows
+ * whether a fall in throughput is GC pressure, and an ETA. The status line is
+ * written to stderr, or rewritten in a status file, every interval.
+ *
+ * Per-document latencies go into a LatencyHistogram. Its percentiles and
+ * buckets, with the slowest documents, are reported at the end of the run,
+ * and are always in the status file for anyone who wants them sooner.
+ *
+ * @author Damian Murphy
+ */
+public class ProgressReporter {
+
+    private static final int SLOWEST = 10;
+    private static final double MB = 1024 * 1024;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+
+    private final int documents;
+    private final long bytes;
+    private final long interval;
+    private String statusFile = null;
+    private PrintStream stream = System.err;
+
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong doneBytes = new AtomicLong();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    // the slowest few documents, quickest first
+    private final PriorityQueue<Slow> slowest = new PriorityQueue<>(Comparator.comparingLong(Slow::getMicros));
+
+    private ScheduledExecutorService timer = null;
+    private long started = 0;
+    private long lastTime = 0;
+    private long lastDone = 0;
+    private long lastBytes = 0;
+    private long lastGc = 0;
+
+    private static class Slow {
+
+        private final long micros;
+        private final String document;
+
+        Slow(long m, String d) {
+            micros = m;
+            document = d;
+        }
+
+        long getMicros() {
+            return micros;
+        }
+    }
+
+    /**
+     * @param n number of documents in the run, 0 if not known in advance
+     * @param b total size of the documents, 0 if not known
+     * @param i reporting interval in milliseconds
+     */
+    public ProgressReporter(int n, long b, long i) {
+        documents = n;
+        bytes = b;
+        interval = i;
+    }
+
+    /**
+     * @param f file to rewrite with the status and latencies every interval
+     * instead of writing a status line to stderr, or null
+     */
+    public void setStatusFile(String f) {
+        statusFile = f;
+    }
+
+    /**
+     * @param s stream for status lines and latency reports, default stderr
+     */
+    public void setStream(PrintStream s) {
+        stream = s;
+    }
+
+    /**
+     * starts the interval timer
+     */
+    public void start() {
+        started = System.nanoTime();
+        lastTime = started;
+        lastGc = gcTime();
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "progress");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(this::report, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * records a finished document. Safe to call from several threads.
+     *
+     * @param document document path
+     * @param size document size in bytes
+     * @param nanos time taken to process it
+     */
+    public void documentDone(String document, long size, long nanos) {
+        done.incrementAndGet();
+        doneBytes.addAndGet(size);
+        long micros = nanos / 1000;
+        latencies.record(micros);
+        synchronized (slowest) {
+            if (slowest.size() < SLOWEST || micros > slowest.peek().micros) {
+                slowest.add(new Slow(micros, document));
+                if (slowest.size() > SLOWEST) {
+                    slowest.poll();
+                }
+            }
+        }
+    }
+
+    /**
+     * stops the timer and writes the final status and the latency report
+     */
+    public void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        report();
+        if (statusFile == null) {
+            dump();
+        }
+    }
+
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * @return one status line: documents done and remaining, overall and
+     * current rates, collector time in the last interval and the ETA
+     */
+    public synchronized String status() {
+        long now = System.nanoTime();
+        long d = done.get();
+        long b = doneBytes.get();
+        long gc = gcTime();
+        double elapsed = Math.max(1, now - started) / 1e9;
+        double recent = Math.max(1, now - lastTime) / 1e9;
+        double rate = d / elapsed;
+        StringBuilder sb = new StringBuilder("Progress\t");
+        sb.append(d);
+        if (documents > 0) {
+            sb.append("/").append(documents).append(" documents\t").append(Math.max(0, documents - d)).append(" remaining");
+        } else {
+            sb.append(" documents");
+        }
+        sb.append(String.format(Locale.ROOT, "\t%.1f documents/s\t%.2f MB/s", rate, b / MB / elapsed));
+        sb.append(String.format(Locale.ROOT, "\tnow %.1f documents/s\t%.2f MB/s\tGC %d ms", (d - lastDone) / recent, (b - lastBytes) / MB / recent, gc - lastGc));
+        if (documents > 0) {
+            sb.append("\tETA ");
+            if (d >= documents) {
+                sb.append(hms(0));
+            } else if (bytes > 0 && b > 0) {
+                // by bytes, so a run of small documents does not mislead
+                sb.append(hms((long) ((bytes - b) * elapsed / b)));
+            } else if (d > 0) {
+                sb.append(hms((long) ((documents - d) / rate)));
+            } else {
+                sb.append("-");
+            }
+        }
+        lastTime = now;
+        lastDone = d;
+        lastBytes = b;
+        lastGc = gc;
+        return sb.toString();
+    }
+
+    /**
+     * @return latency report lines: count, mean, percentiles and maximum in
+     * ms, the slowest documents and the non-empty histogram buckets in
+     * microseconds
+     */
+    public ArrayList<String> latencyReport() {
+        ArrayList<String> lines = new ArrayList<>();
+        lines.add("Latency\t" + latencies.getCount() + " documents\tmean " + ms(Math.round(latencies.getMean())) + " ms");
+        StringBuilder sb = new StringBuilder("Percentiles");
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            sb.append("\t").append(PERCENTILE_NAMES[i]).append(" ").append(ms(latencies.getPercentile(PERCENTILES[i]))).append(" ms");
+        }
+        sb.append("\tmax ").append(ms(latencies.getMax())).append(" ms");
+        lines.add(sb.toString());
+        ArrayList<Slow> slow;
+        synchronized (slowest) {
+            slow = new ArrayList<>(slowest);
+        }
+        slow.sort(slowest.comparator().reversed());
+        for (Slow s : slow) {
+            lines.add("Slow\t" + ms(s.micros) + " ms\t" + s.document);
+        }
+        lines.add("Buckets\tfrom us\tto us\tdocuments");
+        for (String b : latencies.buckets()) {
+            lines.add("\t" + b);
+        }
+        return lines;
+    }
+
+    /**
+     * writes the latency report to the stream, or rewrites the status file
+     */
+    public synchronized void dump() {
+        if (statusFile != null) {
+            writeStatusFile(status());
+            return;
+        }
+        for (String s : latencyReport()) {
+            stream.println(s);
+        }
+        stream.flush();
+    }
+
+    private synchronized void report() {
+        String s = status();
+        if (statusFile == null) {
+            stream.println(s);
+            stream.flush();
+        } else {
+            writeStatusFile(s);
+        }
+    }
+
+    /**
+     * replaces the status file, by rename so a reader never sees it half
+     * written
+     */
+    private void writeStatusFile(String status) {
+        File f = new File(statusFile);
+        File tmp = new File(statusFile + ".tmp");
+        try (FileWriter w = new FileWriter(tmp)) {
+            w.write(status);
+            w.write(System.lineSeparator());
+            for (String s : latencyReport()) {
+                w.write(s);
+                w.write(System.lineSeparator());
+            }
+        } catch (Exception e) {
+            stream.println("Cannot write status file " + statusFile + ": " + e.toString());
+            return;
+        }
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            tmp.renameTo(f);
+        }
+    }
+
+    private static String ms(long micros) {
+        return String.format(Locale.ROOT, "%.3f", micros / 1000.0);
+    }
+
+    private static String hms(long seconds) {
+        return String.format(Locale.ROOT, "%02d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    private static long gcTime() {
+        long t = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc.getCollectionTime() > 0) {
+                t += gc.getCollectionTime();
+            }
+        }
+        return t;
+    }
+}
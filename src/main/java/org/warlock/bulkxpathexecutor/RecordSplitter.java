@@ -0,0 +1,214 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Streams a large document and hands each record, an element at the split
+ * path such as /fhir:Bundle/fhir:entry, to a handler as a small document of
+ * its own. Namespaces in scope at the record are declared on its root so the
+ * record stands alone. Everything outside the records (the envelope) can be
+ * copied to a writer with each record replaced by whatever the handler
+ * returns, so memory is bounded by the size of a record rather than the file.
+ *
+ * The split path is an absolute path of child steps with qualified names, no
+ * predicates or wildcards.
+ *
+ * @author Damian Murphy
+ */
+public class RecordSplitter {
+
+    /**
+     * Processes one record
+     */
+    public interface RecordHandler {
+
+        /**
+         * @param xml the record as a standalone xml document
+         * @return text to write in place of the record, null to drop it
+         * @throws Exception
+         */
+        String record(String xml)
+                throws Exception;
+    }
+
+    private String[] namespaces = null;
+    private String[] localNames = null;
+    private ParserProfile parser = ParserProfile.DEFAULT;
+
+    /**
+     * @param path split path
+     * @param ns namespace context used to resolve prefixes
+     * @throws Exception if the path is not an absolute path of named child
+     * steps
+     */
+    public RecordSplitter(String path, NamespaceContext ns)
+            throws Exception {
+        if (!path.startsWith("/") || path.startsWith("//")) {
+            throw new Exception("Split path " + path + " must be an absolute path of child elements");
+        }
+        String[] steps = path.substring(1).split("/");
+        namespaces = new String[steps.length];
+        localNames = new String[steps.length];
+        for (int i = 0; i < steps.length; i++) {
+            String s = steps[i];
+            if (s.isEmpty() || s.contains("[") || s.contains("*") || s.contains("@") || s.contains("(")) {
+                throw new Exception("Split path " + path + " must be an absolute path of child elements");
+            }
+            int colon = s.indexOf(':');
+            if (colon == -1) {
+                localNames[i] = s;
+            } else {
+                namespaces[i] = ns.getNamespaceURI(s.substring(0, colon));
+                localNames[i] = s.substring(colon + 1);
+                if (namespaces[i] == null || namespaces[i].isEmpty()) {
+                    throw new Exception("Split path " + path + " uses an unknown prefix");
+                }
+            }
+        }
+    }
+
+    /**
+     * @param p how to parse the documents split
+     */
+    public void setParserProfile(ParserProfile p) {
+        parser = p;
+    }
+
+    /**
+     * @param in document to split
+     * @param envelope where to write the envelope and handled records, or
+     * null if only the handler's side effects are wanted
+     * @param handler called for each record
+     * @return number of records
+     * @throws Exception
+     */
+    public int split(InputStream in, Writer envelope, RecordHandler handler)
+            throws Exception {
+        XMLEventReader reader = parser.newXMLInputFactory().createXMLEventReader(in);
+        XMLOutputFactory xof = XMLOutputFactory.newInstance();
+        XMLEventFactory xef = XMLEventFactory.newInstance();
+
+        ArrayList<HashMap<String, String>> scopes = new ArrayList<>();
+        boolean[] matched = new boolean[localNames.length];
+        int depth = 0;
+        int records = 0;
+        int recordDepth = -1;
+        StringWriter record = null;
+        XMLEventWriter recordWriter = null;
+        XMLEventWriter envelopeWriter = (envelope == null) ? null : xof.createXMLEventWriter(envelope);
+        try {
+            while (reader.hasNext()) {
+                XMLEvent e = reader.nextEvent();
+                if (e.getEventType() == XMLStreamConstants.DTD) {
+                    parser.checkDoctype();
+                }
+                if (e.isStartElement()) {
+                    StartElement se = e.asStartElement();
+                    HashMap<String, String> scope = new HashMap<>();
+                    Iterator<?> decls = se.getNamespaces();
+                    while (decls.hasNext()) {
+                        Namespace n = (Namespace) decls.next();
+                        scope.put(n.getPrefix(), n.getNamespaceURI());
+                    }
+                    scopes.add(scope);
+                    if (recordDepth == -1 && depth < localNames.length && (depth == 0 || matched[depth - 1])) {
+                        matched[depth] = matches(se, depth);
+                        if (matched[depth] && depth == localNames.length - 1) {
+                            recordDepth = depth;
+                            record = new StringWriter();
+                            recordWriter = xof.createXMLEventWriter(record);
+                            e = xef.createStartElement(se.getName().getPrefix(), se.getName().getNamespaceURI(), se.getName().getLocalPart(),
+                                    se.getAttributes(), inScope(xef, scopes).iterator());
+                        }
+                    }
+                    depth++;
+                } else if (e.isEndElement()) {
+                    depth--;
+                    scopes.remove(scopes.size() - 1);
+                    if (depth < matched.length) {
+                        matched[depth] = false;
+                    }
+                }
+                if (recordWriter != null) {
+                    recordWriter.add(e);
+                    if (e.isEndElement() && depth == recordDepth) {
+                        recordWriter.close();
+                        records++;
+                        String replacement = handler.record(record.toString());
+                        if (envelopeWriter != null && replacement != null) {
+                            // empty characters close any start tag left open
+                            envelopeWriter.add(xef.createCharacters(""));
+                            envelopeWriter.flush();
+                            envelope.write(replacement);
+                        }
+                        recordWriter = null;
+                        record = null;
+                        recordDepth = -1;
+                    }
+                } else if (envelopeWriter != null) {
+                    envelopeWriter.add(e);
+                }
+            }
+            if (envelopeWriter != null) {
+                envelopeWriter.flush();
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    private boolean matches(StartElement se, int step) {
+        String ns = se.getName().getNamespaceURI();
+        if (ns != null && ns.isEmpty()) {
+            ns = null;
+        }
+        return localNames[step].equals(se.getName().getLocalPart())
+                && ((namespaces[step] == null) ? ns == null : namespaces[step].equals(ns));
+    }
+
+    private ArrayList<Namespace> inScope(XMLEventFactory xef, ArrayList<HashMap<String, String>> scopes) {
+        HashMap<String, String> all = new HashMap<>();
+        for (HashMap<String, String> scope : scopes) {
+            all.putAll(scope);
+        }
+        ArrayList<Namespace> n = new ArrayList<>();
+        for (String prefix : all.keySet()) {
+            if (prefix == null || prefix.isEmpty()) {
+                n.add(xef.createNamespace(all.get(prefix)));
+            } else {
+                n.add(xef.createNamespace(prefix, all.get(prefix)));
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Local work queue shared between a Coordinator and its worker JVMs through a
+ * directory. Every operation is a file create or an atomic rename, so no
+ * locking is needed and a worker that dies leaves the queue consistent.
+ *
+ * <pre>
+ * pending/&lt;worker&gt;/&lt;seq&gt;   ticket (document path) in a worker's shard
+ * claimed/&lt;seq&gt;            ticket being processed
+ * done/&lt;seq&gt;               outputs and errors for the ticket
+ * </pre>
+ *
+ * A worker takes its own tickets lowest sequence first. When its shard is
+ * empty it steals from the tail of another worker's shard, so work evens out
+ * without the coordinator having to know how long each document takes.
+ *
+ * @author Damian Murphy
+ */
+public class ShardQueue {
+
+    private static final String PENDING = "pending";
+    private static final String CLAIMED = "claimed";
+    private static final String DONE = "done";
+
+    private Path root = null;
+
+    /**
+     * Outputs and errors recorded for a completed ticket
+     */
+    public static class Result {
+
+        private final ArrayList<String> outputs;
+        private final ArrayList<String> errors;
+
+        public Result(ArrayList<String> o, ArrayList<String> e) {
+            outputs = o;
+            errors = e;
+        }
+
+        public ArrayList<String> getOutputs() {
+            return outputs;
+        }
+
+        public ArrayList<String> getErrors() {
+            return errors;
+        }
+    }
+
+    /**
+     * @param dir queue directory, created if necessary
+     * @throws Exception
+     */
+    public ShardQueue(String dir)
+            throws Exception {
+        root = new File(dir).toPath();
+        Files.createDirectories(root.resolve(PENDING));
+        Files.createDirectories(root.resolve(CLAIMED));
+        Files.createDirectories(root.resolve(DONE));
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * adds a ticket to a worker's shard
+     *
+     * @param worker shard number
+     * @param seq ticket sequence number, which fixes the merge order
+     * @param document path to the document
+     * @throws Exception
+     */
+    public void add(int worker, int seq, String document)
+            throws Exception {
+        Path shard = root.resolve(PENDING).resolve(Integer.toString(worker));
+        Files.createDirectories(shard);
+        Path tmp = shard.resolve(name(seq) + ".tmp");
+        Files.write(tmp, document.getBytes(StandardCharsets.UTF_8));
+        move(tmp, shard.resolve(name(seq)));
+    }
+
+    /**
+     * claims the next ticket for a worker, stealing if its own shard is empty
+     *
+     * @param worker shard number
+     * @return claimed ticket sequence number, or -1 when no work is left
+     * @throws Exception
+     */
+    public int claim(int worker)
+            throws Exception {
+        Path own = root.resolve(PENDING).resolve(Integer.toString(worker));
+        int seq = claimFrom(own, false);
+        if (seq != -1) {
+            return seq;
+        }
+        File[] shards = root.resolve(PENDING).toFile().listFiles(File::isDirectory);
+        if (shards == null) {
+            return -1;
+        }
+        for (File shard : shards) {
+            if (!shard.toPath().equals(own)) {
+                seq = claimFrom(shard.toPath(), true);
+                if (seq != -1) {
+                    return seq;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private int claimFrom(Path shard, boolean steal)
+            throws Exception {
+        String[] tickets = shard.toFile().list((d, n) -> !n.endsWith(".tmp"));
+        if (tickets == null || tickets.length == 0) {
+            return -1;
+        }
+        Arrays.sort(tickets);
+        for (int i = 0; i < tickets.length; i++) {
+            String t = tickets[steal ? tickets.length - 1 - i : i];
+            try {
+                move(shard.resolve(t), root.resolve(CLAIMED).resolve(t));
+                return Integer.parseInt(t);
+            } catch (NoSuchFileException | FileAlreadyExistsException e) {
+                // another worker got there first
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param seq ticket sequence number
+     * @return document path held in a claimed ticket
+     * @throws Exception
+     */
+    public String getDocument(int seq)
+            throws Exception {
+        return new String(Files.readAllBytes(root.resolve(CLAIMED).resolve(name(seq))), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * records the result of a ticket
+     *
+     * @param seq ticket sequence number
+     * @param outputs outputs for the document, may be null
+     * @param errors errors for the document, may be null
+     * @throws Exception
+     */
+    public void complete(int seq, ArrayList<String> outputs, ArrayList<String> errors)
+            throws Exception {
+        Path tmp = root.resolve(DONE).resolve(name(seq) + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            writeList(out, outputs);
+            writeList(out, errors);
+        }
+        move(tmp, root.resolve(DONE).resolve(name(seq)));
+    }
+
+    /**
+     * @param seq ticket sequence number
+     * @return true if a result has been recorded for the ticket
+     */
+    public boolean isComplete(int seq) {
+        return Files.exists(root.resolve(DONE).resolve(name(seq)));
+    }
+
+    /**
+     * @return number of tickets not yet claimed
+     */
+    public int pendingCount() {
+        int n = 0;
+        File[] shards = root.resolve(PENDING).toFile().listFiles(File::isDirectory);
+        if (shards != null) {
+            for (File shard : shards) {
+                String[] tickets = shard.list((d, f) -> !f.endsWith(".tmp"));
+                n += (tickets == null) ? 0 : tickets.length;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * reads a result recorded by complete()
+     *
+     * @param seq ticket sequence number
+     * @return outputs and errors
+     * @throws Exception
+     */
+    public Result getResult(int seq)
+            throws Exception {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(root.resolve(DONE).resolve(name(seq)))))) {
+            ArrayList<String> outputs = readList(in);
+            return new Result(outputs, readList(in));
+        }
+    }
+
+    /**
+     * removes the queue directory and everything in it
+     *
+     * @throws Exception
+     */
+    public void delete()
+            throws Exception {
+        deleteTree(root.toFile());
+    }
+
+    private void deleteTree(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteTree(c);
+            }
+        }
+        f.delete();
+    }
+
+    private static String name(int seq) {
+        return String.format("%010d", seq);
+    }
+
+    private static void move(Path from, Path to)
+            throws Exception {
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to);
+        }
+    }
+
+    private static void writeList(DataOutputStream out, ArrayList<String> l)
+            throws Exception {
+        if (l == null) {
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(l.size());
+        for (String s : l) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private static ArrayList<String> readList(DataInputStream in)
+            throws Exception {
+        int n = in.readInt();
+        ArrayList<String> l = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            byte[] b = new byte[in.readInt()];
+            in.readFully(b);
+            l.add(new String(b, StandardCharsets.UTF_8));
+        }
+        return l;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Space-Saving heavy hitters: the most frequent values in a fixed number of
+ * counters. While fewer distinct values than counters have been seen the
+ * counts are exact. After that a new value takes over the smallest counter,
+ * so any value more frequent than total/capacity is guaranteed to be held,
+ * and each count overstates the truth by at most its recorded error.
+ *
+ * @author Damian Murphy
+ */
+public class SpaceSaving {
+
+    private final int capacity;
+    // value -> { count, error }
+    private HashMap<String, long[]> counters = new HashMap<>();
+
+    /**
+     * @param c number of counters
+     */
+    public SpaceSaving(int c) {
+        capacity = c;
+    }
+
+    /**
+     * @param s value to count
+     */
+    public void add(String s) {
+        long[] c = counters.get(s);
+        if (c != null) {
+            c[0]++;
+            return;
+        }
+        if (counters.size() < capacity) {
+            counters.put(s, new long[]{1, 0});
+            return;
+        }
+        String min = minimum();
+        long[] m = counters.remove(min);
+        counters.put(s, new long[]{m[0] + 1, m[0]});
+    }
+
+    /**
+     * @param o counters to fold into this one. A value missing from a full
+     * set of counters may have been evicted, so it is taken to have that
+     * set's minimum count, as error.
+     */
+    public void merge(SpaceSaving o) {
+        long minA = (counters.size() < capacity) ? 0 : counters.get(minimum())[0];
+        long minB = (o.counters.size() < o.capacity) ? 0 : o.counters.get(o.minimum())[0];
+        HashSet<String> keys = new HashSet<>(counters.keySet());
+        keys.addAll(o.counters.keySet());
+        HashMap<String, long[]> merged = new HashMap<>();
+        for (String k : keys) {
+            long[] a = counters.get(k);
+            long[] b = o.counters.get(k);
+            long count = ((a == null) ? minA : a[0]) + ((b == null) ? minB : b[0]);
+            long error = ((a == null) ? minA : a[1]) + ((b == null) ? minB : b[1]);
+            merged.put(k, new long[]{count, error});
+        }
+        counters = merged;
+        ArrayList<String> ordered = top(merged.size());
+        for (int i = capacity; i < ordered.size(); i++) {
+            counters.remove(ordered.get(i));
+        }
+    }
+
+    /**
+     * @param k number of values
+     * @return up to k values, most frequent first, ties in value order
+     */
+    public ArrayList<String> top(int k) {
+        ArrayList<String> values = new ArrayList<>(counters.keySet());
+        values.sort((x, y) -> {
+            int c = Long.compare(counters.get(y)[0], counters.get(x)[0]);
+            return (c != 0) ? c : x.compareTo(y);
+        });
+        return new ArrayList<>(values.subList(0, Math.min(k, values.size())));
+    }
+
+    /**
+     * @param s value
+     * @return count for s, an upper bound if its error is non zero, or 0 if
+     * it is not held
+     */
+    public long getCount(String s) {
+        long[] c = counters.get(s);
+        return (c == null) ? 0 : c[0];
+    }
+
+    /**
+     * @param s value
+     * @return the most by which getCount(s) may overstate the true count
+     */
+    public long getError(String s) {
+        long[] c = counters.get(s);
+        return (c == null) ? 0 : c[1];
+    }
+
+    private String minimum() {
+        String min = null;
+        long m = Long.MAX_VALUE;
+        for (String k : counters.keySet()) {
+            long c = counters.get(k)[0];
+            if (c < m) {
+                m = c;
+                min = k;
+            }
+        }
+        return min;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.PrintStream;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Breaks the time to first output down by phase, for tuning the start up of
+ * short runs: JVM start to main, reading the arguments, loading the profile,
+ * preparing the run and reading and processing the first document. Each
+ * phase is reported with the milliseconds it took and the classes loaded
+ * during it, which is where class data sharing shows.
+ *
+ * @author Damian Murphy
+ */
+public class StartupReport {
+
+    private final RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+    private final ClassLoadingMXBean classes = ManagementFactory.getClassLoadingMXBean();
+    // phase -> { uptime ms, classes loaded } at its end
+    private final LinkedHashMap<String, long[]> phases = new LinkedHashMap<>();
+
+    /**
+     * starts the report, at the start of main. The time before that is
+     * reported as the JVM start phase.
+     */
+    public StartupReport() {
+        mark("JVM start to main");
+    }
+
+    /**
+     * records the end of a phase. Only the first mark of each phase counts,
+     * so a phase repeated for each document is reported for the first.
+     *
+     * @param phase phase name
+     */
+    public synchronized void mark(String phase) {
+        if (!phases.containsKey(phase)) {
+            phases.put(phase, new long[]{runtime.getUptime(), classes.getTotalLoadedClassCount()});
+        }
+    }
+
+    /**
+     * @return report lines: one tab separated line per phase, with its
+     * milliseconds and classes loaded, then the total and the class data
+     * sharing options the JVM was started with
+     */
+    public synchronized ArrayList<String> report() {
+        ArrayList<String> lines = new ArrayList<>();
+        lines.add("Startup\tphase\tms\tclasses loaded");
+        long[] previous = new long[]{0, 0};
+        for (String phase : phases.keySet()) {
+            long[] p = phases.get(phase);
+            lines.add("\t" + phase + "\t" + (p[0] - previous[0]) + "\t" + (p[1] - previous[1]));
+            previous = p;
+        }
+        lines.add("\ttotal\t" + previous[0] + "\t" + previous[1]);
+        String cds = "default";
+        for (String a : runtime.getInputArguments()) {
+            if (a.startsWith("-XX:SharedArchiveFile") || a.startsWith("-Xshare") || a.startsWith("-XX:ArchiveClassesAtExit")) {
+                cds = a;
+            }
+        }
+        lines.add("\tclass data sharing\t" + cds);
+        return lines;
+    }
+
+    /**
+     * @param out stream to write the report to
+     */
+    public void write(PrintStream out) {
+        for (String s : report()) {
+            out.println(s);
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Persistent inverted index from label and value to the documents whose
+ * extraction output has that value for that label, so that finding the
+ * documents holding one NHS number or one code does not need another pass
+ * over the corpus.
+ *
+ * An index is a directory. documents.txt holds the document names, one per
+ * line, with their ids implied by their order, and documents.off the byte
+ * offset of each name as a long, so a name can be found without reading the
+ * rest. Postings are buffered in memory as documents are added and written
+ * out as an immutable segment, segment-N.idx, whenever the buffer fills and
+ * when the index is closed:
+ *
+ * <pre>
+ * int      magic, BXXI
+ * int      format version
+ * int      number of terms
+ * int[]    position of each term, in unsigned UTF-8 byte order of the terms
+ * terms    each an int byte length and the UTF-8 of label NUL value, an int
+ *          document count, an int byte length and the document ids, as
+ *          ascending varint deltas
+ * </pre>
+ *
+ * A segment is written to a temporary file and renamed into place, after
+ * the document names it refers to have been written. Indexing more
+ * documents later, in the same or another run, adds segments and never
+ * rewrites existing ones. A query maps each segment read-only and binary
+ * searches its terms, so it does not depend on the size of the index.
+ *
+ * @author Damian Murphy
+ */
+public class ValueIndex {
+
+    public static final int VERSION = 1;
+    private static final int MAGIC = 0x42585849;
+
+    private static final String DOCUMENTS = "documents.txt";
+    private static final String OFFSETS = "documents.off";
+    private static final String SEGMENT = "segment-";
+    private static final String SUFFIX = ".idx";
+
+    // buffered postings, or bytes of buffered terms, before a segment is written
+    private static final int MAX_POSTINGS = 4 * 1024 * 1024;
+    private static final long MAX_TERM_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * ascending document ids for one term
+     */
+    private static class Postings {
+
+        private int[] ids = new int[2];
+        private int count = 0;
+
+        /**
+         * @param id document id, ignored if it is the last one added
+         * @return true if it was added
+         */
+        private boolean add(int id) {
+            if (count > 0 && ids[count - 1] == id) {
+                return false;
+            }
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = id;
+            return true;
+        }
+    }
+
+    private Path directory = null;
+    private OutputStream names = null;
+    private DataOutputStream offsets = null;
+    private long namesLength = 0;
+    private int nextId = 0;
+    private int nextSegment = 0;
+    private HashMap<String, Postings> postings = new HashMap<>();
+    private int bufferedPostings = 0;
+    private long bufferedBytes = 0;
+
+    /**
+     * opens an index for adding documents, creating it if need be
+     *
+     * @param d index directory
+     * @throws Exception
+     */
+    public ValueIndex(Path d)
+            throws Exception {
+        directory = d;
+        Files.createDirectories(d);
+        Path o = d.resolve(OFFSETS);
+        Path n = d.resolve(DOCUMENTS);
+        if (Files.exists(o) && Files.exists(n)) {
+            recover(o, n);
+        }
+        nextId = Files.exists(o) ? (int) (Files.size(o) / Long.BYTES) : 0;
+        namesLength = Files.exists(n) ? Files.size(n) : 0;
+        for (Path p : segments(d)) {
+            nextSegment = Math.max(nextSegment, segmentNumber(p) + 1);
+        }
+        names = new BufferedOutputStream(Files.newOutputStream(n, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        offsets = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(o, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+    }
+
+    /**
+     * truncates the names and offsets left by a run that stopped without
+     * closing the index to the last document with both on disk, so that
+     * documents added now are not read back with a name left behind
+     *
+     * @param o offsets file
+     * @param n names file
+     * @throws Exception
+     */
+    private static void recover(Path o, Path n)
+            throws Exception {
+        try (FileChannel oc = FileChannel.open(o, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                FileChannel nc = FileChannel.open(n, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long documents = oc.size() / Long.BYTES;
+            long end = 0;
+            while (documents > 0) {
+                ByteBuffer b = ByteBuffer.allocate(Long.BYTES);
+                while (b.hasRemaining() && oc.read(b, (documents - 1) * Long.BYTES + b.position()) > 0) {
+                }
+                end = nameEnd(nc, b.getLong(0));
+                if (end >= 0) {
+                    break;
+                }
+                // an offset whose name was never written
+                documents--;
+                end = 0;
+            }
+            oc.truncate(documents * Long.BYTES);
+            nc.truncate(end);
+        }
+    }
+
+    /**
+     * @param nc names file
+     * @param start offset of a name
+     * @return offset after the name's newline, or -1 if it has none
+     * @throws IOException
+     */
+    private static long nameEnd(FileChannel nc, long start)
+            throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4096);
+        long position = start;
+        while (position < nc.size()) {
+            b.clear();
+            int r = nc.read(b, position);
+            if (r <= 0) {
+                break;
+            }
+            for (int i = 0; i < r; i++) {
+                if (b.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += r;
+        }
+        return -1;
+    }
+
+    /**
+     * @param name document name, as reported by queries
+     * @return the document's id
+     * @throws Exception
+     */
+    public synchronized int addDocument(String name)
+            throws Exception {
+        byte[] b = (name.replace('\n', ' ') + "\n").getBytes(StandardCharsets.UTF_8);
+        offsets.writeLong(namesLength);
+        names.write(b);
+        namesLength += b.length;
+        return nextId++;
+    }
+
+    /**
+     * adds one label's values for a document, writing a segment if the
+     * buffer is full
+     *
+     * @param id document id from addDocument
+     * @param label label
+     * @param values values, null for nodes without one
+     * @throws Exception
+     */
+    public synchronized void add(int id, String label, List<String> values)
+            throws Exception {
+        for (String v : values) {
+            if (v == null) {
+                continue;
+            }
+            String term = label + "\u0000" + v;
+            Postings p = postings.get(term);
+            if (p == null) {
+                p = new Postings();
+                postings.put(term, p);
+                bufferedBytes += term.length();
+            }
+            if (p.add(id)) {
+                bufferedPostings++;
+            }
+        }
+        if (bufferedPostings >= MAX_POSTINGS || bufferedBytes >= MAX_TERM_BYTES) {
+            flush();
+        }
+    }
+
+    /**
+     * writes any buffered postings as a segment and closes the index
+     *
+     * @throws Exception
+     */
+    public synchronized void close()
+            throws Exception {
+        flush();
+        names.close();
+        offsets.close();
+    }
+
+    /**
+     * @return number of documents in the index
+     */
+    public synchronized int getDocuments() {
+        return nextId;
+    }
+
+    /**
+     * writes the buffered postings as a new segment
+     *
+     * @throws Exception
+     */
+    private void flush()
+            throws Exception {
+        // the names a segment refers to are always on disk before it is
+        names.flush();
+        offsets.flush();
+        if (postings.isEmpty()) {
+            return;
+        }
+        ArrayList<byte[]> terms = new ArrayList<>();
+        HashMap<byte[], Postings> byTerm = new HashMap<>();
+        for (String t : postings.keySet()) {
+            byte[] b = t.getBytes(StandardCharsets.UTF_8);
+            terms.add(b);
+            byTerm.put(b, postings.get(t));
+        }
+        terms.sort(Arrays::compareUnsigned);
+        Path segment = directory.resolve(SEGMENT + nextSegment + SUFFIX);
+        Path tmp = directory.resolve(SEGMENT + nextSegment + SUFFIX + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(terms.size());
+            // term positions follow the header and the position table
+            long position = 3L * Integer.BYTES + (long) terms.size() * Integer.BYTES;
+            ArrayList<byte[]> encoded = new ArrayList<>();
+            for (byte[] t : terms) {
+                if (position > Integer.MAX_VALUE) {
+                    throw new IOException("Index segment too large");
+                }
+                out.writeInt((int) position);
+                Postings p = byTerm.get(t);
+                // ids from concurrent documents may arrive out of order
+                int[] ids = Arrays.copyOf(p.ids, p.count);
+                Arrays.sort(ids);
+                byte[] e = encode(ids);
+                encoded.add(e);
+                position += 3L * Integer.BYTES + t.length + e.length;
+            }
+            for (int i = 0; i < terms.size(); i++) {
+                byte[] t = terms.get(i);
+                byte[] e = encoded.get(i);
+                out.writeInt(t.length);
+                out.write(t);
+                out.writeInt(byTerm.get(t).count);
+                out.writeInt(e.length);
+                out.write(e);
+            }
+        }
+        Files.move(tmp, segment, StandardCopyOption.ATOMIC_MOVE);
+        nextSegment++;
+        postings = new HashMap<>();
+        bufferedPostings = 0;
+        bufferedBytes = 0;
+    }
+
+    /**
+     * @param ids ascending document ids
+     * @return ids as varint deltas from the previous id, the first from 0
+     */
+    static byte[] encode(int[] ids) {
+        byte[] b = new byte[ids.length * 5];
+        int n = 0;
+        int previous = 0;
+        for (int id : ids) {
+            int d = id - previous;
+            previous = id;
+            while ((d & ~0x7f) != 0) {
+                b[n++] = (byte) ((d & 0x7f) | 0x80);
+                d >>>= 7;
+            }
+            b[n++] = (byte) d;
+        }
+        return Arrays.copyOf(b, n);
+    }
+
+    /**
+     * @param b varint deltas, as written by encode
+     * @param count number of ids
+     * @return the ids
+     */
+    static int[] decode(ByteBuffer b, int count) {
+        int[] ids = new int[count];
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            int d = 0;
+            int shift = 0;
+            byte x;
+            do {
+                x = b.get();
+                d |= (x & 0x7f) << shift;
+                shift += 7;
+            } while ((x & 0x80) != 0);
+            previous += d;
+            ids[i] = previous;
+        }
+        return ids;
+    }
+
+    /**
+     * finds the documents with a value for a label
+     *
+     * @param d index directory
+     * @param label label
+     * @param value value, matched exactly
+     * @return names of the matching documents, in the order they were
+     * indexed, each once
+     * @throws Exception if d is not an index or a segment is not valid
+     */
+    public static ArrayList<String> query(Path d, String label, String value)
+            throws Exception {
+        if (!Files.exists(d.resolve(OFFSETS))) {
+            throw new Exception(d + " is not a value index");
+        }
+        byte[] term = (label + "\u0000" + value).getBytes(StandardCharsets.UTF_8);
+        ArrayList<int[]> found = new ArrayList<>();
+        int total = 0;
+        for (Path p : segments(d)) {
+            int[] ids = find(p, term);
+            found.add(ids);
+            total += ids.length;
+        }
+        int[] ids = new int[total];
+        int n = 0;
+        for (int[] f : found) {
+            System.arraycopy(f, 0, ids, n, f.length);
+            n += f.length;
+        }
+        Arrays.sort(ids);
+        // a document indexed again in a later run has a new id, but one name
+        LinkedHashSet<String> documents = new LinkedHashSet<>();
+        if (ids.length > 0) {
+            try (FileChannel oc = FileChannel.open(d.resolve(OFFSETS), StandardOpenOption.READ);
+                    FileChannel nc = FileChannel.open(d.resolve(DOCUMENTS), StandardOpenOption.READ)) {
+                MappedByteBuffer o = oc.map(FileChannel.MapMode.READ_ONLY, 0, oc.size());
+                int documentCount = (int) (oc.size() / Long.BYTES);
+                for (int i = 0; i < ids.length; i++) {
+                    if (i > 0 && ids[i] == ids[i - 1]) {
+                        continue;
+                    }
+                    if (ids[i] >= documentCount) {
+                        throw new Exception("Index " + d + " refers to document " + ids[i] + " of " + documentCount);
+                    }
+                    long start = o.getLong(ids[i] * Long.BYTES);
+                    long end = (ids[i] + 1 < documentCount) ? o.getLong((ids[i] + 1) * Long.BYTES) : nc.size();
+                    ByteBuffer b = ByteBuffer.allocate((int) (end - start));
+                    while (b.hasRemaining() && nc.read(b, start + b.position()) > 0) {
+                    }
+                    // names a stopped run wrote without offsets may follow the last one
+                    int length = 0;
+                    while (length < b.position() && b.get(length) != '\n') {
+                        length++;
+                    }
+                    documents.add(new String(b.array(), 0, length, StandardCharsets.UTF_8).trim());
+                }
+            }
+        }
+        return new ArrayList<>(documents);
+    }
+
+    /**
+     * @param segment segment file
+     * @param term UTF-8 of label NUL value
+     * @return ids of the documents with the term in this segment
+     * @throws Exception if the segment is not valid
+     */
+    private static int[] find(Path segment, byte[] term)
+            throws Exception {
+        try (FileChannel fc = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            if (b.limit() < 3 * Integer.BYTES || b.getInt(0) != MAGIC) {
+                throw new Exception(segment + " is not an index segment");
+            }
+            if (b.getInt(Integer.BYTES) != VERSION) {
+                throw new Exception(segment + " is index format version " + b.getInt(Integer.BYTES) + ", this version reads " + VERSION);
+            }
+            int terms = b.getInt(2 * Integer.BYTES);
+            int low = 0;
+            int high = terms - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int position = b.getInt((3 + mid) * Integer.BYTES);
+                int c = compare(b, position + Integer.BYTES, b.getInt(position), term);
+                if (c < 0) {
+                    low = mid + 1;
+                } else if (c > 0) {
+                    high = mid - 1;
+                } else {
+                    int p = position + Integer.BYTES + term.length;
+                    int count = b.getInt(p);
+                    b.position(p + 2 * Integer.BYTES);
+                    return decode(b, count);
+                }
+            }
+            return new int[0];
+        }
+    }
+
+    /**
+     * compares a term in a segment with one being looked up, as unsigned
+     * bytes
+     */
+    private static int compare(ByteBuffer b, int position, int length, byte[] term) {
+        int n = Math.min(length, term.length);
+        for (int i = 0; i < n; i++) {
+            int c = Integer.compare(b.get(position + i) & 0xff, term[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(length, term.length);
+    }
+
+    /**
+     * @return the index's segments, in the order they were written
+     */
+    private static ArrayList<Path> segments(Path d)
+            throws Exception {
+        TreeMap<Integer, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(d, SEGMENT + "*" + SUFFIX)) {
+            for (Path p : ds) {
+                segments.put(segmentNumber(p), p);
+            }
+        }
+        return new ArrayList<>(segments.values());
+    }
+
+    private static int segmentNumber(Path p) {
+        String name = p.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT.length(), name.length() - SUFFIX.length()));
+    }
+}
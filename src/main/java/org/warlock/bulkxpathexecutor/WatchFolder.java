@@ -0,0 +1,173 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a spool directory and hands each new file to a handler once it has
+ * been completely written. A file is taken to be complete when its size has
+ * not changed, and no events have been seen for it, for the settle time. A
+ * file renamed into the directory is therefore picked up after one settle
+ * interval. Files already present when watching starts are processed first.
+ *
+ * Names starting with . or ending with .tmp or .part, which writers commonly
+ * use before renaming into place, are ignored, as are subdirectories. The
+ * handler is expected to move each file out of the directory.
+ *
+ * @author Damian Murphy
+ */
+public class WatchFolder {
+
+    /**
+     * Processes one complete file
+     */
+    public interface Handler {
+
+        /**
+         * @param file the file, still in the watched directory
+         * @throws Exception
+         */
+        void process(Path file)
+                throws Exception;
+    }
+
+    private static final long MAX_POLL = 50;
+
+    private Path directory = null;
+    private long settle = 0;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param d directory to watch
+     * @param s settle time in milliseconds
+     */
+    public WatchFolder(Path d, long s) {
+        directory = d;
+        settle = s;
+    }
+
+    /**
+     * makes run() return after the file being processed, if any
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * watches the directory until stop() is called
+     *
+     * @param handler called for each complete file, in the order they
+     * arrived
+     * @throws Exception
+     */
+    public void run(Handler handler)
+            throws Exception {
+        // file -> { size, time of last change }
+        LinkedHashMap<Path, long[]> pending = new LinkedHashMap<>();
+        try (WatchService ws = directory.getFileSystem().newWatchService()) {
+            directory.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            scan(pending);
+            while (!stopped) {
+                WatchKey key = ws.poll(Math.min(settle, MAX_POLL), TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> e : key.pollEvents()) {
+                        if (e.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            scan(pending);
+                        } else {
+                            seen(pending, directory.resolve((Path) e.context()));
+                        }
+                    }
+                    key.reset();
+                }
+                long now = System.currentTimeMillis();
+                ArrayList<Path> ready = new ArrayList<>();
+                for (Path p : new ArrayList<>(pending.keySet())) {
+                    long[] state = pending.get(p);
+                    long size = size(p);
+                    if (size == -1) {
+                        // gone, eg renamed away again
+                        pending.remove(p);
+                        continue;
+                    }
+                    if (size != state[0]) {
+                        state[0] = size;
+                        state[1] = now;
+                    } else if (now - state[1] >= settle) {
+                        pending.remove(p);
+                        ready.add(p);
+                    }
+                }
+                for (Path p : ready) {
+                    if (stopped) {
+                        break;
+                    }
+                    handler.process(p);
+                }
+            }
+        }
+    }
+
+    private void scan(LinkedHashMap<Path, long[]> pending)
+            throws Exception {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory)) {
+            for (Path p : ds) {
+                if (!pending.containsKey(p)) {
+                    seen(pending, p);
+                }
+            }
+        }
+    }
+
+    private void seen(LinkedHashMap<Path, long[]> pending, Path p)
+            throws Exception {
+        String name = p.getFileName().toString();
+        if (name.startsWith(".") || name.endsWith(".tmp") || name.endsWith(".part") || !Files.isRegularFile(p)) {
+            return;
+        }
+        long size = size(p);
+        if (size == -1) {
+            return;
+        }
+        long[] state = pending.get(p);
+        if (state == null) {
+            pending.put(p, new long[]{size, System.currentTimeMillis()});
+        } else {
+            state[0] = size;
+            state[1] = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return the size of p, or -1 if it no longer exists
+     */
+    private static long size(Path p) {
+        try {
+            return Files.size(p);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.xml.sax.InputSource;
+
+/**
+ * Substitution as a single XSLT transform. The planned labels and their
+ * values are compiled into one stylesheet built on the identity transform,
+ * with a template per label matching the label's xpath, and held as
+ * Templates, which are thread safe. Each document is then transformed in one
+ * streaming pass, without building a DOM, and written straight to the output.
+ *
+ * The xpaths must be in the subset CompactXPath handles, which are all valid
+ * XSLT match patterns and location paths, and must select elements,
+ * attributes or text nodes. Where one label has different values for its
+ * first few matches, the ids of the nodes at those positions are found once
+ * per document, in global variables, and each match is compared with them.
+ *
+ * The result is the same as the DOM engine's, with the same messages, when
+ * no node is matched by more than one label. A node matched by several
+ * labels gets the value of the last of them, unless one deletes or replaces
+ * it, in which case the first of those wins. Documents are always written
+ * as transformed, even when nothing was changed.
+ *
+ * @author Damian Murphy
+ */
+public class XsltEngine {
+
+    private static final String XSL = "http://www.w3.org/1999/XSL/Transform";
+    private static final Pattern PREFIX = Pattern.compile("([A-Za-z_][\\w.\\-]*):(?!:)");
+
+    private static final int ELEMENT = 0;
+    private static final int ATTRIBUTE = 1;
+    private static final int TEXT = 2;
+
+    private static final int VALUE = 0;
+    private static final int DELETE = 1;
+    private static final int FRAGMENT = 2;
+    private static final int ERROR = 3;
+
+    /**
+     * What to do with a matched node
+     */
+    public static final class Action {
+
+        private final int kind;
+        private final String value;
+
+        private Action(int k, String v) {
+            kind = k;
+            value = v;
+        }
+
+        /**
+         * @param v new node value. Setting an element's value does nothing,
+         * as for the DOM.
+         * @return action
+         */
+        public static Action value(String v) {
+            return new Action(VALUE, v);
+        }
+
+        /**
+         * @return action removing the node, an error for an attribute
+         */
+        public static Action delete() {
+            return new Action(DELETE, null);
+        }
+
+        /**
+         * @param xml well formed xml to replace an element with
+         * @return action
+         */
+        public static Action fragment(String xml) {
+            return new Action(FRAGMENT, xml);
+        }
+
+        /**
+         * @param message error to report, leaving the node unchanged
+         * @return action
+         */
+        public static Action error(String message) {
+            return new Action(ERROR, message);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Action)) {
+                return false;
+            }
+            Action a = (Action) o;
+            return kind == a.kind && Objects.equals(value, a.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return kind * 31 + Objects.hashCode(value);
+        }
+    }
+
+    private static class Rule {
+
+        String label = null;
+        String xpath = null;
+        int kind = ELEMENT;
+        List<Action> actions = null;
+    }
+
+    private NamespaceContext namespaceContext = null;
+    private ArrayList<Rule> rules = new ArrayList<>();
+    private Document stylesheet = null;
+    private Templates templates = null;
+    private ParserProfile parser = ParserProfile.DEFAULT;
+
+    /**
+     * @param ns namespace context the xpaths use
+     */
+    public XsltEngine(NamespaceContext ns) {
+        namespaceContext = ns;
+    }
+
+    /**
+     * @param p how to parse the documents transformed
+     */
+    public void setParserProfile(ParserProfile p) {
+        parser = p;
+    }
+
+    /**
+     * adds a label's template. Later labels override earlier ones for value
+     * changes.
+     *
+     * @param label label, for messages
+     * @param xpath where the label's values go
+     * @param actions what to do with the first, second and so on nodes
+     * matched, in document order. The last applies to any further matches.
+     * @throws Exception if the label cannot be expressed as a template
+     */
+    public void add(String label, String xpath, List<Action> actions)
+            throws Exception {
+        if (CompactXPath.compile(xpath, namespaceContext) == null) {
+            throw new Exception("Label " + label + " xpath " + xpath + " is not a simple location path");
+        }
+        Rule r = new Rule();
+        r.label = label;
+        r.xpath = xpath.trim();
+        r.actions = actions;
+        String last = r.xpath.substring(r.xpath.lastIndexOf('/') + 1);
+        if (last.startsWith("@")) {
+            r.kind = ATTRIBUTE;
+        } else if (last.startsWith("text()")) {
+            r.kind = TEXT;
+        } else if (last.startsWith("node()")) {
+            throw new Exception("Label " + label + " xpath " + xpath + " may select nodes of any kind");
+        }
+        rules.add(r);
+    }
+
+    /**
+     * builds the stylesheet from the labels added
+     *
+     * @throws Exception
+     */
+    public void compile()
+            throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        stylesheet = dbf.newDocumentBuilder().newDocument();
+        Element root = xsl(stylesheet, "stylesheet");
+        stylesheet.appendChild(root);
+        root.setAttribute("version", "1.0");
+        root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:xsl", XSL);
+        LinkedHashSet<String> prefixes = new LinkedHashSet<>();
+        for (Rule r : rules) {
+            Matcher m = PREFIX.matcher(r.xpath);
+            while (m.find()) {
+                prefixes.add(m.group(1));
+            }
+        }
+        for (String p : prefixes) {
+            String uri = namespaceContext.getNamespaceURI(p);
+            if (uri == null || uri.isEmpty()) {
+                throw new Exception("Namespace prefix " + p + " is not defined");
+            }
+            root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, "xmlns:" + p, uri);
+        }
+        if (!prefixes.isEmpty()) {
+            root.setAttribute("exclude-result-prefixes", String.join(" ", prefixes));
+        }
+        Element output = xsl(stylesheet, "output");
+        output.setAttribute("method", "xml");
+        output.setAttribute("encoding", "UTF-8");
+        root.appendChild(output);
+
+        Element identity = template(root, "@*|node()", "-1");
+        identity(identity, ELEMENT);
+        // comments are dropped, as by the DOM engine's parser
+        template(root, "comment()", "0");
+
+        int n = rules.size();
+        for (int k = 0; k < n; k++) {
+            Rule r = rules.get(k);
+            boolean structural = false;
+            boolean changes = false;
+            for (Action a : r.actions) {
+                structural |= (a.kind == DELETE || a.kind == FRAGMENT) && r.kind != ATTRIBUTE;
+                changes |= !(a.kind == VALUE && r.kind == ELEMENT);
+            }
+            if (!changes) {
+                continue;
+            }
+            // value changes: the last label wins. Deletions and replacements:
+            // the first wins, and over any value change
+            int priority = structural ? 2 * n - k : k + 1;
+            Element t = template(root, r.xpath, Integer.toString(priority));
+            if (!indexed(r)) {
+                body(t, r, r.actions.get(0));
+                continue;
+            }
+            Element choose = xsl(stylesheet, "choose");
+            t.appendChild(choose);
+            for (int i = 0; i < r.actions.size() - 1; i++) {
+                // id of the label's match at this position, evaluated once
+                String position = "position" + k + "-" + (i + 1);
+                Element global = xsl(stylesheet, "variable");
+                global.setAttribute("name", position);
+                global.setAttribute("select", "generate-id((" + r.xpath + ")[" + (i + 1) + "])");
+                root.insertBefore(global, output.getNextSibling());
+                Element when = xsl(stylesheet, "when");
+                when.setAttribute("test", "generate-id() = $" + position);
+                choose.appendChild(when);
+                body(when, r, r.actions.get(i));
+            }
+            Element otherwise = xsl(stylesheet, "otherwise");
+            choose.appendChild(otherwise);
+            body(otherwise, r, r.actions.get(r.actions.size() - 1));
+        }
+        templates = TransformerFactory.newInstance().newTemplates(new DOMSource(stylesheet));
+    }
+
+    /**
+     * @return the stylesheet, for inspection
+     */
+    public String getStylesheet() {
+        DOMImplementationLS ls = (DOMImplementationLS) stylesheet.getImplementation();
+        return ls.createLSSerializer().writeToString(stylesheet);
+    }
+
+    /**
+     * transforms one document, writing the result as it is produced
+     *
+     * @param document the document's bytes
+     * @param name path to the document, for resolving relative references, or
+     * - for stdin
+     * @param out destination
+     * @param om receives the substitution messages
+     * @throws Exception
+     */
+    public void transform(byte[] document, String name, Writer out, OutputManager om)
+            throws Exception {
+        Transformer t = templates.newTransformer();
+        t.setErrorListener(new ErrorListener() {
+            @Override
+            public void warning(TransformerException e)
+                    throws TransformerException {
+                // xsl:message
+                try {
+                    om.error(e.getMessage());
+                } catch (Exception e2) {
+                    throw new TransformerException(e2);
+                }
+            }
+
+            @Override
+            public void error(TransformerException e)
+                    throws TransformerException {
+                throw e;
+            }
+
+            @Override
+            public void fatalError(TransformerException e)
+                    throws TransformerException {
+                throw e;
+            }
+        });
+        t.transform(parser.newSource(document, name), new StreamResult(out));
+    }
+
+    /**
+     * @return true if the label does different things to different matches
+     */
+    private static boolean indexed(Rule r) {
+        for (Action a : r.actions) {
+            if (!a.equals(r.actions.get(0))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void body(Element parent, Rule r, Action a)
+            throws Exception {
+        switch (a.kind) {
+            case VALUE:
+                if (r.kind == ELEMENT) {
+                    identity(parent, ELEMENT);
+                } else if (r.kind == ATTRIBUTE) {
+                    Element attribute = xsl(stylesheet, "attribute");
+                    attribute.setAttribute("name", "{name()}");
+                    attribute.setAttribute("namespace", "{namespace-uri()}");
+                    attribute.appendChild(text(a.value));
+                    parent.appendChild(attribute);
+                } else {
+                    parent.appendChild(text(a.value));
+                }
+                break;
+            case DELETE:
+                if (r.kind == ATTRIBUTE) {
+                    // as for the DOM, where an attribute has no parent
+                    Element message = xsl(stylesheet, "message");
+                    message.appendChild(text("Failed to delete "));
+                    Element name = xsl(stylesheet, "value-of");
+                    name.setAttribute("select", "local-name()");
+                    message.appendChild(name);
+                    message.appendChild(text(" no parent "));
+                    parent.appendChild(message);
+                    identity(parent, r.kind);
+                }
+                break;
+            case FRAGMENT:
+                if (r.kind == ELEMENT) {
+                    Node f = stylesheet.importNode(fragment(a.value), true);
+                    escapeAttributes(f);
+                    parent.appendChild(f);
+                } else {
+                    message(parent, ErrorCollector.message(ErrorCollector.FRAGMENT_TARGET, null, r.label, r.xpath, null, a.value));
+                    identity(parent, r.kind);
+                }
+                break;
+            default:
+                message(parent, a.value);
+                identity(parent, r.kind);
+        }
+    }
+
+    private void message(Element parent, String s) {
+        Element message = xsl(stylesheet, "message");
+        message.appendChild(text(s));
+        parent.appendChild(message);
+    }
+
+    private void identity(Element parent, int kind) {
+        Element copy = xsl(stylesheet, "copy");
+        if (kind == ELEMENT) {
+            Element apply = xsl(stylesheet, "apply-templates");
+            apply.setAttribute("select", "@*|node()");
+            copy.appendChild(apply);
+        }
+        parent.appendChild(copy);
+    }
+
+    private Element text(String s) {
+        Element t = xsl(stylesheet, "text");
+        t.setTextContent(s);
+        return t;
+    }
+
+    private static Element template(Element root, String match, String priority) {
+        Element t = xsl(root.getOwnerDocument(), "template");
+        t.setAttribute("match", match);
+        t.setAttribute("priority", priority);
+        root.appendChild(t);
+        return t;
+    }
+
+    private static Element xsl(Document d, String name) {
+        return d.createElementNS(XSL, "xsl:" + name);
+    }
+
+    private static Element fragment(String xml)
+            throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setIgnoringComments(true);
+        dbf.setNamespaceAware(true);
+        return dbf.newDocumentBuilder().parse(new InputSource(new StringReader(xml))).getDocumentElement();
+    }
+
+    /**
+     * doubles braces, which would otherwise be attribute value templates
+     */
+    private static void escapeAttributes(Node n) {
+        if (n.getNodeType() != Node.ELEMENT_NODE) {
+            return;
+        }
+        NamedNodeMap attributes = n.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr a = (Attr) attributes.item(i);
+            if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(a.getNamespaceURI())) {
+                a.setValue(a.getValue().replace("{", "{{").replace("}", "}}"));
+            }
+        }
+        NodeList children = n.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            escapeAttributes(children.item(i));
+        }
+    }
+}
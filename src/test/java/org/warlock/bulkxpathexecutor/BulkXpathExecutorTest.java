@@ -16,10 +16,18 @@
 package org.warlock.bulkxpathexecutor;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeEach;
@@ -76,4 +84,238 @@ public class BulkXpathExecutorTest {
         }
     }
 
+    /**
+     * Test of main method, of class BulkXpathExecutor, for a substitution run
+     * where the paths file has more labels than the data file. Only the
+     * labels in the data file are evaluated, so the one whose xpath does not
+     * compile is never looked at, and a label whose value is a $label
+     * reference is evaluated like any other.
+     */
+    @Test
+    public void testMainPlan() throws IOException {
+        System.out.println("mainPlan");
+        File paths = File.createTempFile("paths", ".txt");
+        paths.deleteOnExit();
+        Files.write(paths.toPath(), List.of("ID\t/a/@id", "REF\t/a/b/@v", "BAD\t/a["));
+        File data = File.createTempFile("data", ".txt");
+        data.deleteOnExit();
+        Files.write(data.toPath(), List.of("ID\tnew", "REF\t$ID"));
+        File document = File.createTempFile("document", ".xml");
+        document.deleteOnExit();
+        Files.write(document.toPath(), List.of("<a id=\"1\"><b v=\"2\"/></a>"));
+        String[] args = new String[]{"-p", paths.getPath(), "-r", data.getPath(), "-o", outputFile.getPath(), document.getPath()};
+        BulkXpathExecutor.main(args);
+        String result = new String(Files.readAllBytes(outputFile.toPath()), StandardCharsets.UTF_8);
+        assertTrue(result.contains("<a id=\"new\"><b v=\"new\"/></a>"), result);
+    }
+
+    /**
+     * Test of main method with --threads, of class BulkXpathExecutor.
+     * Extraction and substitution across 4 threads give the same bytes as the
+     * serial runs.
+     */
+    @Test
+    public void testMainThreads() throws IOException {
+        System.out.println("mainThreads");
+        File data = File.createTempFile("data", ".txt");
+        data.deleteOnExit();
+        Files.write(data.toPath(), List.of("P1\tplain text", "P2\t$P1", "P3\tthird"));
+        File serial = File.createTempFile("serial", ".xml");
+        serial.deleteOnExit();
+        String paths = TEST_ROOT + "/locations.txt";
+        String document = TEST_ROOT + "/problems_resp.xml";
+        String[][] runs = new String[][]{
+            {"-p", paths, "-o", serial.getPath(), document},
+            {"-p", paths, "-o", outputFile.getPath(), "--threads", "4", document},
+            {"-p", paths, "-r", data.getPath(), "-o", serial.getPath(), document},
+            {"-p", paths, "-r", data.getPath(), "-o", outputFile.getPath(), "--threads", "4", document}
+        };
+        for (int i = 0; i < runs.length; i += 2) {
+            BulkXpathExecutor.main(runs[i]);
+            BulkXpathExecutor.main(runs[i + 1]);
+            assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(outputFile.toPath()), String.join(" ", runs[i + 1]));
+        }
+    }
+
+    /**
+     * Test of main method with --profiles, of class BulkXpathExecutor. Each
+     * profile's output is the same as a run of that profile on its own.
+     */
+    @Test
+    public void testMainProfiles() throws IOException {
+        System.out.println("mainProfiles");
+        File data = File.createTempFile("data", ".txt");
+        data.deleteOnExit();
+        Files.write(data.toPath(), List.of("P1\tplain text", "P2\t$P1", "P3\tthird"));
+        File extraction = File.createTempFile("extraction", ".txt");
+        extraction.deleteOnExit();
+        File substitution = File.createTempFile("substitution", ".xml");
+        substitution.deleteOnExit();
+        String paths = TEST_ROOT + "/locations.txt";
+        String document = TEST_ROOT + "/problems_resp.xml";
+        File manifest = File.createTempFile("profiles", ".txt");
+        manifest.deleteOnExit();
+        Files.write(manifest.toPath(), List.of(
+                paths + "\t-\t" + extraction.getPath(),
+                paths + "\t" + data.getPath() + "\t" + substitution.getPath()));
+        BulkXpathExecutor.main(new String[]{"--profiles", manifest.getPath(), document});
+        BulkXpathExecutor.main(new String[]{"-p", paths, "-o", outputFile.getPath(), document});
+        assertArrayEquals(Files.readAllBytes(outputFile.toPath()), Files.readAllBytes(extraction.toPath()));
+        BulkXpathExecutor.main(new String[]{"-p", paths, "-r", data.getPath(), "-o", outputFile.getPath(), document});
+        assertArrayEquals(Files.readAllBytes(outputFile.toPath()), Files.readAllBytes(substitution.toPath()));
+    }
+
+    /**
+     * Test of main method, of class BulkXpathExecutor, for an extraction run
+     * with first, exists and max N hints in the paths file.
+     */
+    @Test
+    public void testMainHints() throws IOException {
+        System.out.println("mainHints");
+        File paths = File.createTempFile("paths", ".txt");
+        paths.deleteOnExit();
+        Files.write(paths.toPath(), List.of(
+                "ALL\t//fhir:reference/@value",
+                "FIRST\t//fhir:reference/@value\tfirst",
+                "TWO\t//fhir:reference/@value\tmax 2",
+                "FOUND\t//fhir:reference\texists",
+                "MISSING\t//fhir:noSuchElement\texists",
+                "DOMFIRST\t//fhir:reference[@value]/@value\tfirst"));
+        String[] args = new String[]{"-p", paths.getPath(), "-o", outputFile.getPath(), TEST_ROOT + "/problems_resp.xml"};
+        BulkXpathExecutor.main(args);
+        List<String> lines = Files.readAllLines(outputFile.toPath());
+        String[] all = lines.get(0).split("\t");
+        assertTrue(all.length > 3);
+        assertEquals("FIRST\t" + all[1], lines.get(1));
+        assertEquals("TWO\t" + all[1] + "\t" + all[2], lines.get(2));
+        assertEquals("FOUND\ttrue", lines.get(3));
+        assertEquals("MISSING\tfalse", lines.get(4));
+        assertEquals("DOMFIRST\t" + all[1], lines.get(5));
+    }
+
+    /**
+     * Test of main method with --index and --query, of class BulkXpathExecutor.
+     */
+    @Test
+    public void testMainIndex() throws IOException {
+        System.out.println("mainIndex");
+        File paths = File.createTempFile("paths", ".txt");
+        paths.deleteOnExit();
+        Files.write(paths.toPath(), List.of("REF\t//fhir:reference/@value\tfirst"));
+        Path index = Files.createTempDirectory("index");
+        String document = TEST_ROOT + "problems_resp.xml";
+        String[] args = new String[]{"-p", paths.getPath(), "-o", outputFile.getPath(), "--index", index.toString(), document};
+        BulkXpathExecutor.main(args);
+        String reference = Files.readAllLines(outputFile.toPath()).get(0).split("\t")[1];
+        args = new String[]{"--index", index.toString(), "--query", "REF", reference, "-o", outputFile.getPath()};
+        BulkXpathExecutor.main(args);
+        assertEquals(List.of(document), Files.readAllLines(outputFile.toPath()));
+        args = new String[]{"--index", index.toString(), "--query", "REF", reference + "x", "-o", outputFile.getPath()};
+        BulkXpathExecutor.main(args);
+        assertTrue(Files.readAllLines(outputFile.toPath()).isEmpty());
+        for (File f : index.toFile().listFiles()) {
+            f.delete();
+        }
+        index.toFile().delete();
+    }
+
+    /**
+     * Test of main method with --framed, of class BulkXpathExecutor. The
+     * second document is not well formed and gives an empty frame.
+     */
+    @Test
+    public void testMainFramed() throws IOException {
+        System.out.println("mainFramed");
+        File paths = File.createTempFile("paths", ".txt");
+        paths.deleteOnExit();
+        Files.write(paths.toPath(), List.of("ID\t/a/@id"));
+        String frames = "11\n<a id=\"1\"/>\n3\n<a>\n11\n<a id=\"3\"/>";
+        InputStream in = System.in;
+        PrintStream out = System.out;
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try {
+            System.setIn(new ByteArrayInputStream(frames.getBytes(StandardCharsets.UTF_8)));
+            System.setOut(new PrintStream(result, true, StandardCharsets.UTF_8));
+            String[] args = new String[]{"-p", paths.getPath(), "--framed", "length", "-e", outputFile.getPath()};
+            BulkXpathExecutor.main(args);
+        } finally {
+            System.setIn(in);
+            System.setOut(out);
+        }
+        assertEquals("5\nID\t1\n0\n5\nID\t3\n", result.toString(StandardCharsets.UTF_8));
+        assertTrue(Files.readAllLines(outputFile.toPath()).get(0).contains("-#2"));
+    }
+
+    /**
+     * Test of main method, of class BulkXpathExecutor, for an extraction run
+     * where a later label fails. Nothing is output for the document, though
+     * the run goes on under --parser offline.
+     */
+    @Test
+    public void testMainFailedLabel() throws IOException {
+        System.out.println("mainFailedLabel");
+        File paths = File.createTempFile("paths", ".txt");
+        paths.deleteOnExit();
+        Files.write(paths.toPath(), List.of("ID\t/a/@id", "COUNT\tcount(//a)"));
+        File document = File.createTempFile("document", ".xml");
+        document.deleteOnExit();
+        Files.write(document.toPath(), List.of("<a id=\"1\"/>"));
+        File errors = File.createTempFile("errors", ".txt");
+        errors.deleteOnExit();
+        String[] args = new String[]{"-p", paths.getPath(), "-o", outputFile.getPath(), "-e", errors.getPath(), "--parser", "offline", document.getPath()};
+        BulkXpathExecutor.main(args);
+        assertTrue(Files.readAllLines(outputFile.toPath()).isEmpty());
+        assertTrue(Files.readAllLines(errors.toPath()).get(0).contains(document.getPath()));
+    }
+
+    /**
+     * Test of main method with --engine xslt, of class BulkXpathExecutor,
+     * for substitutions the XSLT engine cannot make. The fallback to the DOM
+     * engine is reported to the error file.
+     */
+    @Test
+    public void testMainXsltFallback() throws IOException {
+        System.out.println("mainXsltFallback");
+        File paths = File.createTempFile("paths", ".txt");
+        paths.deleteOnExit();
+        Files.write(paths.toPath(), List.of("ID\t/a/@id | /b/@id"));
+        File data = File.createTempFile("data", ".txt");
+        data.deleteOnExit();
+        Files.write(data.toPath(), List.of("ID\t2"));
+        File document = File.createTempFile("document", ".xml");
+        document.deleteOnExit();
+        Files.write(document.toPath(), List.of("<a id=\"1\"/>"));
+        File errors = File.createTempFile("errors", ".txt");
+        errors.deleteOnExit();
+        String[] args = new String[]{"-p", paths.getPath(), "-r", data.getPath(), "-o", outputFile.getPath(), "-e", errors.getPath(), "--engine", "xslt", document.getPath()};
+        BulkXpathExecutor.main(args);
+        assertTrue(String.join("\n", Files.readAllLines(outputFile.toPath())).contains("id=\"2\""));
+        assertTrue(Files.readAllLines(errors.toPath()).get(0).startsWith("Using the DOM engine: "));
+    }
+
+    /**
+     * Test of main method with --parser offline, of class BulkXpathExecutor.
+     * The document with a DOCTYPE is reported and the next is still
+     * processed.
+     */
+    @Test
+    public void testMainOffline() throws IOException {
+        System.out.println("mainOffline");
+        File paths = File.createTempFile("paths", ".txt");
+        paths.deleteOnExit();
+        Files.write(paths.toPath(), List.of("ID\t/a/@id"));
+        File doctype = File.createTempFile("doctype", ".xml");
+        doctype.deleteOnExit();
+        Files.write(doctype.toPath(), List.of("<!DOCTYPE a SYSTEM \"http://192.0.2.1/a.dtd\"><a id=\"1\"/>"));
+        File plain = File.createTempFile("plain", ".xml");
+        plain.deleteOnExit();
+        Files.write(plain.toPath(), List.of("<a id=\"2\"/>"));
+        File errors = File.createTempFile("errors", ".txt");
+        errors.deleteOnExit();
+        String[] args = new String[]{"-p", paths.getPath(), "-o", outputFile.getPath(), "-e", errors.getPath(), "--parser", "offline", doctype.getPath(), plain.getPath()};
+        BulkXpathExecutor.main(args);
+        assertEquals(List.of("ID\t2"), Files.readAllLines(outputFile.toPath()));
+        String error = Files.readAllLines(errors.toPath()).get(0);
+        assertTrue(error.contains(doctype.getPath()) && error.contains("DOCTYPE"), error);
+    }
 }
@@ -0,0 +1,96 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class ByteRangeScannerTest {
+
+    private static final String XML = "<?xml version=\"1.0\"?>\n<a xmlns=\"urn:x\" xmlns:p=\"urn:p\" p:id='1'>\n  <b value=\"v&amp;w\"/><!-- c -->\n  <c>text</c><d>x<!-- y -->z</d><e>p<?q r?>s</e></a>\n";
+
+    public ByteRangeScannerTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() {
+    }
+
+    @AfterEach
+    public void tearDown() {
+    }
+
+    /**
+     * Test of scan method, of class ByteRangeScanner. Node numbering must be
+     * the same as CompactDocument's.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testScan() throws Exception {
+        System.out.println("scan");
+        CompactDocument cd = CompactDocument.parse(new StringReader(XML));
+        byte[] raw = XML.getBytes(StandardCharsets.UTF_8);
+        int[] targets = new int[cd.size()];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = i;
+        }
+        ByteRangeScanner instance = new ByteRangeScanner(raw);
+        assertTrue(instance.scan(targets));
+        assertEquals(cd.size(), instance.getNodeCount());
+        for (int i = 0; i < targets.length; i++) {
+            byte k = cd.getKind(i);
+            if (k != CompactDocument.ATTRIBUTE && k != CompactDocument.TEXT) {
+                continue;
+            }
+            String range = new String(raw, instance.getStart(i), instance.getEnd(i) - instance.getStart(i), StandardCharsets.UTF_8);
+            if (instance.isComplex(i)) {
+                assertEquals("x<!-- y -->z", range);
+                assertEquals("xz", cd.getNodeValue(i));
+            } else {
+                assertEquals(cd.getNodeValue(i), range.replace("&amp;", "&"));
+            }
+            assertEquals(k == CompactDocument.ATTRIBUTE, instance.getQuote(i) != 0);
+        }
+    }
+
+    /**
+     * Documents with a DOCTYPE are declined
+     */
+    @Test
+    public void testScanDoctype() {
+        System.out.println("scanDoctype");
+        byte[] raw = "<!DOCTYPE a [<!ENTITY e \"x\">]><a>&e;</a>".getBytes(StandardCharsets.UTF_8);
+        assertFalse(new ByteRangeScanner(raw).scan(new int[]{2}));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class ColumnarWriterTest {
+
+    private static final String TEST_ROOT = "src/test/resources/";
+    private OutputManager om = null;
+    private File binaryFile = null;
+
+    public ColumnarWriterTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() {
+        om = new OutputManager();
+        om.setInMemoryOutput();
+        binaryFile = new File(TEST_ROOT + "/columns.bxpc");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        binaryFile.delete();
+    }
+
+    private ArrayList<ArrayList<String>> row(String[]... cells) {
+        ArrayList<ArrayList<String>> r = new ArrayList<>();
+        for (String[] c : cells) {
+            r.add(new ArrayList<>(Arrays.asList(c)));
+        }
+        return r;
+    }
+
+    /**
+     * Test of writeRow method, of class ColumnarWriter.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testWriteRow() throws Exception {
+        System.out.println("writeRow");
+        ColumnarWriter instance = new ColumnarWriter(om, ColumnarWriter.CSV, new String[]{"A", "B"});
+        instance.writeRow("doc1", row(new String[]{"x", "y"}, new String[]{"a,b"}));
+        instance.writeRow("doc2", row(new String[]{}, new String[]{"say \"hi\""}));
+        instance.close();
+        assertEquals("document,A,B", om.getOutputs().get(0));
+        assertEquals("doc1,x|y,\"a,b\"", om.getOutputs().get(1));
+        assertEquals("doc2,,\"say \"\"hi\"\"\"", om.getOutputs().get(2));
+    }
+
+    /**
+     * Test of setMultiValue method, of class ColumnarWriter.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testSetMultiValue() throws Exception {
+        System.out.println("setMultiValue");
+        ColumnarWriter instance = new ColumnarWriter(om, ColumnarWriter.TSV, new String[]{"A", "B"});
+        instance.setMultiValue(ColumnarWriter.getMultiValue("last"), "|");
+        instance.writeRow("doc1", row(new String[]{"x", "y"}, new String[]{"a\tb"}));
+        assertEquals("doc1\ty\ta\\tb", om.getOutputs().get(1));
+    }
+
+    /**
+     * Test of setBinaryFile method, of class ColumnarWriter.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testSetBinaryFile() throws Exception {
+        System.out.println("setBinaryFile");
+        ColumnarWriter instance = new ColumnarWriter(om, ColumnarWriter.CSV, new String[]{"A"});
+        instance.setBinaryFile(binaryFile.getPath());
+        instance.writeRow("doc1", row(new String[]{"x"}));
+        instance.writeRow("doc2", row(new String[]{"x"}));
+        instance.close();
+        try (DataInputStream in = new DataInputStream(new FileInputStream(binaryFile))) {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            assertEquals(ColumnarBinaryWriter.MAGIC, new String(magic, "US-ASCII"));
+            assertEquals(ColumnarBinaryWriter.VERSION, in.readInt());
+            assertEquals(2, in.readInt());
+            in.skipBytes(in.readInt());
+            in.skipBytes(in.readInt());
+            assertEquals(2, in.readInt());
+            // document column: two distinct values
+            assertEquals(2, in.readInt());
+            in.skipBytes(in.readInt());
+            in.skipBytes(in.readInt());
+            assertEquals(0, in.readByte());
+            assertEquals(1, in.readByte());
+            // label column: one dictionary entry shared by both rows
+            assertEquals(1, in.readInt());
+            in.skipBytes(in.readInt());
+            assertEquals(0, in.readByte());
+            assertEquals(0, in.readByte());
+            assertEquals(0, in.readInt());
+        }
+    }
+}
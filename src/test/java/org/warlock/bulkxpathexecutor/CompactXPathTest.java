@@ -0,0 +1,208 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.FileReader;
+import java.io.StringReader;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import uk.nhs.digital.mait.commonutils.util.CfHNamespaceContext;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class CompactXPathTest {
+
+    private static final String TEST_ROOT = "src/test/resources/";
+    private static final String[] PATHS = new String[]{
+        "/",
+        "/fhir:Bundle[1]/fhir:entry[1]/fhir:resource[1]/fhir:Condition[1]/fhir:id[1]/@value",
+        "/fhir:Bundle/fhir:entry[3]/fhir:resource/fhir:Condition/fhir:id/@value",
+        "/fhir:Bundle[1]/fhir:entry[1]/fhir:resource[1]/fhir:Condition[1]",
+        "//fhir:reference/@value",
+        "//fhir:valueReference[1]/fhir:reference/@value",
+        "/fhir:Bundle/fhir:entry[2]//@value",
+        "/fhir:Bundle/fhir:meta/fhir:*",
+        "/fhir:Bundle/fhir:entry[1]/fhir:resource/fhir:Condition/text()",
+        "/fhir:Bundle/fhir:entry[99]/fhir:resource",
+        "/Bundle"
+    };
+
+    private NamespaceContext ns = null;
+    private Document dom = null;
+    private CompactDocument compact = null;
+
+    public CompactXPathTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        ns = CfHNamespaceContext.getXMLNamespaceContext();
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setIgnoringComments(true);
+        dbf.setNamespaceAware(true);
+        dom = dbf.newDocumentBuilder().parse(TEST_ROOT + "problems_resp.xml");
+        try (FileReader fr = new FileReader(TEST_ROOT + "problems_resp.xml")) {
+            compact = CompactDocument.parse(fr);
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+    }
+
+    /**
+     * Test of compile method, of class CompactXPath.
+     */
+    @Test
+    public void testCompile() {
+        System.out.println("compile");
+        assertNotNull(CompactXPath.compile("/fhir:Bundle[1]/fhir:entry[1]/@value", ns));
+        assertNull(CompactXPath.compile("fhir:Bundle", ns));
+        assertNull(CompactXPath.compile("/fhir:Bundle[@id='x']", ns));
+        assertNull(CompactXPath.compile("count(/fhir:Bundle)", ns));
+        assertNull(CompactXPath.compile("/fhir:Bundle/@value/fhir:x", ns));
+        assertNull(CompactXPath.compile("/fhir:Bundle/..", ns));
+        assertNull(CompactXPath.compile("/fhir:Bundle/node()", ns));
+        assertNull(CompactXPath.compile("/fhir:Bundle/@*", ns));
+        assertNull(CompactXPath.compile("/fhir:Bundle//@fhir:*", ns));
+    }
+
+    /**
+     * Test of evaluate method, of class CompactXPath. Results must be the same
+     * nodes, in the same order, as JAXP over a DOM.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testEvaluate() throws Exception {
+        System.out.println("evaluate");
+        for (String p : PATHS) {
+            XPath xp = XPathFactory.newInstance().newXPath();
+            xp.setNamespaceContext(ns);
+            NodeList nl = (NodeList) xp.compile(p).evaluate(dom, XPathConstants.NODESET);
+            CompactXPath cx = CompactXPath.compile(p, ns);
+            assertNotNull(cx);
+            int[] result = cx.evaluate(compact);
+            assertEquals(nl.getLength(), result.length, p);
+            for (int i = 0; i < result.length; i++) {
+                Node n = nl.item(i);
+                assertEquals(n.getNamespaceURI(), compact.getNamespaceURI(result[i]), p);
+                assertEquals(n.getNodeValue(), compact.getNodeValue(result[i]), p);
+            }
+        }
+    }
+
+    /**
+     * Test of evaluate method over text split by CDATA sections, comments and
+     * processing instructions. The text nodes and their values must be those
+     * JAXP gives over a DOM.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testEvaluateMixedText() throws Exception {
+        System.out.println("evaluateMixedText");
+        String[] docs = new String[]{
+            "<a>x<![CDATA[y]]>z</a>",
+            "<a>x<![CDATA[y]]>z<!--c-->w</a>",
+            "<a>x<?p q?>w</a>",
+            "<a>x<!--c-->w<!--d-->v</a>",
+            "<a><![CDATA[y]]>z<?p?><![CDATA[1]]><![CDATA[2]]><b/>t</a>"
+        };
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setIgnoringComments(true);
+        dbf.setNamespaceAware(true);
+        XPath xp = XPathFactory.newInstance().newXPath();
+        CompactXPath cx = CompactXPath.compile("/a/text()", ns);
+        for (String x : docs) {
+            Document d = dbf.newDocumentBuilder().parse(new InputSource(new StringReader(x)));
+            NodeList nl = (NodeList) xp.evaluate("/a/text()", d, XPathConstants.NODESET);
+            CompactDocument cd = CompactDocument.parse(new StringReader(x));
+            int[] result = cx.evaluate(cd);
+            assertEquals(nl.getLength(), result.length, x);
+            for (int i = 0; i < result.length; i++) {
+                assertEquals(nl.item(i).getNodeValue(), cd.getNodeValue(result[i]), x);
+            }
+        }
+    }
+
+    /**
+     * Test of compile and evaluate methods, of class CompactXPath, over a
+     * document with processing instructions. node() would match them, so it
+     * is left to the DOM, and text() gives the same nodes as JAXP.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testEvaluateProcessingInstruction() throws Exception {
+        System.out.println("evaluateProcessingInstruction");
+        String x = "<a><t>one<?pi x?>two</t><u>p<?q?>r</u><v><?q y?>z</v></a>";
+        assertNull(CompactXPath.compile("/a/*/node()", ns));
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setIgnoringComments(true);
+        dbf.setNamespaceAware(true);
+        Document d = dbf.newDocumentBuilder().parse(new InputSource(new StringReader(x)));
+        NodeList nl = (NodeList) XPathFactory.newInstance().newXPath().evaluate("/a/*/text()", d, XPathConstants.NODESET);
+        CompactDocument cd = CompactDocument.parse(new StringReader(x));
+        int[] result = CompactXPath.compile("/a/*/text()", ns).evaluate(cd);
+        assertEquals(5, result.length);
+        assertEquals(nl.getLength(), result.length);
+        for (int i = 0; i < result.length; i++) {
+            assertEquals(nl.item(i).getNodeValue(), cd.getNodeValue(result[i]));
+        }
+    }
+
+    /**
+     * Test of evaluate method with a limit, of class CompactXPath. The lazy
+     * evaluation must give the first matches of the full evaluation.
+     */
+    @Test
+    public void testEvaluateLimit() {
+        System.out.println("evaluateLimit");
+        String[] paths = new String[]{"//*", "//fhir:*//fhir:*/@value", "//fhir:entry//fhir:reference", "//fhir:entry[2]//@value", "//fhir:*[1]/@value"};
+        for (String p : paths) {
+            CompactXPath cx = CompactXPath.compile(p, ns);
+            int[] all = cx.evaluate(compact);
+            assertTrue(all.length > 3, p);
+            for (int limit : new int[]{1, 3, all.length, all.length + 1}) {
+                int[] result = cx.evaluate(compact, limit);
+                assertArrayEquals(java.util.Arrays.copyOf(all, Math.min(limit, all.length)), result, p);
+            }
+            assertArrayEquals(all, cx.evaluate(compact, 0), p);
+        }
+        assertEquals(0, CompactXPath.compile("/Bundle", ns).evaluate(compact, 1).length);
+    }
+}
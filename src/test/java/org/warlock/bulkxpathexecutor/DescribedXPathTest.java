@@ -25,6 +25,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
+import uk.nhs.digital.mait.commonutils.util.CfHNamespaceContext;
 
 /**
  *
@@ -80,4 +81,21 @@ public class DescribedXPathTest {
         assertEquals(expResult, result);
     }
 
+    /**
+     * Test of lazy compilation, of class DescribedXPath. The xpath is only
+     * compiled when it is first used, and then only once.
+     * @throws javax.xml.xpath.XPathExpressionException
+     */
+    @Test
+    public void testLazyCompile() throws XPathExpressionException {
+        System.out.println("lazyCompile");
+        DescribedXPath lazy = new DescribedXPath("/fhir:Bundle/fhir:id/@value", CfHNamespaceContext.getXMLNamespaceContext());
+        assertNotNull(lazy.getCompactPath());
+        XPathExpression result = lazy.getExpression();
+        assertNotNull(result);
+        assertSame(result, lazy.getExpression());
+        DescribedXPath bad = new DescribedXPath("/fhir:Bundle[", CfHNamespaceContext.getXMLNamespaceContext());
+        assertNull(bad.getCompactPath());
+        assertThrows(XPathExpressionException.class, () -> bad.getExpression());
+    }
 }
@@ -0,0 +1,143 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class DocumentSchedulerTest {
+
+    private static final String TEST_ROOT = "src/test/resources/";
+    private static final String LARGE = TEST_ROOT + "problems_resp.xml";
+    private static final String SMALL = TEST_ROOT + "data.txt";
+
+    public DocumentSchedulerTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() {
+    }
+
+    @AfterEach
+    public void tearDown() {
+    }
+
+    /**
+     * Test of parseSize method, of class DocumentScheduler.
+     */
+    @Test
+    public void testParseSize() {
+        System.out.println("parseSize");
+        assertEquals(100L, DocumentScheduler.parseSize("100"));
+        assertEquals(512L * 1024 * 1024, DocumentScheduler.parseSize("512m"));
+        assertEquals(2L * 1024 * 1024 * 1024, DocumentScheduler.parseSize("2G"));
+    }
+
+    /**
+     * Test of run method, of class DocumentScheduler. Results come back in
+     * document order and a document over the budget runs on its own.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testRun() throws Exception {
+        System.out.println("run");
+        long budget = (long) (new File(SMALL).length() * DocumentScheduler.DEFAULT_RATIO * 3);
+        DocumentScheduler instance = new DocumentScheduler(budget, 4);
+        assertTrue(instance.estimate(LARGE) > budget);
+        ArrayList<String> documents = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            documents.add(SMALL);
+            if (i == 2) {
+                documents.add(LARGE);
+            }
+        }
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger count = new AtomicInteger();
+        AtomicInteger largeOverlap = new AtomicInteger();
+        OutputManager om = new OutputManager();
+        om.setInMemoryOutput();
+        om.setInMemoryError();
+        instance.run(documents, om, (document, r) -> {
+            int a = active.incrementAndGet();
+            int n = count.getAndIncrement();
+            if (document.equals(LARGE) && a != 1) {
+                largeOverlap.incrementAndGet();
+            }
+            // later documents finish first
+            Thread.sleep(50 - n * 5);
+            r.output(document);
+            active.decrementAndGet();
+        });
+        assertEquals(documents, om.getOutputs());
+        assertEquals(0, largeOverlap.get());
+    }
+
+    /**
+     * Test of run method, of class DocumentScheduler, with a document that
+     * fails. The failure stops the run after the documents before it, unless
+     * failures are recorded.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testRunFailure() throws Exception {
+        System.out.println("runFailure");
+        ArrayList<String> documents = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            documents.add("missing" + i + ".xml");
+        }
+        DocumentScheduler.Task task = (document, r) -> {
+            if (document.equals("missing2.xml")) {
+                throw new Exception("bad document", new Exception("not well formed"));
+            }
+            r.output(document);
+        };
+        DocumentScheduler instance = new DocumentScheduler(1024 * 1024, 4);
+        OutputManager om = new OutputManager();
+        om.setInMemoryOutput();
+        om.setInMemoryError();
+        Exception e = assertThrows(Exception.class, () -> instance.run(documents, om, task));
+        assertEquals("bad document", e.getMessage());
+        assertEquals(documents.subList(0, 2), om.getOutputs());
+
+        instance.setRecordFailures(true);
+        OutputManager recorded = new OutputManager();
+        recorded.setInMemoryOutput();
+        recorded.setInMemoryError();
+        instance.run(documents, recorded, task);
+        assertEquals(5, recorded.getOutputs().size());
+        assertEquals(1, recorded.getErrors().size());
+        assertTrue(recorded.getErrors().get(0).contains("java.lang.Exception: not well formed"));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class ErrorCollectorTest {
+
+    private ErrorCollector instance = null;
+
+    public ErrorCollectorTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() {
+        instance = new ErrorCollector(3);
+    }
+
+    @AfterEach
+    public void tearDown() {
+    }
+
+    private static ErrorCollector.Record reference(String document, String label) {
+        return new ErrorCollector.Record(document, ErrorCollector.UNDEFINED_REFERENCE, label, "/a/@value", null, "$X");
+    }
+
+    /**
+     * Test of add method, of class ErrorCollector. Errors are counted by kind
+     * and repeats of a warning are counted against it
+     */
+    @Test
+    public void testAdd() {
+        System.out.println("add");
+        for (int i = 0; i < 5; i++) {
+            instance.add(reference("doc" + i, "A"));
+        }
+        instance.add(reference("doc5", "B"));
+        instance.add(new ErrorCollector.Record("doc6", ErrorCollector.MALFORMED_DATE, "D", "/d/@value", "value", "x"));
+        assertEquals(7, instance.getCount());
+        assertEquals(6, instance.getCount(ErrorCollector.UNDEFINED_REFERENCE));
+        assertEquals(1, instance.getCount(ErrorCollector.MALFORMED_DATE));
+        ArrayList<String> summary = instance.summary();
+        assertEquals("Errors\t7", summary.get(0));
+        assertTrue(summary.contains("Distinct\t3"));
+        assertTrue(summary.contains("5\tWARNING: Ignoring substitution. Label A references another: $X which is not defined."));
+    }
+
+    /**
+     * Test of getSamples method, of class ErrorCollector. Only the most
+     * recent errors are kept
+     */
+    @Test
+    public void testGetSamples() {
+        System.out.println("getSamples");
+        for (int i = 0; i < 5; i++) {
+            instance.add(reference("doc" + i, "A"));
+        }
+        ArrayList<ErrorCollector.Record> result = instance.getSamples();
+        assertEquals(3, result.size());
+        assertEquals("doc2", result.get(0).getDocument());
+        assertEquals("doc4", result.get(2).getDocument());
+    }
+
+    /**
+     * Test of add method, of class ErrorCollector, from several threads
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testConcurrentAdd() throws Exception {
+        System.out.println("concurrentAdd");
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            exec.submit(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    instance.add(reference("doc", "A"));
+                }
+            });
+        }
+        exec.shutdown();
+        assertTrue(exec.awaitTermination(1, TimeUnit.MINUTES));
+        assertEquals(40000, instance.getCount());
+        assertTrue(instance.summary().contains("40000\tWARNING: Ignoring substitution. Label A references another: $X which is not defined."));
+    }
+
+    /**
+     * Test of message method, of class ErrorCollector
+     */
+    @Test
+    public void testMessage() {
+        System.out.println("message");
+        assertEquals("Failed to delete value no parent ", ErrorCollector.message(ErrorCollector.DELETE_NO_PARENT, null, "L", "/a/@value", "value", null));
+        assertEquals("Failed processing a.xml: boom", ErrorCollector.message(ErrorCollector.DOCUMENT_FAILED, "a.xml", null, null, null, "boom"));
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class FramedStreamTest {
+
+    public FramedStreamTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() {
+    }
+
+    @AfterEach
+    public void tearDown() {
+    }
+
+    private static FramedStream reader(int format, String s) {
+        return new FramedStream(format, new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)), new ByteArrayOutputStream());
+    }
+
+    private static String read(FramedStream instance)
+            throws Exception {
+        byte[] b = instance.read();
+        return (b == null) ? null : new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Test of read method, of class FramedStream, with length frames.
+     */
+    @Test
+    public void testReadLength()
+            throws Exception {
+        System.out.println("readLength");
+        FramedStream instance = reader(FramedStream.LENGTH, "4\n<a/>\n\r\n4\n\n\r\n0\n\n5\r\n<b\n/>");
+        assertEquals("<a/>", read(instance));
+        assertEquals("\n\r\n0", read(instance));
+        assertEquals("<b\n/>", read(instance));
+        assertNull(read(instance));
+    }
+
+    /**
+     * Test of read method, of class FramedStream, with a bad length and a
+     * truncated frame.
+     */
+    @Test
+    public void testReadLengthInvalid()
+            throws Exception {
+        System.out.println("readLengthInvalid");
+        assertThrows(IOException.class, () -> reader(FramedStream.LENGTH, "<a/>").read());
+        assertThrows(IOException.class, () -> reader(FramedStream.LENGTH, "10\n<a/>").read());
+        assertThrows(IOException.class, () -> reader(FramedStream.LENGTH, "12").read());
+        FramedStream instance = reader(FramedStream.LENGTH, "0\n\n");
+        assertEquals("", read(instance));
+        assertNull(read(instance));
+    }
+
+    /**
+     * Test of read method, of class FramedStream, with NUL frames.
+     */
+    @Test
+    public void testReadNul()
+            throws Exception {
+        System.out.println("readNul");
+        FramedStream instance = reader(FramedStream.NUL, "<a/>\u0000<b>\u00e9</b>\u0000<c/>\n");
+        assertEquals("<a/>", read(instance));
+        assertEquals("<b>\u00e9</b>", read(instance));
+        assertEquals("<c/>\n", read(instance));
+        assertNull(read(instance));
+        instance = reader(FramedStream.NUL, "<a/>\u0000\n");
+        assertEquals("<a/>", read(instance));
+        assertNull(read(instance));
+    }
+
+    /**
+     * Test of setMaxSize method, of class FramedStream. A frame over the
+     * limit is read as empty, with its size, and the next frame is read in
+     * step, in both formats.
+     */
+    @Test
+    public void testSetMaxSize()
+            throws Exception {
+        System.out.println("setMaxSize");
+        FramedStream instance = reader(FramedStream.LENGTH, "4\n<a/>\n6\n<bcd/>\n4\n<e/>");
+        instance.setMaxSize(5);
+        assertEquals("<a/>", read(instance));
+        assertEquals("", read(instance));
+        assertEquals(6, instance.getLastSize());
+        assertEquals("<e/>", read(instance));
+        assertNull(read(instance));
+        FramedStream truncated = reader(FramedStream.LENGTH, "9999999999\n<bcd/>");
+        truncated.setMaxSize(5);
+        assertThrows(IOException.class, () -> truncated.read());
+        FramedStream nul = reader(FramedStream.NUL, "<a/>\u0000<bcd/>\u0000<e/>\u0000<fgh/>");
+        nul.setMaxSize(5);
+        assertEquals("<a/>", read(nul));
+        assertEquals("", read(nul));
+        assertEquals(6, nul.getLastSize());
+        assertEquals("<e/>", read(nul));
+        assertEquals("", read(nul));
+        assertEquals(6, nul.getLastSize());
+        assertNull(read(nul));
+    }
+
+    /**
+     * Test of write method, of class FramedStream.
+     */
+    @Test
+    public void testWrite()
+            throws Exception {
+        System.out.println("write");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FramedStream instance = new FramedStream(FramedStream.LENGTH, null, out);
+        instance.write("\u00e9\n".getBytes(StandardCharsets.UTF_8));
+        instance.write(new byte[0]);
+        assertEquals("3\n\u00e9\n0\n", out.toString(StandardCharsets.UTF_8));
+        out.reset();
+        instance = new FramedStream(FramedStream.NUL, null, out);
+        instance.write("a".getBytes(StandardCharsets.UTF_8));
+        instance.write(new byte[0]);
+        assertEquals("a\u0000\u0000", out.toString(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Test of getFormat method, of class FramedStream.
+     */
+    @Test
+    public void testGetFormat()
+            throws Exception {
+        System.out.println("getFormat");
+        assertEquals(FramedStream.LENGTH, FramedStream.getFormat("length"));
+        assertEquals(FramedStream.NUL, FramedStream.getFormat("nul"));
+        assertThrows(Exception.class, () -> FramedStream.getFormat("http"));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class HyperLogLogTest {
+
+    public HyperLogLogTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() {
+    }
+
+    @AfterEach
+    public void tearDown() {
+    }
+
+    /**
+     * Test of estimate method, of class HyperLogLog.
+     */
+    @Test
+    public void testEstimate() {
+        System.out.println("estimate");
+        HyperLogLog instance = new HyperLogLog();
+        assertEquals(0, instance.estimate());
+        for (int i = 0; i < 100; i++) {
+            instance.add("value" + (i % 10));
+        }
+        assertEquals(10, instance.estimate());
+        for (int i = 0; i < 100000; i++) {
+            instance.add("value" + i);
+        }
+        assertEquals(100000, instance.estimate(), 5000);
+    }
+
+    /**
+     * Test of merge method, of class HyperLogLog. Merged sketches estimate
+     * the union.
+     */
+    @Test
+    public void testMerge() {
+        System.out.println("merge");
+        HyperLogLog a = new HyperLogLog();
+        HyperLogLog b = new HyperLogLog();
+        HyperLogLog all = new HyperLogLog();
+        for (int i = 0; i < 20000; i++) {
+            String v = Integer.toString(i);
+            all.add(v);
+            if (i < 15000) {
+                a.add(v);
+            }
+            if (i >= 5000) {
+                b.add(v);
+            }
+        }
+        a.merge(b);
+        assertEquals(all.estimate(), a.estimate());
+    }
+}
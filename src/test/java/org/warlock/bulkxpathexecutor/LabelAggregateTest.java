@@ -0,0 +1,81 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class LabelAggregateTest {
+
+    public LabelAggregateTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() {
+    }
+
+    @AfterEach
+    public void tearDown() {
+    }
+
+    /**
+     * Test of add and merge methods, of class LabelAggregate.
+     */
+    @Test
+    public void testMerge() {
+        System.out.println("merge");
+        LabelAggregate a = new LabelAggregate(2);
+        LabelAggregate b = new LabelAggregate(2);
+        a.add(Arrays.asList("2019-01-02", "2019-03-04", null));
+        a.add(Arrays.asList());
+        b.add(Arrays.asList("2018-12-31", "2019-03-04"));
+        a.merge(b);
+        assertEquals(2, a.getDocuments());
+        assertEquals(5, a.getMatches());
+        assertEquals(3, a.getDistinct());
+        assertEquals("2018-12-31", a.getMin());
+        assertEquals("2019-03-04", a.getMax());
+    }
+
+    /**
+     * Test of report method, of class LabelAggregate.
+     */
+    @Test
+    public void testReport() {
+        System.out.println("report");
+        LabelAggregate instance = new LabelAggregate(2);
+        instance.add(Arrays.asList("x", "y", "x"));
+        instance.add(Arrays.asList("z"));
+        assertEquals("L\tdocuments=2\tmatches=4\tdistinct=3\tmin=x\tmax=z\ttop=x=2|y=1", instance.report("L"));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.util.ArrayList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class LatencyHistogramTest {
+
+    private LatencyHistogram instance = null;
+
+    public LatencyHistogramTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() {
+        instance = new LatencyHistogram();
+    }
+
+    @AfterEach
+    public void tearDown() {
+    }
+
+    /**
+     * Test of record method, of class LatencyHistogram.
+     */
+    @Test
+    public void testRecord() {
+        System.out.println("record");
+        instance.record(5);
+        instance.record(1000);
+        instance.record(-3);
+        assertEquals(3, instance.getCount());
+        assertEquals(1000, instance.getMax());
+        assertEquals(335.0, instance.getMean(), 0.001);
+    }
+
+    /**
+     * Test of getPercentile method, of class LatencyHistogram. Each value is
+     * placed within 12.5%
+     */
+    @Test
+    public void testGetPercentile() {
+        System.out.println("getPercentile");
+        assertEquals(0, instance.getPercentile(50));
+        for (int i = 1; i <= 10000; i++) {
+            instance.record(i);
+        }
+        long p50 = instance.getPercentile(50);
+        assertTrue(p50 >= 5000 && p50 <= 5000 * 1.125, Long.toString(p50));
+        long p99 = instance.getPercentile(99);
+        assertTrue(p99 >= 9900 && p99 <= 10000, Long.toString(p99));
+        assertEquals(10000, instance.getPercentile(100));
+    }
+
+    /**
+     * Test of buckets method, of class LatencyHistogram. Small values are
+     * exact and every value falls in the bucket reported for it
+     */
+    @Test
+    public void testBuckets() {
+        System.out.println("buckets");
+        instance.record(3);
+        instance.record(3);
+        instance.record(100);
+        ArrayList<String> result = instance.buckets();
+        assertEquals(2, result.size());
+        assertEquals("3\t3\t2", result.get(0));
+        assertEquals("96\t103\t1", result.get(1));
+        for (long v : new long[]{8, 15, 16, 1023, 1024, 123456789, Long.MAX_VALUE}) {
+            int i = LatencyHistogram.index(v);
+            assertTrue(LatencyHistogram.lower(i) <= v, Long.toString(v));
+            assertTrue(LatencyHistogram.upper(i) - 1 >= v, Long.toString(v));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class LoadTestTest {
+
+    public LoadTestTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() {
+    }
+
+    @AfterEach
+    public void tearDown() {
+    }
+
+    /**
+     * Test of the LoadTest constructor. The value given to --memory-budget is
+     * passed to the pipeline and is not taken for a document.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testLoadTestMemoryBudget() throws Exception {
+        System.out.println("LoadTestMemoryBudget");
+        LoadTest instance = new LoadTest(new String[]{"--memory-budget", "2g", "a.xml"});
+        assertEquals(List.of("a.xml"), instance.getDocuments());
+    }
+
+    /**
+     * Test of the LoadTest constructor. The value given to --top is passed to
+     * the pipeline and is not taken for a document.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testLoadTestTop() throws Exception {
+        System.out.println("LoadTestTop");
+        LoadTest instance = new LoadTest(new String[]{"--aggregate", "--top", "5", "a.xml"});
+        assertEquals(List.of("a.xml"), instance.getDocuments());
+    }
+
+    /**
+     * Test of the LoadTest constructor. The manifest given to --profiles is
+     * passed to the pipeline and is not taken for a document.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testLoadTestProfiles() throws Exception {
+        System.out.println("LoadTestProfiles");
+        LoadTest instance = new LoadTest(new String[]{"--profiles", "manifest.txt", "a.xml"});
+        assertEquals(List.of("a.xml"), instance.getDocuments());
+    }
+
+    /**
+     * Test of the LoadTest constructor. The value given to --error-samples is
+     * passed to the pipeline and is not taken for a document.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testLoadTestErrorSamples() throws Exception {
+        System.out.println("LoadTestErrorSamples");
+        LoadTest instance = new LoadTest(new String[]{"--error-summary", "--error-samples", "10", "a.xml"});
+        assertEquals(List.of("a.xml"), instance.getDocuments());
+    }
+
+    /**
+     * Test of compare method, of class LoadTest.
+     */
+    @Test
+    public void testCompare() {
+        System.out.println("compare");
+        Properties base = new Properties();
+        base.setProperty(LoadTest.DOCS_PER_SECOND, "100");
+        base.setProperty(LoadTest.MB_PER_SECOND, "10");
+        base.setProperty(LoadTest.PEAK_RSS, "100000");
+        Properties result = new Properties();
+        result.setProperty(LoadTest.DOCS_PER_SECOND, "95");
+        result.setProperty(LoadTest.MB_PER_SECOND, "9.5");
+        result.setProperty(LoadTest.PEAK_RSS, "105000");
+        assertTrue(LoadTest.compare(base, result, 10).isEmpty());
+        result.setProperty(LoadTest.DOCS_PER_SECOND, "80");
+        result.setProperty(LoadTest.PEAK_RSS, "120000");
+        ArrayList<String> regressions = LoadTest.compare(base, result, 10);
+        assertEquals(2, regressions.size());
+        // an unmeasured peak RSS is not a regression
+        result.setProperty(LoadTest.PEAK_RSS, "0");
+        assertEquals(1, LoadTest.compare(base, result, 10).size());
+    }
+
+    /**
+     * Test of generate method, of class LoadTest. The corpus is well formed
+     * and has the requested shape.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testGenerate() throws Exception {
+        System.out.println("generate");
+        File dir = Files.createTempDirectory("bxpcorpus").toFile();
+        try {
+            ArrayList<String> docs = LoadTest.generate(dir, 3, 4);
+            assertEquals(3, docs.size());
+            String xml = new String(Files.readAllBytes(new File(docs.get(2)).toPath()), "UTF-8");
+            CompactDocument cd = CompactDocument.parse(new StringReader(xml));
+            int count = 0;
+            for (int i = 0; i < cd.size(); i++) {
+                if (cd.getKind(i) == CompactDocument.ELEMENT && cd.getLocalName(i).equals("entry")) {
+                    count++;
+                }
+            }
+            assertEquals(4, count);
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
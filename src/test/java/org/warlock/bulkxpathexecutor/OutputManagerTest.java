@@ -15,6 +15,8 @@
  */
 package org.warlock.bulkxpathexecutor;
 
+import java.io.File;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.AfterAll;
@@ -204,4 +206,80 @@ public class OutputManagerTest {
         assertEquals(expResult, result);
     }
 
+    /**
+     * Test of outputUnmodified method, of class OutputManager.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testOutputUnmodified() throws Exception {
+        System.out.println("outputUnmodified");
+        String source = "src/test/resources/problems_resp.xml";
+        byte[] content = Files.readAllBytes(new File(source).toPath());
+        File f = new File("src/test/resources/unmodified.xml");
+        instance.setOutputFile(f.getPath());
+        instance.outputUnmodified(source, content);
+        instance.close();
+        byte[] result = Files.readAllBytes(f.toPath());
+        f.delete();
+        assertEquals(content.length + System.lineSeparator().length(), result.length);
+        assertEquals(new String(content, "UTF-8"), new String(result, 0, content.length, "UTF-8"));
+    }
+
+    /**
+     * Test of moveFiles method, of class OutputManager. The files written
+     * under a temporary path are renamed, or deleted, and errors still name
+     * the document.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testMoveFiles() throws Exception {
+        System.out.println("moveFiles");
+        File dir = Files.createTempDirectory("bxpmove").toFile();
+        instance.setOutputExtension(".out");
+        instance.setErrorExtension(".err");
+        instance.setPrependFilenameToError(true);
+        String partial = new File(dir, ".a.xml.part").getPath();
+        String done = new File(dir, "a.xml").getPath();
+        instance.setCurrentFile("a.xml", partial);
+        instance.output("result");
+        instance.error("problem");
+        instance.closeCurrentFile();
+        instance.moveFiles(partial, null, done);
+        assertFalse(new File(partial + ".out").exists());
+        assertFalse(new File(partial + ".err").exists());
+        assertFalse(new File(done + ".out").exists());
+        assertEquals("a.xml", Files.readAllLines(new File(done + ".err").toPath()).get(0));
+        instance.setCurrentFile("a.xml", partial);
+        instance.output("result");
+        instance.closeCurrentFile();
+        instance.moveFiles(partial, done, done);
+        assertEquals("result", Files.readAllLines(new File(done + ".out").toPath()).get(0));
+        assertTrue(new File(done + ".err").length() == 0);
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Test of setErrorCollector method, of class OutputManager. Structured
+     * errors are written as before without a collector, and only collected
+     * with one
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testSetErrorCollector() throws Exception {
+        System.out.println("setErrorCollector");
+        instance.setInMemoryError();
+        instance.error(ErrorCollector.MALFORMED_DATE, "D1", "/a/@value", "value", "2019-13");
+        assertEquals("Failed to parse malformed date string 2019-13 at node value", instance.getErrors().get(0));
+        ErrorCollector c = new ErrorCollector(10);
+        instance.setErrorCollector(c);
+        instance.error(ErrorCollector.MALFORMED_DATE, "D1", "/a/@value", "value", "2019-14");
+        instance.error("other");
+        assertEquals(1, instance.getErrors().size());
+        assertEquals(2, c.getCount());
+        instance.writeErrorSummary();
+        assertEquals("Errors\t2", instance.getErrors().get(1));
+    }
 }
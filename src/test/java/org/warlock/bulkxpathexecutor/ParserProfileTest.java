@@ -0,0 +1,175 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class ParserProfileTest {
+
+    // an external DTD at an address that is never reached
+    private static final String EXTERNAL = "<!DOCTYPE a SYSTEM \"http://192.0.2.1/a.dtd\"><a>x</a>";
+    private static final String INTERNAL = "<!DOCTYPE a [<!ENTITY e \"hi\">]><a>&e;</a>";
+    private static String laughs = null;
+
+    private ParserProfile instance = null;
+
+    public ParserProfileTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+        StringBuilder sb = new StringBuilder("<!DOCTYPE l [<!ENTITY l0 \"lol\">");
+        for (int i = 1; i < 10; i++) {
+            sb.append("<!ENTITY l").append(i).append(" \"");
+            for (int j = 0; j < 10; j++) {
+                sb.append("&l").append(i - 1).append(";");
+            }
+            sb.append("\">");
+        }
+        laughs = sb.append("]><l>&l9;</l>").toString();
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() {
+        instance = new ParserProfile(true);
+    }
+
+    @AfterEach
+    public void tearDown() {
+    }
+
+    private static Document parse(ParserProfile p, String xml)
+            throws Exception {
+        return p.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+    }
+
+    private static String nested(int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            sb.append("<a>");
+        }
+        for (int i = 0; i < depth; i++) {
+            sb.append("</a>");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Test of newDocumentBuilder method, of class ParserProfile.
+     */
+    @Test
+    public void testNewDocumentBuilder()
+            throws Exception {
+        System.out.println("newDocumentBuilder");
+        assertThrows(Exception.class, () -> parse(instance, EXTERNAL));
+        assertThrows(Exception.class, () -> parse(instance, INTERNAL));
+        assertEquals("x", parse(instance, "<a>x</a>").getDocumentElement().getTextContent());
+        instance.setDoctype(ParserProfile.IGNORE);
+        assertEquals("x", parse(instance, EXTERNAL).getDocumentElement().getTextContent());
+        assertEquals("hi", parse(instance, INTERNAL).getDocumentElement().getTextContent());
+        assertThrows(Exception.class, () -> parse(instance, laughs));
+    }
+
+    /**
+     * Test of setMaxDepth method, of class ParserProfile.
+     */
+    @Test
+    public void testSetMaxDepth()
+            throws Exception {
+        System.out.println("setMaxDepth");
+        instance.setMaxDepth(10);
+        assertNotNull(parse(instance, nested(10)));
+        assertThrows(Exception.class, () -> parse(instance, nested(11)));
+        assertNotNull(CompactDocument.parse(new StringReader(nested(10)), instance));
+        assertThrows(Exception.class, () -> CompactDocument.parse(new StringReader(nested(11)), instance));
+    }
+
+    /**
+     * Test of newXMLInputFactory method, of class ParserProfile, through
+     * CompactDocument.
+     */
+    @Test
+    public void testNewXMLInputFactory()
+            throws Exception {
+        System.out.println("newXMLInputFactory");
+        Exception e = assertThrows(Exception.class, () -> CompactDocument.parse(new StringReader(EXTERNAL), instance));
+        assertTrue(e.getMessage().contains("DOCTYPE"));
+        instance.setDoctype(ParserProfile.IGNORE);
+        assertNotNull(CompactDocument.parse(new StringReader(EXTERNAL), instance));
+        assertNotNull(CompactDocument.parse(new StringReader(INTERNAL), instance));
+        assertThrows(Exception.class, () -> CompactDocument.parse(new StringReader(laughs), instance));
+    }
+
+    /**
+     * Test of newSource method, of class ParserProfile.
+     */
+    @Test
+    public void testNewSource()
+            throws Exception {
+        System.out.println("newSource");
+        TransformerFactory tf = TransformerFactory.newInstance();
+        StringWriter w = new StringWriter();
+        tf.newTransformer().transform(instance.newSource("<a>x</a>".getBytes(StandardCharsets.UTF_8), "-"), new StreamResult(w));
+        assertTrue(w.toString().endsWith("<a>x</a>"));
+        assertThrows(Exception.class, ()
+                -> tf.newTransformer().transform(instance.newSource(EXTERNAL.getBytes(StandardCharsets.UTF_8), "-"), new StreamResult(new StringWriter())));
+    }
+
+    /**
+     * Test of checkSize method, of class ParserProfile.
+     */
+    @Test
+    public void testCheckSize()
+            throws Exception {
+        System.out.println("checkSize");
+        instance.checkSize("a.xml", 1L << 40);
+        instance.setMaxDocumentSize(100);
+        instance.checkSize("a.xml", 100);
+        Exception e = assertThrows(Exception.class, () -> instance.checkSize("a.xml", 101));
+        assertTrue(e.getMessage().startsWith("a.xml is 101 bytes"));
+        ParserProfile.DEFAULT.checkSize("a.xml", 1L << 40);
+    }
+
+    /**
+     * Test of describe method, of class ParserProfile.
+     */
+    @Test
+    public void testDescribe() {
+        System.out.println("describe");
+        Exception e = new Exception("outer", new IllegalStateException("inner"));
+        assertEquals("java.lang.IllegalStateException: inner", ParserProfile.describe(e));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class ProfileSnapshotTest {
+
+    private File paths = null;
+    private File snapshot = null;
+
+    public ProfileSnapshotTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp()
+            throws Exception {
+        paths = File.createTempFile("paths", ".txt");
+        Files.write(paths.toPath(), List.of("A\t/fhir:Bundle/fhir:id/@value"));
+        snapshot = File.createTempFile("profile", ".snap");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        paths.delete();
+        snapshot.delete();
+    }
+
+    private ProfileSnapshot makeSnapshot()
+            throws Exception {
+        ProfileSnapshot instance = new ProfileSnapshot();
+        instance.addSource(paths.getPath());
+        instance.add(new ProfileSnapshot.Entry("A", "/fhir:Bundle/fhir:id/@value", 0, false, ProfileSnapshot.COMPACT));
+        instance.add(new ProfileSnapshot.Entry("B", "//fhir:id[@value]", 1, true, ProfileSnapshot.DOM));
+        LinkedHashMap<String, ArrayList<String>> data = new LinkedHashMap<>();
+        data.put("A", new ArrayList<>(Arrays.asList("x", "$UUID", "xmlfragment:<a>\u00e9</a>")));
+        instance.setData(data);
+        return instance;
+    }
+
+    /**
+     * Test of write and read methods, of class ProfileSnapshot.
+     */
+    @Test
+    public void testRead()
+            throws Exception {
+        System.out.println("read");
+        makeSnapshot().write(snapshot.getPath());
+        ProfileSnapshot result = ProfileSnapshot.read(snapshot.getPath());
+        assertEquals(1, result.getSources().size());
+        assertEquals(2, result.getEntries().size());
+        ProfileSnapshot.Entry b = result.getEntries().get(1);
+        assertEquals("B", b.getLabel());
+        assertEquals("//fhir:id[@value]", b.getXpath());
+        assertEquals(1, b.getLimit());
+        assertTrue(b.isExists());
+        assertEquals(ProfileSnapshot.DOM, b.getKind());
+        assertEquals(Arrays.asList("x", "$UUID", "xmlfragment:<a>\u00e9</a>"), result.getData().get("A"));
+        result.checkSources();
+
+        ProfileSnapshot extraction = new ProfileSnapshot();
+        extraction.write(snapshot.getPath());
+        assertNull(ProfileSnapshot.read(snapshot.getPath()).getData());
+    }
+
+    /**
+     * Test of read method, of class ProfileSnapshot. A damaged snapshot is
+     * rejected.
+     */
+    @Test
+    public void testReadCorrupt()
+            throws Exception {
+        System.out.println("readCorrupt");
+        makeSnapshot().write(snapshot.getPath());
+        try (RandomAccessFile f = new RandomAccessFile(snapshot, "rw")) {
+            f.seek(f.length() - 12);
+            f.write(0);
+        }
+        Exception e = assertThrows(Exception.class, () -> ProfileSnapshot.read(snapshot.getPath()));
+        assertTrue(e.getMessage().endsWith("is corrupt"));
+    }
+
+    /**
+     * Test of checkSources method, of class ProfileSnapshot.
+     */
+    @Test
+    public void testCheckSources()
+            throws Exception {
+        System.out.println("checkSources");
+        makeSnapshot().write(snapshot.getPath());
+        ProfileSnapshot result = ProfileSnapshot.read(snapshot.getPath());
+        Files.write(paths.toPath(), List.of("A\t/fhir:Bundle/fhir:id/@other"));
+        Exception e = assertThrows(Exception.class, () -> result.checkSources());
+        assertTrue(e.getMessage().startsWith("Snapshot is out of date"));
+        paths.delete();
+        result.checkSources();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class ProgressReporterTest {
+
+    private ProgressReporter instance = null;
+
+    public ProgressReporterTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() {
+        instance = new ProgressReporter(4, 4000, 60000);
+    }
+
+    @AfterEach
+    public void tearDown() {
+    }
+
+    /**
+     * Test of status method, of class ProgressReporter.
+     */
+    @Test
+    public void testStatus() {
+        System.out.println("status");
+        instance.start();
+        instance.documentDone("a.xml", 1000, 2000000);
+        String result = instance.status();
+        assertTrue(result.startsWith("Progress\t1/4 documents\t3 remaining\t"), result);
+        assertTrue(result.contains("\tETA "), result);
+        instance.documentDone("b.xml", 1000, 1000000);
+        instance.documentDone("c.xml", 1000, 1000000);
+        instance.documentDone("d.xml", 1000, 1000000);
+        assertTrue(instance.status().endsWith("\tETA 00:00:00"));
+    }
+
+    /**
+     * Test of latencyReport method, of class ProgressReporter. The slowest
+     * documents are listed, slowest first
+     */
+    @Test
+    public void testLatencyReport() {
+        System.out.println("latencyReport");
+        instance.documentDone("a.xml", 1000, 2000000);
+        instance.documentDone("b.xml", 1000, 5000000);
+        ArrayList<String> result = instance.latencyReport();
+        assertEquals("Latency\t2 documents\tmean 3.500 ms", result.get(0));
+        assertTrue(result.get(1).startsWith("Percentiles\tp50 "));
+        assertTrue(result.get(1).endsWith("\tmax 5.000 ms"));
+        assertEquals("Slow\t5.000 ms\tb.xml", result.get(2));
+        assertEquals("Slow\t2.000 ms\ta.xml", result.get(3));
+    }
+
+    /**
+     * Test of latencyReport method, of class ProgressReporter. Documents that
+     * took the same time are all listed, and only the ten slowest are kept
+     */
+    @Test
+    public void testLatencyReportTies() {
+        System.out.println("latencyReportTies");
+        for (int i = 0; i < 12; i++) {
+            instance.documentDone("d" + i + ".xml", 1000, (i < 2) ? 1000000 : 3000000);
+        }
+        ArrayList<String> result = instance.latencyReport();
+        int slow = 0;
+        for (String s : result) {
+            if (s.startsWith("Slow\t")) {
+                assertTrue(s.startsWith("Slow\t3.000 ms\td"), s);
+                slow++;
+            }
+        }
+        assertEquals(10, slow);
+    }
+
+    /**
+     * Test of stop method, of class ProgressReporter. The final status and
+     * latencies go to the stream, or to the status file if there is one
+     */
+    @Test
+    public void testStop()
+            throws Exception {
+        System.out.println("stop");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        instance.setStream(new PrintStream(out, true));
+        instance.start();
+        instance.documentDone("a.xml", 1000, 2000000);
+        instance.stop();
+        String result = out.toString();
+        assertTrue(result.startsWith("Progress\t1/4 documents"), result);
+        assertTrue(result.contains("\nLatency\t1 documents"), result);
+
+        File f = File.createTempFile("status", ".txt");
+        f.deleteOnExit();
+        instance = new ProgressReporter(0, 0, 60000);
+        instance.setStatusFile(f.getPath());
+        instance.start();
+        instance.documentDone("a.xml", 1000, 2000000);
+        instance.stop();
+        List<String> lines = Files.readAllLines(f.toPath());
+        assertEquals("Progress\t1 documents", lines.get(0).substring(0, 20));
+        assertEquals("Latency\t1 documents\tmean 2.000 ms", lines.get(1));
+    }
+}
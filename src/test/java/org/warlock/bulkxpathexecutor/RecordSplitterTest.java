@@ -0,0 +1,107 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import uk.nhs.digital.mait.commonutils.util.CfHNamespaceContext;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class RecordSplitterTest {
+
+    private static final String XML = "<Bundle xmlns=\"http://hl7.org/fhir\"><type value=\"collection\"/>"
+            + "<entry><resource><id value=\"1\"/></resource></entry>"
+            + "<entry><resource><id value=\"2\"/></resource></entry>"
+            + "<link><entry/></link></Bundle>";
+    private RecordSplitter instance = null;
+
+    public RecordSplitterTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        instance = new RecordSplitter("/fhir:Bundle/fhir:entry", CfHNamespaceContext.getXMLNamespaceContext());
+    }
+
+    @AfterEach
+    public void tearDown() {
+    }
+
+    /**
+     * Test of split method, of class RecordSplitter. Only elements at the
+     * split path are records, and each carries the in scope namespaces.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testSplit() throws Exception {
+        System.out.println("split");
+        ArrayList<String> records = new ArrayList<>();
+        int result = instance.split(new ByteArrayInputStream(XML.getBytes(StandardCharsets.UTF_8)), null, r -> {
+            records.add(r);
+            return null;
+        });
+        assertEquals(2, result);
+        assertEquals(2, records.size());
+        assertTrue(records.get(0).startsWith("<entry xmlns=\"http://hl7.org/fhir\">"));
+        assertTrue(records.get(1).contains("<id value=\"2\""));
+    }
+
+    /**
+     * Test of split method, of class RecordSplitter, writing the envelope
+     * with records replaced or dropped
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testSplitEnvelope() throws Exception {
+        System.out.println("splitEnvelope");
+        StringWriter w = new StringWriter();
+        int[] n = new int[1];
+        instance.split(new ByteArrayInputStream(XML.getBytes(StandardCharsets.UTF_8)), w, r -> {
+            return (n[0]++ == 0) ? "<entry/>" : null;
+        });
+        String result = w.toString();
+        assertTrue(result.contains("<type value=\"collection\"></type><entry/><link><entry></entry></link></Bundle>"));
+    }
+
+    /**
+     * Split paths that cannot be streamed are rejected
+     */
+    @Test
+    public void testBadPath() {
+        System.out.println("badPath");
+        assertThrows(Exception.class, () -> new RecordSplitter("//fhir:entry", CfHNamespaceContext.getXMLNamespaceContext()));
+        assertThrows(Exception.class, () -> new RecordSplitter("/fhir:Bundle/fhir:entry[1]", CfHNamespaceContext.getXMLNamespaceContext()));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.util.ArrayList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class ShardQueueTest {
+
+    private static final String TEST_ROOT = "src/test/resources/";
+    private ShardQueue instance = null;
+
+    public ShardQueueTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        instance = new ShardQueue(TEST_ROOT + "/queue");
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        instance.delete();
+    }
+
+    /**
+     * Test of claim method, of class ShardQueue. A worker takes its own shard
+     * in order, then steals from the tail of another shard.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testClaim() throws Exception {
+        System.out.println("claim");
+        instance.add(0, 0, "a.xml");
+        instance.add(0, 1, "b.xml");
+        instance.add(1, 2, "c.xml");
+        instance.add(1, 3, "d.xml");
+        assertEquals(4, instance.pendingCount());
+        assertEquals(0, instance.claim(0));
+        assertEquals(1, instance.claim(0));
+        assertEquals(3, instance.claim(0));
+        assertEquals("d.xml", instance.getDocument(3));
+        assertEquals(2, instance.claim(1));
+        assertEquals(-1, instance.claim(1));
+        assertEquals(0, instance.pendingCount());
+    }
+
+    /**
+     * Test of complete method, of class ShardQueue.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testComplete() throws Exception {
+        System.out.println("complete");
+        instance.add(0, 0, "a.xml");
+        int seq = instance.claim(0);
+        assertFalse(instance.isComplete(seq));
+        ArrayList<String> outputs = new ArrayList<>();
+        outputs.add("P1\tvalue");
+        instance.complete(seq, outputs, null);
+        assertTrue(instance.isComplete(seq));
+        ShardQueue.Result result = instance.getResult(seq);
+        assertEquals(outputs, result.getOutputs());
+        assertTrue(result.getErrors().isEmpty());
+    }
+}
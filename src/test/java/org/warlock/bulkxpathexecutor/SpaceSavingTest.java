@@ -0,0 +1,93 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class SpaceSavingTest {
+
+    public SpaceSavingTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() {
+    }
+
+    @AfterEach
+    public void tearDown() {
+    }
+
+    /**
+     * Test of add method, of class SpaceSaving. Counts are exact while there
+     * are spare counters, and a frequent value survives eviction.
+     */
+    @Test
+    public void testAdd() {
+        System.out.println("add");
+        SpaceSaving instance = new SpaceSaving(10);
+        for (int i = 0; i < 5; i++) {
+            instance.add("a");
+        }
+        instance.add("b");
+        assertEquals(5, instance.getCount("a"));
+        assertEquals(0, instance.getError("a"));
+        for (int i = 0; i < 1000; i++) {
+            instance.add("x" + i);
+            if (i % 5 == 0) {
+                instance.add("a");
+            }
+        }
+        assertEquals("a", instance.top(1).get(0));
+        assertTrue(instance.getCount("a") >= 205);
+        assertEquals(10, instance.top(20).size());
+    }
+
+    /**
+     * Test of merge method, of class SpaceSaving.
+     */
+    @Test
+    public void testMerge() {
+        System.out.println("merge");
+        SpaceSaving a = new SpaceSaving(10);
+        SpaceSaving b = new SpaceSaving(10);
+        for (int i = 0; i < 3; i++) {
+            a.add("p");
+            b.add("q");
+        }
+        a.add("q");
+        a.merge(b);
+        assertEquals(4, a.getCount("q"));
+        assertEquals(3, a.getCount("p"));
+        assertEquals("q", a.top(2).get(0));
+    }
+}
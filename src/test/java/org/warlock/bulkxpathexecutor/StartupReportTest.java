@@ -0,0 +1,94 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.util.ArrayList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class StartupReportTest {
+
+    public StartupReportTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() {
+    }
+
+    @AfterEach
+    public void tearDown() {
+    }
+
+    /**
+     * Test of report method, of class StartupReport.
+     */
+    @Test
+    public void testReport() {
+        System.out.println("report");
+        StartupReport instance = new StartupReport();
+        instance.mark("load profile");
+        instance.mark("process first document");
+        ArrayList<String> lines = instance.report();
+        assertEquals(6, lines.size());
+        assertEquals("Startup\tphase\tms\tclasses loaded", lines.get(0));
+        assertTrue(lines.get(1).startsWith("\tJVM start to main\t"));
+        assertTrue(lines.get(2).startsWith("\tload profile\t"));
+        assertTrue(lines.get(3).startsWith("\tprocess first document\t"));
+        assertTrue(lines.get(4).startsWith("\ttotal\t"));
+        assertTrue(lines.get(5).startsWith("\tclass data sharing\t"));
+        long sum = 0;
+        for (int i = 1; i < 4; i++) {
+            String[] f = lines.get(i).split("\t");
+            assertTrue(Long.parseLong(f[2]) >= 0, lines.get(i));
+            sum += Long.parseLong(f[2]);
+        }
+        assertEquals(sum, Long.parseLong(lines.get(4).split("\t")[2]));
+    }
+
+    /**
+     * Test of mark method, of class StartupReport. A repeated phase keeps its
+     * first mark.
+     */
+    @Test
+    public void testMark()
+            throws Exception {
+        System.out.println("mark");
+        StartupReport instance = new StartupReport();
+        instance.mark("process first document");
+        String first = instance.report().get(2);
+        Thread.sleep(20);
+        instance.mark("process first document");
+        ArrayList<String> lines = instance.report();
+        assertEquals(5, lines.size());
+        assertEquals(first, lines.get(2));
+    }
+}
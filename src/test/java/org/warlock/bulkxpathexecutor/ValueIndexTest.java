@@ -0,0 +1,142 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class ValueIndexTest {
+
+    private Path directory = null;
+
+    public ValueIndexTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp()
+            throws Exception {
+        directory = Files.createTempDirectory("index");
+    }
+
+    @AfterEach
+    public void tearDown()
+            throws Exception {
+        try (Stream<Path> s = Files.walk(directory)) {
+            s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /**
+     * Test of query method, of class ValueIndex. The second run adds a
+     * segment, and indexes one document again.
+     */
+    @Test
+    public void testQuery()
+            throws Exception {
+        System.out.println("query");
+        ValueIndex instance = new ValueIndex(directory);
+        int a = instance.addDocument("a.xml");
+        int b = instance.addDocument("b.xml");
+        instance.add(b, "CODE", Arrays.asList("123", "456"));
+        instance.add(a, "CODE", Arrays.asList("123", null, "123"));
+        instance.add(a, "NAME", Arrays.asList("Ren\u00e9e"));
+        instance.close();
+        instance = new ValueIndex(directory);
+        assertEquals(2, instance.getDocuments());
+        int c = instance.addDocument("c.xml");
+        int d = instance.addDocument("a.xml");
+        instance.add(c, "CODE", List.of("456"));
+        instance.add(d, "CODE", List.of("123"));
+        instance.close();
+        assertEquals(List.of("a.xml", "b.xml"), ValueIndex.query(directory, "CODE", "123"));
+        assertEquals(List.of("b.xml", "c.xml"), ValueIndex.query(directory, "CODE", "456"));
+        assertEquals(List.of("a.xml"), ValueIndex.query(directory, "NAME", "Ren\u00e9e"));
+        assertTrue(ValueIndex.query(directory, "NAME", "123").isEmpty());
+        assertTrue(ValueIndex.query(directory, "CODE", "12").isEmpty());
+    }
+
+    /**
+     * Test of query method, of class ValueIndex, after a run that stopped
+     * with names, and part of an offset, written but never closed.
+     */
+    @Test
+    public void testQueryStoppedRun()
+            throws Exception {
+        System.out.println("queryStoppedRun");
+        ValueIndex instance = new ValueIndex(directory);
+        int a = instance.addDocument("a.xml");
+        instance.add(a, "CODE", List.of("123"));
+        instance.close();
+        Files.write(directory.resolve("documents.txt"), "b.xml\nc.xml\n".getBytes("UTF-8"), StandardOpenOption.APPEND);
+        Files.write(directory.resolve("documents.off"), new byte[3], StandardOpenOption.APPEND);
+        assertEquals(List.of("a.xml"), ValueIndex.query(directory, "CODE", "123"));
+        instance = new ValueIndex(directory);
+        assertEquals(1, instance.getDocuments());
+        int d = instance.addDocument("d.xml");
+        instance.add(d, "CODE", List.of("123"));
+        instance.close();
+        assertEquals(List.of("a.xml", "d.xml"), ValueIndex.query(directory, "CODE", "123"));
+        assertEquals("a.xml\nd.xml\n", new String(Files.readAllBytes(directory.resolve("documents.txt")), "UTF-8"));
+    }
+
+    /**
+     * Test of query method, of class ValueIndex, on a directory that is not
+     * an index.
+     */
+    @Test
+    public void testQueryNotIndex() {
+        System.out.println("queryNotIndex");
+        assertThrows(Exception.class, () -> ValueIndex.query(directory, "CODE", "123"));
+    }
+
+    /**
+     * Test of encode and decode methods, of class ValueIndex.
+     */
+    @Test
+    public void testEncode() {
+        System.out.println("encode");
+        int[] ids = new int[]{0, 1, 127, 128, 16384, 2000000, Integer.MAX_VALUE};
+        byte[] b = ValueIndex.encode(ids);
+        assertArrayEquals(ids, ValueIndex.decode(ByteBuffer.wrap(b), ids.length));
+        // one byte for each delta under 128
+        assertEquals(3, ValueIndex.encode(new int[]{0, 1, 127}).length);
+        assertEquals(0, ValueIndex.encode(new int[0]).length);
+    }
+}
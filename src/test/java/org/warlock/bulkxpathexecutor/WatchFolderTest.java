@@ -0,0 +1,108 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class WatchFolderTest {
+
+    private Path dir = null;
+
+    public WatchFolderTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("bxpspool");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        for (File f : dir.toFile().listFiles()) {
+            f.delete();
+        }
+        dir.toFile().delete();
+    }
+
+    /**
+     * Test of run method, of class WatchFolder. Files present at the start
+     * and files arriving later are each handled once; temporary names are
+     * not.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testRun() throws Exception {
+        System.out.println("run");
+        Files.write(dir.resolve("first.xml"), "<a/>".getBytes());
+        WatchFolder instance = new WatchFolder(dir, 20);
+        ArrayList<String> handled = new ArrayList<>();
+        Thread t = new Thread(() -> {
+            try {
+                instance.run(f -> {
+                    synchronized (handled) {
+                        handled.add(f.getFileName().toString());
+                    }
+                    Files.delete(f);
+                });
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        t.start();
+        waitFor(handled, 1);
+        Files.write(dir.resolve("second.xml.part"), "<b/>".getBytes());
+        Files.move(dir.resolve("second.xml.part"), dir.resolve("second.xml"));
+        waitFor(handled, 2);
+        instance.stop();
+        t.join(5000);
+        assertFalse(t.isAlive());
+        assertEquals(2, handled.size());
+        assertEquals("first.xml", handled.get(0));
+        assertEquals("second.xml", handled.get(1));
+    }
+
+    private static void waitFor(ArrayList<String> handled, int n) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            synchronized (handled) {
+                if (handled.size() >= n) {
+                    return;
+                }
+            }
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ Copyright 2019  Damian Murphy <murff@warlock.org>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.bulkxpathexecutor;
+
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import uk.nhs.digital.mait.commonutils.util.CfHNamespaceContext;
+
+/**
+ *
+ * @author simonfarrow
+ */
+public class XsltEngineTest {
+
+    private static final String XML = "<Bundle xmlns=\"http://hl7.org/fhir\"><!-- c --><type value=\"collection\"/>"
+            + "<entry><id value=\"1\"/></entry>"
+            + "<entry><id value=\"2\"/></entry>"
+            + "<entry><id value=\"3\"/></entry></Bundle>";
+    private XsltEngine instance = null;
+    private OutputManager om = null;
+
+    public XsltEngineTest() {
+    }
+
+    @BeforeAll
+    public static void setUpClass() {
+    }
+
+    @AfterAll
+    public static void tearDownClass() {
+    }
+
+    @BeforeEach
+    public void setUp() {
+        instance = new XsltEngine(CfHNamespaceContext.getXMLNamespaceContext());
+        om = new OutputManager();
+        om.setInMemoryError();
+    }
+
+    @AfterEach
+    public void tearDown() {
+    }
+
+    private String transform()
+            throws Exception {
+        instance.compile();
+        StringWriter w = new StringWriter();
+        instance.transform(XML.getBytes(StandardCharsets.UTF_8), "-", w, om);
+        return w.toString();
+    }
+
+    /**
+     * Test of transform method, of class XsltEngine. Values by position, the
+     * last applying to the remaining matches, and comments dropped
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testValues() throws Exception {
+        System.out.println("values");
+        instance.add("ID", "//fhir:id/@value", Arrays.asList(XsltEngine.Action.value("a"), XsltEngine.Action.value("b&\"")));
+        String result = transform();
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Bundle xmlns=\"http://hl7.org/fhir\"><type value=\"collection\"/>"
+                + "<entry><id value=\"a\"/></entry>"
+                + "<entry><id value=\"b&amp;&quot;\"/></entry>"
+                + "<entry><id value=\"b&amp;&quot;\"/></entry></Bundle>", result);
+    }
+
+    /**
+     * Test of transform method, of class XsltEngine. Deletion and fragment
+     * replacement of elements, with braces in the fragment kept as they are
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testStructural() throws Exception {
+        System.out.println("structural");
+        instance.add("E2", "/fhir:Bundle/fhir:entry[2]", Arrays.asList(XsltEngine.Action.delete()));
+        instance.add("E3", "/fhir:Bundle/fhir:entry[3]/fhir:id", Arrays.asList(XsltEngine.Action.fragment("<x xmlns=\"http://hl7.org/fhir\" value=\"{y}\"/>")));
+        // a value change does not override a deletion
+        instance.add("ID", "//fhir:id/@value", Arrays.asList(XsltEngine.Action.value("a")));
+        String result = transform();
+        assertTrue(result.endsWith("<entry><id value=\"a\"/></entry><entry><x value=\"{y}\"/></entry></Bundle>"));
+    }
+
+    /**
+     * Test of transform method, of class XsltEngine. Errors are reported and
+     * leave the node alone
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testErrors() throws Exception {
+        System.out.println("errors");
+        instance.add("T", "/fhir:Bundle/fhir:type/@value", Arrays.asList(XsltEngine.Action.delete()));
+        instance.add("R", "/fhir:Bundle/fhir:entry[1]/fhir:id/@value", Arrays.asList(XsltEngine.Action.error("undefined")));
+        String result = transform();
+        assertTrue(result.contains("<type value=\"collection\"/><entry><id value=\"1\"/>"));
+        assertEquals(Arrays.asList("Failed to delete value no parent ", "undefined"), om.getErrors());
+    }
+
+    /**
+     * Paths outside the CompactXPath subset cannot be templates
+     */
+    @Test
+    public void testUnsupported() {
+        System.out.println("unsupported");
+        assertThrows(Exception.class, () -> instance.add("X", "//fhir:id/..", Arrays.asList(XsltEngine.Action.value("a"))));
+        assertThrows(Exception.class, () -> instance.add("X", "/fhir:Bundle/node()", Arrays.asList(XsltEngine.Action.value("a"))));
+    }
+}